@@ -0,0 +1,85 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.taimos.pipeline.aws;
+
+import org.kohsuke.stapler.DataBoundSetter;
+
+import de.taimos.pipeline.aws.utils.ArchiveFormat;
+
+/**
+ * The parameters shared by the steps saving and restoring a directory of the workspace as a cache archive on S3.
+ */
+public class AbstractS3CacheStep extends AbstractS3TransferStep {
+	
+	private final String bucket;
+	private final String key;
+	private final String dir;
+	private String path = "";
+	private String hashFiles;
+	private String format = ArchiveFormat.TGZ.getName();
+	
+	protected AbstractS3CacheStep(String bucket, String key, String dir, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
+		super(pathStyleAccessEnabled, payloadSigningEnabled);
+		this.bucket = bucket;
+		this.key = key;
+		this.dir = dir;
+	}
+	
+	public String getBucket() {
+		return this.bucket;
+	}
+	
+	public String getKey() {
+		return this.key;
+	}
+	
+	public String getDir() {
+		return this.dir;
+	}
+	
+	public String getPath() {
+		return this.path;
+	}
+	
+	@DataBoundSetter
+	public void setPath(String path) {
+		this.path = path;
+	}
+	
+	public String getHashFiles() {
+		return this.hashFiles;
+	}
+	
+	@DataBoundSetter
+	public void setHashFiles(String hashFiles) {
+		this.hashFiles = hashFiles;
+	}
+	
+	public String getFormat() {
+		return this.format;
+	}
+	
+	@DataBoundSetter
+	public void setFormat(String format) {
+		this.format = format;
+	}
+	
+}
@@ -54,10 +54,12 @@ public class AbstractS3Step extends AbstractStepImpl {
 		this.payloadSigningEnabled = payloadSigningEnabled;
 	}
 	
+	protected S3ClientOptions createS3ClientOptions() {
+		return new S3ClientOptions(this.isPathStyleAccessEnabled(), this.isPayloadSigningEnabled());
+	}
+	
 	protected AmazonS3ClientBuilder createAmazonS3ClientBuilder() {
-		return AmazonS3ClientBuilder.standard()
-				.withPathStyleAccessEnabled(this.isPathStyleAccessEnabled())
-				.withPayloadSigningEnabled(this.isPayloadSigningEnabled());
+		return this.createS3ClientOptions().createAmazonS3ClientBuilder();
 	}
 	
 }
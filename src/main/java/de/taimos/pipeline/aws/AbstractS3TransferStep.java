@@ -0,0 +1,84 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * The parameters shared by the steps that transfer data with a TransferManager, to tune multipart transfers,
+ * connections, threads and bandwidth.
+ * The multipart settings are only bound by the steps they apply to: the uploading steps take both and s3Download only takes the part size.
+ */
+public class AbstractS3TransferStep extends AbstractS3Step {
+	
+	protected Long multipartThreshold;
+	protected Long multipartPartSize;
+	protected Integer maxConnections;
+	protected Integer transferThreads;
+	protected Long maxBytesPerSecond;
+	
+	protected AbstractS3TransferStep(final boolean pathStyleAccessEnabled, final boolean payloadSigningEnabled) {
+		super(pathStyleAccessEnabled, payloadSigningEnabled);
+	}
+	
+	public Long getMultipartThreshold() {
+		return this.multipartThreshold;
+	}
+	
+	public Long getMultipartPartSize() {
+		return this.multipartPartSize;
+	}
+	
+	public Integer getMaxConnections() {
+		return this.maxConnections;
+	}
+	
+	@DataBoundSetter
+	public void setMaxConnections(final Integer maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+	
+	public Integer getTransferThreads() {
+		return this.transferThreads;
+	}
+	
+	@DataBoundSetter
+	public void setTransferThreads(final Integer transferThreads) {
+		this.transferThreads = transferThreads;
+	}
+	
+	public Long getMaxBytesPerSecond() {
+		return this.maxBytesPerSecond;
+	}
+	
+	@DataBoundSetter
+	public void setMaxBytesPerSecond(final Long maxBytesPerSecond) {
+		this.maxBytesPerSecond = maxBytesPerSecond;
+	}
+	
+	@Override
+	protected S3ClientOptions createS3ClientOptions() {
+		return new S3ClientOptions(this.isPathStyleAccessEnabled(), this.isPayloadSigningEnabled(),
+								   this.getMultipartThreshold(), this.getMultipartPartSize(), this.getMaxConnections(), this.getTransferThreads(), this.getMaxBytesPerSecond());
+	}
+	
+}
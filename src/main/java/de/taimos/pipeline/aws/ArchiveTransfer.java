@@ -0,0 +1,131 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.taimos.pipeline.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.transfer.TransferManager;
+
+import de.taimos.pipeline.aws.utils.AntPathFilter;
+import de.taimos.pipeline.aws.utils.ArchiveFormat;
+import de.taimos.pipeline.aws.utils.ETagUtils;
+import de.taimos.pipeline.aws.utils.MatchingFileWalker;
+
+/**
+ * Streams many files into and out of a single archive object. Neither the archive nor its parts are written to disk.
+ */
+public final class ArchiveTransfer {
+	
+	/**
+	 * The memory budget of the parts waiting for their upload, in parts of the initial size.
+	 */
+	private static final int MAX_PENDING_PARTS = 4;
+	
+	private ArchiveTransfer() {
+		//
+	}
+	
+	/**
+	 * Archives a file or the matching files of a directory into a single object.
+	 *
+	 * @param lease    the lease of the transfer manager and executor to use
+	 * @param bucket   the bucket name
+	 * @param key      the key of the archive object
+	 * @param source   the file or directory to archive
+	 * @param filter   the filter the files of a directory have to match
+	 * @param format   the archive format
+	 * @param metadata the metadata of the archive object; the content type is set to the one of the format
+	 * @param acl      the canned ACL of the archive object or null
+	 * @param logger   the logger to report the result to
+	 * @return the stored archive object
+	 * @throws IOException          if a file cannot be read or the upload failed
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	public static UploadedObject upload(TransferManagerRegistry.Lease lease, String bucket, String key, File source, AntPathFilter filter, ArchiveFormat format, ObjectMetadata metadata, CannedAccessControlList acl, PrintStream logger) throws IOException, InterruptedException {
+		TransferManager mgr = lease.getTransferManager();
+		long started = System.currentTimeMillis();
+		metadata.setContentType(format.getContentType());
+		StreamingMultipartUpload upload = new StreamingMultipartUpload(mgr.getAmazonS3Client(), lease.getExecutorService(), bucket, key, metadata, acl, mgr.getConfiguration().getMinimumUploadPartSize(), MAX_PENDING_PARTS);
+		final AtomicInteger files = new AtomicInteger();
+		try {
+			final TarArchiveOutputStream tar = format.createOutputStream(upload);
+			if (source.isFile()) {
+				ArchiveFormat.addFile(tar, source, source.getName());
+				files.incrementAndGet();
+			} else {
+				MatchingFileWalker.walk(source, filter, new MatchingFileWalker.Visitor() {
+					@Override
+					public void visitFile(File file, String relativePath) throws IOException {
+						ArchiveFormat.addFile(tar, file, relativePath);
+						files.incrementAndGet();
+					}
+				});
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException("Archiving was interrupted");
+			}
+			tar.close();
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			upload.abort();
+			throw e;
+		}
+		logger.format("Archived %d files (%s) into s3://%s/%s%n", files.get(), TransferProgressReporter.formatBytes(upload.getBytesWritten()), bucket, key);
+		return new UploadedObject(null, key, upload.getBytesWritten(), ETagUtils.normalize(upload.getETag()), upload.getVersionId(), System.currentTimeMillis() - started);
+	}
+	
+	/**
+	 * Extracts an archive object while it is downloaded.
+	 *
+	 * @param s3Client  the client to use
+	 * @param bucket    the bucket name
+	 * @param key       the key of the archive object
+	 * @param format    the archive format
+	 * @param targetDir the directory to extract to
+	 * @param logger    the logger to report the result to
+	 * @return the number of extracted files
+	 * @throws IOException          if the archive cannot be read or a file cannot be written
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	public static int extract(AmazonS3 s3Client, String bucket, String key, ArchiveFormat format, File targetDir, PrintStream logger) throws IOException, InterruptedException {
+		try (S3Object object = s3Client.getObject(bucket, key)) {
+			S3ObjectInputStream content = object.getObjectContent();
+			try {
+				int files = format.extract(content, targetDir);
+				logger.format("Extracted %d files (%s) from s3://%s/%s%n", files, TransferProgressReporter.formatBytes(object.getObjectMetadata().getContentLength()), bucket, key);
+				return files;
+			} catch (IOException | InterruptedException | RuntimeException e) {
+				// do not drain the rest of the archive when closing
+				content.abort();
+				throw e;
+			}
+		}
+	}
+}
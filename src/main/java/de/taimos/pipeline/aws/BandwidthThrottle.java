@@ -0,0 +1,245 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.taimos.pipeline.aws;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.amazonaws.Request;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.http.HttpResponse;
+
+/**
+ * Token bucket limiting the bytes per second transferred by all streams sharing it.
+ * <p>
+ * Streams take tokens in small chunks and waiting streams are served in arrival order, so concurrent transfers get
+ * a fair share of the budget. The bucket holds at most one second worth of tokens, so idle periods only allow a short burst.
+ */
+public class BandwidthThrottle {
+	
+	/**
+	 * System property for the maximum number of bytes per second all S3 transfers of this JVM may use.
+	 */
+	static final String MAX_BYTES_PER_SECOND_PROPERTY = BandwidthThrottle.class.getName() + ".maxBytesPerSecond";
+	
+	/**
+	 * The largest number of bytes taken at once, so a single large read does not block other streams for long.
+	 */
+	private static final int CHUNK_SIZE = 16 * 1024;
+	
+	private static final BandwidthThrottle GLOBAL = createGlobal();
+	
+	private final long bytesPerSecond;
+	// waiting streams are served in arrival order
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private double tokens;
+	private long lastRefill;
+	
+	public BandwidthThrottle(long bytesPerSecond) {
+		if (bytesPerSecond <= 0) {
+			throw new IllegalArgumentException("BytesPerSecond must be positive");
+		}
+		this.bytesPerSecond = bytesPerSecond;
+		this.tokens = bytesPerSecond;
+		this.lastRefill = System.nanoTime();
+	}
+	
+	/**
+	 * @return the throttle shared by all S3 transfers of this JVM or null if the system property is not set
+	 */
+	public static BandwidthThrottle global() {
+		return GLOBAL;
+	}
+	
+	private static BandwidthThrottle createGlobal() {
+		Long bytesPerSecond = Long.getLong(MAX_BYTES_PER_SECOND_PROPERTY);
+		return bytesPerSecond != null && bytesPerSecond > 0 ? new BandwidthThrottle(bytesPerSecond) : null;
+	}
+	
+	public long getBytesPerSecond() {
+		return this.bytesPerSecond;
+	}
+	
+	/**
+	 * Blocks until the given number of bytes may be transferred.
+	 *
+	 * @param bytes the number of bytes
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public void acquire(long bytes) throws InterruptedException {
+		long remaining = bytes;
+		while (remaining > 0) {
+			long chunk = Math.min(remaining, CHUNK_SIZE);
+			this.lock.lockInterruptibly();
+			try {
+				this.refill();
+				if (this.tokens < chunk) {
+					long waitNanos = (long) ((chunk - this.tokens) * TimeUnit.SECONDS.toNanos(1) / this.bytesPerSecond);
+					// holding the lock keeps the order of waiting streams
+					TimeUnit.NANOSECONDS.sleep(waitNanos);
+					this.refill();
+				}
+				this.tokens -= chunk;
+			} finally {
+				this.lock.unlock();
+			}
+			remaining -= chunk;
+		}
+	}
+	
+	private void refill() {
+		long now = System.nanoTime();
+		this.tokens = Math.min(this.bytesPerSecond, this.tokens + (double) (now - this.lastRefill) * this.bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+		this.lastRefill = now;
+	}
+	
+	/**
+	 * Limits the request and response content of an S3 client to the given throttles.
+	 *
+	 * @param throttles the throttles to apply, null entries are ignored
+	 * @return the handler to add to the client or null if there is no throttle
+	 */
+	static RequestHandler2 createRequestHandler(BandwidthThrottle... throttles) {
+		final List<BandwidthThrottle> applied = new ArrayList<>();
+		for (BandwidthThrottle throttle : throttles) {
+			if (throttle != null) {
+				applied.add(throttle);
+			}
+		}
+		if (applied.isEmpty()) {
+			return null;
+		}
+		return new RequestHandler2() {
+			@Override
+			public void beforeRequest(Request<?> request) {
+				if (request.getContent() != null) {
+					request.setContent(new ThrottledInputStream(request.getContent(), applied));
+				}
+			}
+			
+			@Override
+			public HttpResponse beforeUnmarshalling(Request<?> request, HttpResponse httpResponse) {
+				if (httpResponse.getContent() != null) {
+					httpResponse.setContent(new ThrottledInputStream(httpResponse.getContent(), applied));
+				}
+				return httpResponse;
+			}
+		};
+	}
+	
+	/**
+	 * Takes the bytes read from the wrapped stream from all throttles.
+	 * <p>
+	 * With payload signing the signer reads the request content to the end to hash it and resets the stream before it is sent,
+	 * so the bytes read again after the first reset that follows a complete read are only taken once. Retries reset the stream
+	 * as well and send the content again, so bytes read again after any other reset are taken again.
+	 */
+	static class ThrottledInputStream extends FilterInputStream {
+		
+		private final List<BandwidthThrottle> throttles;
+		private long position;
+		private long markedPosition;
+		// the position up to which the bytes were taken from the throttles
+		private long throttledPosition;
+		private boolean endReached;
+		private boolean hashedBySigner;
+		
+		ThrottledInputStream(InputStream in, List<BandwidthThrottle> throttles) {
+			super(in);
+			this.throttles = throttles;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				this.advance(1);
+			} else {
+				this.endReached = true;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				this.advance(read);
+			} else if (read == -1) {
+				this.endReached = true;
+			}
+			return read;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			// skipped bytes are not transferred
+			this.position += skipped;
+			this.throttledPosition = Math.max(this.throttledPosition, this.position);
+			return skipped;
+		}
+		
+		@Override
+		public synchronized void mark(int readlimit) {
+			super.mark(readlimit);
+			this.markedPosition = this.position;
+		}
+		
+		@Override
+		public synchronized void reset() throws IOException {
+			super.reset();
+			this.position = this.markedPosition;
+			if (this.endReached && !this.hashedBySigner) {
+				// the content is sent after the signer hashed it
+				this.hashedBySigner = true;
+			} else {
+				// a retry sends the content again
+				this.throttledPosition = this.markedPosition;
+			}
+		}
+		
+		private void advance(int bytes) throws InterruptedIOException {
+			this.position += bytes;
+			if (this.position > this.throttledPosition) {
+				this.throttle(this.position - this.throttledPosition);
+				this.throttledPosition = this.position;
+			}
+		}
+		
+		private void throttle(long bytes) throws InterruptedIOException {
+			try {
+				for (BandwidthThrottle throttle : this.throttles) {
+					throttle.acquire(bytes);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Transfer was interrupted while throttled");
+			}
+		}
+	}
+}
@@ -0,0 +1,367 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.taimos.pipeline.aws;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferProgress;
+import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import com.google.common.base.Preconditions;
+
+import de.taimos.pipeline.aws.utils.ChecksumCalculator;
+import de.taimos.pipeline.aws.utils.Compression;
+import de.taimos.pipeline.aws.utils.ETagUtils;
+import de.taimos.pipeline.aws.utils.TransferUtils;
+
+/**
+ * Uploads many objects with a TransferManager. Objects that fail are retried individually with an exponential
+ * backoff, so one failed object neither fails nor repeats the whole batch.
+ * <p>
+ * At most a fixed number of uploads is pending at any time. Adding an object blocks until the oldest pending upload
+ * is done, so the memory used stays the same no matter how many objects are uploaded.
+ * <p>
+ * Files to compress are compressed in parallel, each straight into its own streamed upload.
+ */
+public class BatchUpload {
+	
+	/**
+	 * The default number of retries of a failed object.
+	 */
+	public static final int DEFAULT_RETRIES = 3;
+	/**
+	 * The default delay before the first retry, doubled for every further retry.
+	 */
+	public static final long DEFAULT_RETRY_BACKOFF_MILLIS = 1000;
+	/**
+	 * The default number of uploads that are started but not done yet; enough to keep all transfer threads busy.
+	 */
+	public static final int DEFAULT_MAX_PENDING = 1000;
+	
+	private final TransferManager mgr;
+	private final TransferProgressReporter reporter;
+	private final PrintStream logger;
+	private final int retries;
+	private final long retryBackoffMillis;
+	private final int maxPending;
+	private final Deque<Entry> pending = new ArrayDeque<>();
+	private final List<Entry> failed = new ArrayList<>();
+	private ChecksumCalculator checksums;
+	private ExecutorService compressor;
+	private ExecutorService partExecutor;
+	private UploadManifest manifest;
+	private int size;
+	
+	/**
+	 * @param mgr                the TransferManager to use
+	 * @param reporter           the progress reporter to add all uploads to
+	 * @param logger             the build log
+	 * @param retries            the number of retries of each failed object
+	 * @param retryBackoffMillis the delay before the first retry
+	 */
+	public BatchUpload(TransferManager mgr, TransferProgressReporter reporter, PrintStream logger, int retries, long retryBackoffMillis) {
+		this(mgr, reporter, logger, retries, retryBackoffMillis, DEFAULT_MAX_PENDING);
+	}
+	
+	/**
+	 * @param mgr                the TransferManager to use
+	 * @param reporter           the progress reporter to add all uploads to
+	 * @param logger             the build log
+	 * @param retries            the number of retries of each failed object
+	 * @param retryBackoffMillis the delay before the first retry
+	 * @param maxPending         the maximum number of uploads that are started but not done yet
+	 */
+	public BatchUpload(TransferManager mgr, TransferProgressReporter reporter, PrintStream logger, int retries, long retryBackoffMillis, int maxPending) {
+		this.mgr = mgr;
+		this.reporter = reporter;
+		this.logger = logger;
+		this.retries = retries;
+		this.retryBackoffMillis = retryBackoffMillis;
+		this.maxPending = maxPending;
+	}
+	
+	/**
+	 * Verifies the ETag of every uploaded object against a checksum of the local file that is computed while
+	 * the object is uploaded. Objects that do not match are retried like failed ones. Compressed objects are not verified.
+	 *
+	 * @param checksums the calculator to use or null to not verify
+	 */
+	public void setChecksumCalculator(ChecksumCalculator checksums) {
+		this.checksums = checksums;
+	}
+	
+	/**
+	 * @param partExecutor the executor the parts of compressed files are uploaded on, e.g. the one of the TransferManager;
+	 *                     required to add compressed files
+	 */
+	public void setPartExecutor(ExecutorService partExecutor) {
+		this.partExecutor = partExecutor;
+	}
+	
+	/**
+	 * Adds every successfully uploaded object to the given manifest.
+	 *
+	 * @param manifest the manifest to add to or null to not record the uploaded objects
+	 */
+	public void setManifest(UploadManifest manifest) {
+		this.manifest = manifest;
+	}
+	
+	/**
+	 * Starts the upload of an object. Blocks while the maximum number of uploads is pending.
+	 *
+	 * @param request the request; it must not be used by the caller afterwards
+	 * @throws IOException          if the manifest cannot be written
+	 * @throws InterruptedException if the thread was interrupted; all pending uploads are aborted
+	 */
+	public void add(PutObjectRequest request) throws IOException, InterruptedException {
+		this.add(request, null);
+	}
+	
+	/**
+	 * Starts the upload of an object. Blocks while the maximum number of uploads is pending.
+	 *
+	 * @param request     the request of a file upload; it must not be used by the caller afterwards
+	 * @param compression the compression to apply while uploading or null to upload the file as is
+	 * @throws IOException          if the manifest cannot be written
+	 * @throws InterruptedException if the thread was interrupted; all pending uploads are aborted
+	 */
+	public void add(PutObjectRequest request, Compression compression) throws IOException, InterruptedException {
+		this.add(request, compression, null);
+	}
+	
+	/**
+	 * Starts the upload of an object. Blocks while the maximum number of uploads is pending.
+	 *
+	 * @param request     the request of a file upload; it must not be used by the caller afterwards
+	 * @param compression the compression to apply while uploading or null to upload the file as is
+	 * @param path        the path of the file relative to the uploaded directory as reported in the manifest
+	 * @throws IOException          if the manifest cannot be written
+	 * @throws InterruptedException if the thread was interrupted; all pending uploads are aborted
+	 */
+	public void add(PutObjectRequest request, Compression compression, String path) throws IOException, InterruptedException {
+		Preconditions.checkState(compression == null || this.partExecutor != null, "Compressed files need a part executor");
+		this.submit(new Entry(request, compression, path));
+		this.size++;
+	}
+	
+	/**
+	 * @return the number of objects added
+	 */
+	public int size() {
+		return this.size;
+	}
+	
+	/**
+	 * Aborts all uploads that are still pending.
+	 */
+	public void abort() {
+		List<Upload> uploads = new ArrayList<>();
+		for (Entry entry : this.pending) {
+			if (entry.upload != null) {
+				uploads.add(entry.upload);
+			} else {
+				// interrupting the compressing thread aborts the streamed upload
+				entry.compressedUpload.cancel(true);
+			}
+			if (entry.checksum != null) {
+				entry.checksum.cancel();
+			}
+		}
+		TransferUtils.abort(uploads);
+		this.shutdownCompressor();
+	}
+	
+	/**
+	 * Waits for all uploads and retries the failed ones.
+	 *
+	 * @throws IOException          if objects still fail after all retries; the failed keys are logged
+	 * @throws InterruptedException if the thread was interrupted; all pending uploads are aborted
+	 */
+	public void waitForCompletion() throws IOException, InterruptedException {
+		try {
+			for (int attempt = 1; ; attempt++) {
+				while (!this.pending.isEmpty()) {
+					this.awaitOldest();
+				}
+				if (this.failed.isEmpty()) {
+					return;
+				}
+				if (attempt > this.retries) {
+					for (Entry entry : this.failed) {
+						this.logger.format("Failed to upload s3://%s/%s: %s%n", entry.request.getBucketName(), entry.request.getKey(), entry.error);
+					}
+					throw new IOException(String.format("Failed to upload %d of %d objects after %d retries", this.failed.size(), this.size, this.retries));
+				}
+				long delay = this.retryBackoffMillis << Math.min(attempt - 1, 20);
+				this.logger.format("Retrying %d failed objects in %d ms (retry %d of %d)%n", this.failed.size(), delay, attempt, this.retries);
+				Thread.sleep(delay);
+				List<Entry> retry = new ArrayList<>(this.failed);
+				this.failed.clear();
+				for (Entry entry : retry) {
+					this.submit(new Entry(entry.request, entry.compression, entry.path));
+				}
+			}
+		} finally {
+			this.shutdownCompressor();
+		}
+	}
+	
+	private void submit(final Entry entry) throws IOException, InterruptedException {
+		while (this.pending.size() >= this.maxPending) {
+			this.awaitOldest();
+		}
+		if (entry.compression == null) {
+			// the TransferManager modifies the request, so the original is kept for retries
+			entry.upload = this.start(entry, entry.request.clone());
+			if (this.checksums != null) {
+				entry.checksum = this.checksums.submit(entry.request.getFile(), ChecksumCalculator.partSizeFor(this.mgr.getConfiguration(), entry.request.getFile().length()));
+			}
+		} else {
+			// compressing is CPU bound, so files are compressed in parallel, each into its own streamed upload
+			entry.progress = new TransferProgress();
+			this.reporter.add(entry.progress);
+			entry.compressedUpload = this.getCompressor().submit(new Callable<UploadedObject>() {
+				@Override
+				public UploadedObject call() throws IOException {
+					return CompressedUpload.upload(BatchUpload.this.mgr.getAmazonS3Client(), BatchUpload.this.partExecutor, BatchUpload.this.mgr.getConfiguration().getMinimumUploadPartSize(),
+							entry.request, entry.compression, entry.path, entry.progress);
+				}
+			});
+		}
+		this.pending.add(entry);
+	}
+	
+	private Upload start(final Entry entry, PutObjectRequest request) {
+		entry.started = System.currentTimeMillis();
+		Upload upload = this.mgr.upload(request);
+		this.reporter.add(upload);
+		if (this.manifest != null) {
+			// the oldest upload is awaited first, so later ones may have been done for a while
+			upload.addProgressListener(new ProgressListener() {
+				@Override
+				public void progressChanged(ProgressEvent progressEvent) {
+					if (progressEvent.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
+						entry.finished = System.currentTimeMillis();
+					}
+				}
+			});
+		}
+		return upload;
+	}
+	
+	private void awaitOldest() throws IOException, InterruptedException {
+		Entry entry = this.pending.peek();
+		UploadedObject uploaded = null;
+		try {
+			if (entry.compressedUpload != null) {
+				uploaded = entry.compressedUpload.get();
+			} else {
+				uploaded = this.awaitUpload(entry);
+			}
+		} catch (ExecutionException e) {
+			// the failed attempt must not count towards the progress any more
+			this.reporter.remove(entry.progress);
+			entry.error = e.getCause().getMessage();
+			this.failed.add(entry);
+		} catch (AmazonClientException | IOException e) {
+			entry.error = e.getMessage();
+			this.failed.add(entry);
+		} catch (InterruptedException e) {
+			this.abort();
+			throw e;
+		}
+		this.pending.remove();
+		if (uploaded != null && this.manifest != null) {
+			this.manifest.add(uploaded);
+		}
+	}
+	
+	private UploadedObject awaitUpload(Entry entry) throws IOException, InterruptedException {
+		Upload upload = entry.upload;
+		UploadedObject uploaded = null;
+		try {
+			UploadResult result = upload.waitForUploadResult();
+			if (entry.checksum != null && !entry.checksum.verify(result.getETag(), this.mgr.getAmazonS3Client(), result.getBucketName(), result.getKey())) {
+				this.logger.format("Skipped checksum of s3://%s/%s, objects encrypted with SSE-KMS or SSE-C have no MD5 ETag%n", result.getBucketName(), result.getKey());
+			}
+			if (this.manifest != null) {
+				long size = upload.getProgress().getTotalBytesToTransfer();
+				long finished = entry.finished != 0 ? entry.finished : System.currentTimeMillis();
+				uploaded = new UploadedObject(entry.path, result.getKey(), size >= 0 ? size : upload.getProgress().getBytesTransferred(), ETagUtils.normalize(result.getETag()), result.getVersionId(), finished - entry.started);
+			}
+		} catch (AmazonClientException | IOException e) {
+			// the failed attempt must not count towards the progress any more
+			this.reporter.remove(upload);
+			throw e;
+		}
+		return uploaded;
+	}
+	
+	private synchronized ExecutorService getCompressor() {
+		if (this.compressor == null) {
+			this.compressor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		}
+		return this.compressor;
+	}
+	
+	private synchronized void shutdownCompressor() {
+		if (this.compressor != null) {
+			this.compressor.shutdownNow();
+			this.compressor = null;
+		}
+	}
+	
+	private static final class Entry {
+		private final PutObjectRequest request;
+		private final Compression compression;
+		private final String path;
+		private Upload upload;
+		private Future<UploadedObject> compressedUpload;
+		private TransferProgress progress;
+		private ChecksumCalculator.Checksum checksum;
+		private String error;
+		private volatile long started;
+		private volatile long finished;
+		
+		Entry(PutObjectRequest request, Compression compression, String path) {
+			this.request = request;
+			this.compression = compression;
+			this.path = path;
+		}
+	}
+}
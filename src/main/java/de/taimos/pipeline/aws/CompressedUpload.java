@@ -0,0 +1,116 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.taimos.pipeline.aws;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.TransferProgress;
+
+import de.taimos.pipeline.aws.utils.Compression;
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+/**
+ * Uploads the compressed content of a file while it is compressed. Neither the compressed copy nor its parts are written to disk.
+ * <p>
+ * The MD5 of the original content is computed in the same pass and stored in the user metadata of the object. S3 takes
+ * the metadata of a multipart upload when the upload starts, so for files whose compressed content may not fit into a
+ * single part the MD5 is computed up front instead.
+ */
+public final class CompressedUpload {
+	
+	/**
+	 * The memory budget of the parts waiting for their upload, in parts of the initial size.
+	 */
+	private static final int MAX_PENDING_PARTS = 4;
+	
+	private CompressedUpload() {
+		//
+	}
+	
+	/**
+	 * Compresses and uploads a file.
+	 *
+	 * @param s3Client    the client to use
+	 * @param executor    the executor the parts are uploaded on
+	 * @param partSize    the size of the first parts of multipart uploads
+	 * @param request     the upload of the file; its metadata and ACL are applied to the object
+	 * @param compression the compression to apply
+	 * @param path        the path of the file as reported in the manifest
+	 * @param progress    the progress to update with the compressed bytes; its total is set once the upload is done
+	 * @return the stored object
+	 * @throws IOException if the file cannot be read, the upload failed or the thread was interrupted
+	 */
+	public static UploadedObject upload(AmazonS3 s3Client, ExecutorService executor, long partSize, PutObjectRequest request, Compression compression, String path, TransferProgress progress) throws IOException {
+		long started = System.currentTimeMillis();
+		File file = request.getFile();
+		ObjectMetadata metadata = compression.createMetadata(request);
+		boolean singlePart = Compression.maxCompressedLength(file.length()) < partSize;
+		if (!singlePart) {
+			metadata.addUserMetadata(Compression.UNCOMPRESSED_MD5, ETagUtils.md5Hex(file));
+		}
+		StreamingMultipartUpload upload = new StreamingMultipartUpload(s3Client, executor, request.getBucketName(), request.getKey(), metadata, request.getCannedAcl(), partSize, MAX_PENDING_PARTS);
+		try {
+			String md5 = compression.compress(file, new ProgressOutputStream(upload, progress));
+			if (singlePart) {
+				// the content is sent with a single PUT when the upload is closed
+				metadata.addUserMetadata(Compression.UNCOMPRESSED_MD5, md5);
+			}
+			upload.close();
+		} catch (IOException | RuntimeException e) {
+			upload.abort();
+			throw e;
+		}
+		progress.setTotalBytesToTransfer(upload.getBytesWritten());
+		return new UploadedObject(path, request.getKey(), upload.getBytesWritten(), ETagUtils.normalize(upload.getETag()), upload.getVersionId(), System.currentTimeMillis() - started);
+	}
+	
+	/**
+	 * Counts the bytes written to the upload.
+	 */
+	private static class ProgressOutputStream extends FilterOutputStream {
+		
+		private final TransferProgress progress;
+		
+		ProgressOutputStream(OutputStream out, TransferProgress progress) {
+			super(out);
+			this.progress = progress;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			this.out.write(b);
+			this.progress.updateProgress(1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			this.progress.updateProgress(len);
+		}
+	}
+}
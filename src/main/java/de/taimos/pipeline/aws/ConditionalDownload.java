@@ -0,0 +1,126 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/**
+ * Downloads a single object only if it differs from the last download, so polling small objects costs a single
+ * round trip without a body while they do not change.
+ * <p>
+ * The ETag of the downloaded object is stored in a hidden file next to the local file, together with the size and
+ * modification time of the local file. The next download sends the ETag as If-None-Match constraint; S3 answers
+ * with 304 Not Modified if the object still has this ETag. A local file that was changed since is downloaded again.
+ */
+public class ConditionalDownload {
+	
+	private final AmazonS3 s3Client;
+	private final PrintStream logger;
+	private final String bucket;
+	private final String key;
+	private final File file;
+	
+	/**
+	 * @param s3Client the client to use
+	 * @param logger   the build log
+	 * @param bucket   the bucket name
+	 * @param key      the key of the object
+	 * @param file     the local file; it is replaced if the object differs
+	 */
+	public ConditionalDownload(AmazonS3 s3Client, PrintStream logger, String bucket, String key, File file) {
+		this.s3Client = s3Client;
+		this.logger = logger;
+		this.bucket = bucket;
+		this.key = key;
+		this.file = file;
+	}
+	
+	/**
+	 * @return true if the object was downloaded, false if the local file is up to date
+	 * @throws IOException if the file cannot be written
+	 */
+	public boolean download() throws IOException {
+		File stateFile = stateFile(this.file);
+		String eTag = this.readETag(stateFile);
+		GetObjectRequest request = new GetObjectRequest(this.bucket, this.key);
+		if (eTag != null) {
+			request.withNonmatchingETagConstraint(eTag);
+		}
+		S3Object object = this.s3Client.getObject(request);
+		if (object == null) {
+			this.logger.format("s3://%s/%s is unchanged (ETag %s)%n", this.bucket, this.key, eTag);
+			return false;
+		}
+		
+		File parent = this.file.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Failed to create directory " + parent);
+		}
+		// the old file stays in place until the new one is complete
+		File temp = new File(parent, "." + this.file.getName() + ".tmp");
+		S3ObjectInputStream in = object.getObjectContent();
+		try {
+			Files.copy(in, temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException | RuntimeException e) {
+			// do not drain the rest of the object when closing
+			in.abort();
+			Files.deleteIfExists(temp.toPath());
+			throw e;
+		} finally {
+			object.close();
+		}
+		String state = object.getObjectMetadata().getETag() + " " + this.file.length() + " " + this.file.lastModified();
+		Files.write(stateFile.toPath(), state.getBytes(StandardCharsets.UTF_8));
+		return true;
+	}
+	
+	/**
+	 * @param file the local file
+	 * @return the hidden file that keeps the ETag of the last download
+	 */
+	static File stateFile(File file) {
+		return new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".etag");
+	}
+	
+	private String readETag(File stateFile) throws IOException {
+		if (!this.file.isFile() || !stateFile.isFile()) {
+			return null;
+		}
+		String[] state = new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+		if (state.length != 3 || !String.valueOf(this.file.length()).equals(state[1]) || !String.valueOf(this.file.lastModified()).equals(state[2])) {
+			// the local file was changed or replaced since the last download
+			return null;
+		}
+		return state[0];
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.Download;
+import com.amazonaws.services.s3.transfer.TransferManager;
+
+import de.taimos.pipeline.aws.utils.AntPathFilter;
+import de.taimos.pipeline.aws.utils.MatchingFileWalker;
+import de.taimos.pipeline.aws.utils.TransferUtils;
+
+/**
+ * Downloads the objects of a virtual directory that match a filter, using a single listing and a bounded number of
+ * pending downloads.
+ * <p>
+ * When syncing, only objects that are missing or differ locally are downloaded, so persistent workspaces do not fetch
+ * the whole directory again. Downloaded files get the modification time of their object. A local file is up to date
+ * if it has the size and modification time of its object; files with the same size but another modification time are
+ * compared with the ETag of the object.
+ */
+public class DirectoryDownload {
+	
+	/**
+	 * The number of downloads that are started but not done yet; enough to keep all transfer threads busy.
+	 */
+	private static final int MAX_PENDING = 100;
+	
+	private final TransferManager mgr;
+	private final TransferProgressReporter reporter;
+	private final PrintStream logger;
+	private final String bucket;
+	private final File targetDir;
+	private DownloadCache cache;
+	
+	/**
+	 * @param mgr       the TransferManager to use
+	 * @param reporter  the progress reporter to add all downloads to
+	 * @param logger    the build log
+	 * @param bucket    the bucket name
+	 * @param targetDir the local directory the virtual directory is downloaded to
+	 */
+	public DirectoryDownload(TransferManager mgr, TransferProgressReporter reporter, PrintStream logger, String bucket, File targetDir) {
+		this.mgr = mgr;
+		this.reporter = reporter;
+		this.logger = logger;
+		this.bucket = bucket;
+		this.targetDir = targetDir;
+	}
+	
+	/**
+	 * Takes objects from the given cache and adds downloaded objects to it.
+	 *
+	 * @param cache the agent wide download cache or null to download every object
+	 */
+	public void setCache(DownloadCache cache) {
+		this.cache = cache;
+	}
+	
+	/**
+	 * Downloads the listed objects that match the filter.
+	 *
+	 * @param index            the listing of the virtual directory
+	 * @param filter           only objects whose key relative to the prefix matches this filter are downloaded
+	 * @param sync             true to skip objects that are up to date locally
+	 * @param deleteExtraneous true to delete local files that match the filter but have no object
+	 * @return the number of downloaded objects
+	 * @throws IOException          if a file cannot be read, written or deleted or an object points outside the target directory
+	 * @throws InterruptedException if the thread was interrupted; all pending downloads are aborted
+	 */
+	public int download(RemoteObjectIndex index, AntPathFilter filter, boolean sync, boolean deleteExtraneous) throws IOException, InterruptedException {
+		long partSize = this.mgr.getConfiguration().getMinimumUploadPartSize();
+		String targetPath = this.targetDir.getCanonicalPath() + File.separator;
+		Deque<PendingDownload> pending = new ArrayDeque<>();
+		int matching = 0;
+		int downloaded = 0;
+		int copied = 0;
+		try {
+			for (S3ObjectSummary summary : index.getObjects()) {
+				String relativePath = summary.getKey().substring(index.getPrefix().length());
+				if (!filter.matches(relativePath)) {
+					continue;
+				}
+				matching++;
+				File file = new File(this.targetDir, relativePath);
+				if (!file.getCanonicalPath().startsWith(targetPath)) {
+					throw new IOException("Object " + summary.getKey() + " points outside of " + this.targetDir);
+				}
+				if (sync && isUnchanged(file, summary, partSize)) {
+					continue;
+				}
+				while (pending.size() >= MAX_PENDING) {
+					awaitOldest(pending);
+				}
+				File parent = file.getParentFile();
+				if (!parent.isDirectory() && !parent.mkdirs()) {
+					throw new IOException("Failed to create directory " + parent);
+				}
+				// never waits for an entry, as other builds may wait for the entries of pending downloads
+				DownloadCache.Entry entry = this.cache != null ? this.cache.acquire(this.bucket, summary.getKey(), summary.getETag(), false) : null;
+				if (entry != null && entry.isCached()) {
+					try {
+						entry.copyTo(file);
+					} finally {
+						entry.close();
+					}
+					setLastModified(file, summary);
+					copied++;
+					continue;
+				}
+				try {
+					// the existing file may be read-only
+					Files.deleteIfExists(file.toPath());
+					Download download = this.mgr.download(new GetObjectRequest(this.bucket, summary.getKey()), entry != null ? entry.getTempFile() : file);
+					this.reporter.add(download);
+					pending.add(new PendingDownload(download, file, summary, entry));
+				} catch (IOException | RuntimeException e) {
+					if (entry != null) {
+						entry.close();
+					}
+					throw e;
+				}
+				downloaded++;
+			}
+			while (!pending.isEmpty()) {
+				awaitOldest(pending);
+			}
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			List<Download> downloads = new ArrayList<>();
+			for (PendingDownload download : pending) {
+				downloads.add(download.download);
+			}
+			TransferUtils.abort(downloads);
+			for (PendingDownload download : pending) {
+				closeQuietly(download.entry);
+			}
+			throw e;
+		}
+		if (this.cache != null) {
+			this.logger.format("Copied %d objects from the download cache%n", copied);
+		}
+		if (sync) {
+			this.logger.format("Sync: %d of %d objects are new or changed%n", downloaded, matching);
+		} else {
+			this.logger.format("%d of %d objects match the patterns%n", matching, index.getObjects().size());
+		}
+		if (deleteExtraneous && this.targetDir.isDirectory()) {
+			this.deleteExtraneousFiles(index, filter);
+		}
+		return downloaded;
+	}
+	
+	/**
+	 * Checks if a local file has the same content as the given object.
+	 *
+	 * @param file     the local file
+	 * @param summary  the remote object
+	 * @param partSize the part size most likely used for multipart uploads or 0 if unknown
+	 * @return true if the object does not need to be downloaded
+	 * @throws IOException if the file cannot be read
+	 */
+	static boolean isUnchanged(File file, S3ObjectSummary summary, long partSize) throws IOException {
+		if (!file.isFile() || file.length() != summary.getSize()) {
+			return false;
+		}
+		if (summary.getLastModified() == null) {
+			return RemoteObjectIndex.isUnchanged(file, summary, partSize);
+		}
+		long lastModified = summary.getLastModified().getTime();
+		// S3 and some file systems only keep whole seconds
+		if (file.lastModified() / 1000 == lastModified / 1000) {
+			return true;
+		}
+		if (RemoteObjectIndex.isUnchanged(file, summary, partSize)) {
+			// the next sync does not need to read the file again
+			file.setLastModified(lastModified);
+			return true;
+		}
+		return false;
+	}
+	
+	private static void awaitOldest(Deque<PendingDownload> pending) throws IOException, InterruptedException {
+		PendingDownload oldest = pending.peek();
+		oldest.download.waitForCompletion();
+		pending.remove();
+		if (oldest.entry != null) {
+			try {
+				oldest.entry.commit(oldest.download.getObjectMetadata().getETag());
+				oldest.entry.copyTo(oldest.file);
+			} finally {
+				oldest.entry.close();
+			}
+		}
+		setLastModified(oldest.file, oldest.summary);
+	}
+	
+	private static void setLastModified(File file, S3ObjectSummary summary) {
+		if (summary.getLastModified() != null) {
+			file.setLastModified(summary.getLastModified().getTime());
+		}
+	}
+	
+	private static void closeQuietly(DownloadCache.Entry entry) {
+		if (entry == null) {
+			return;
+		}
+		try {
+			entry.close();
+		} catch (IOException e) {
+			// the download failed anyway, the temporary file is replaced by the next download of the object
+		}
+	}
+	
+	private void deleteExtraneousFiles(final RemoteObjectIndex index, AntPathFilter filter) throws IOException {
+		final List<File> extraneous = new ArrayList<>();
+		// files not matching the filter are left alone, like objects are when uploading
+		MatchingFileWalker.walk(this.targetDir, filter, new MatchingFileWalker.Visitor() {
+			@Override
+			public void visitFile(File file, String relativePath) {
+				if (index.get(index.getPrefix() + relativePath.replace('\\', '/')) == null) {
+					extraneous.add(file);
+				}
+			}
+		});
+		for (File file : extraneous) {
+			this.logger.format("Deleting extraneous file %s%n", file);
+			if (!file.delete()) {
+				throw new IOException("Failed to delete " + file);
+			}
+		}
+	}
+	
+	private static final class PendingDownload {
+		private final Download download;
+		private final File file;
+		private final S3ObjectSummary summary;
+		private final DownloadCache.Entry entry;
+		
+		PendingDownload(Download download, File file, S3ObjectSummary summary, DownloadCache.Entry entry) {
+			this.download = download;
+			this.file = file;
+			this.summary = summary;
+			this.entry = entry;
+		}
+	}
+}
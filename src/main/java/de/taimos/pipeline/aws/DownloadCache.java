@@ -0,0 +1,281 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.amazonaws.util.BinaryUtils;
+
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+/**
+ * Agent wide cache of downloaded objects, keyed by bucket, key and ETag, so builds on the same agent do not download
+ * the same object again.
+ * <p>
+ * Every object is kept in its own directory below the cache directory. A cached object is copied into the workspace
+ * rather than hardlinked, as a link shares the file with the cache and a build could change the cached object by
+ * writing to its workspace file. New objects are downloaded to a temporary file and moved into place atomically. When
+ * the cache grows beyond its maximum size, the least recently used objects are deleted.
+ * <p>
+ * Only one download of an object runs at a time within the agent; other builds wait for it and copy the result.
+ */
+public class DownloadCache {
+	
+	/**
+	 * The default maximum size of the cache in bytes.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024 * 1024;
+	
+	private static final String OBJECT = "object";
+	private static final String TEMP = "object.tmp";
+	/**
+	 * The entry directories that are loaded, copied or evicted right now, shared by all caches of the agent.
+	 */
+	private static final Set<String> BUSY = new HashSet<>();
+	
+	private final File dir;
+	private final long maxBytes;
+	
+	/**
+	 * @param dir      the cache directory on the agent; it is created if missing
+	 * @param maxBytes the size the cache is shrunk to after adding an object
+	 */
+	public DownloadCache(File dir, long maxBytes) {
+		this.dir = dir.getAbsoluteFile();
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Reserves the cache entry of an object. The entry must be closed after use, which deletes its directory again if
+	 * nothing was added to the cache.
+	 *
+	 * @param bucket the bucket name
+	 * @param key    the key of the object
+	 * @param eTag   the ETag of the object
+	 * @param wait   true to wait while another build uses the entry, false to return null instead
+	 * @return the entry or null if it is in use and wait is false
+	 * @throws IOException          if the entry directory cannot be created
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public Entry acquire(String bucket, String key, String eTag, boolean wait) throws IOException, InterruptedException {
+		String normalizedETag = ETagUtils.normalize(eTag);
+		File entryDir = new File(this.dir, entryName(bucket, key, normalizedETag));
+		String lock = entryDir.getPath();
+		synchronized (BUSY) {
+			while (!BUSY.add(lock)) {
+				if (!wait) {
+					return null;
+				}
+				BUSY.wait();
+			}
+		}
+		if (!entryDir.isDirectory() && !entryDir.mkdirs()) {
+			release(lock);
+			throw new IOException("Failed to create directory " + entryDir);
+		}
+		return new Entry(entryDir, normalizedETag);
+	}
+	
+	/**
+	 * @return the total size of all cached objects
+	 */
+	public long size() {
+		long size = 0;
+		for (File entryDir : this.listEntries()) {
+			size += new File(entryDir, OBJECT).length();
+		}
+		return size;
+	}
+	
+	static String entryName(String bucket, String key, String eTag) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update((bucket + "\n" + key + "\n" + eTag).getBytes(StandardCharsets.UTF_8));
+			return BinaryUtils.toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not supported", e);
+		}
+	}
+	
+	private void evict() throws IOException {
+		// one eviction at a time, so two builds do not both delete for the same excess
+		synchronized (DownloadCache.class) {
+			List<File> entries = this.listEntries();
+			long size = 0;
+			for (File entryDir : entries) {
+				size += new File(entryDir, OBJECT).length();
+			}
+			if (size <= this.maxBytes) {
+				return;
+			}
+			Collections.sort(entries, new Comparator<File>() {
+				@Override
+				public int compare(File o1, File o2) {
+					return Long.compare(o1.lastModified(), o2.lastModified());
+				}
+			});
+			for (File entryDir : entries) {
+				if (size <= this.maxBytes) {
+					break;
+				}
+				synchronized (BUSY) {
+					if (!BUSY.add(entryDir.getPath())) {
+						continue;
+					}
+				}
+				try {
+					File object = new File(entryDir, OBJECT);
+					long length = object.length();
+					Files.deleteIfExists(object.toPath());
+					Files.deleteIfExists(new File(entryDir, TEMP).toPath());
+					Files.deleteIfExists(entryDir.toPath());
+					size -= length;
+				} finally {
+					release(entryDir.getPath());
+				}
+			}
+		}
+	}
+	
+	private List<File> listEntries() {
+		List<File> entries = new ArrayList<>();
+		File[] files = this.dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					entries.add(file);
+				}
+			}
+		}
+		return entries;
+	}
+	
+	private static void release(String lock) {
+		synchronized (BUSY) {
+			BUSY.remove(lock);
+			BUSY.notifyAll();
+		}
+	}
+	
+	/**
+	 * The reserved cache entry of an object.
+	 */
+	public final class Entry implements Closeable {
+		
+		private final File entryDir;
+		private final String eTag;
+		private final File object;
+		private final File temp;
+		
+		Entry(File entryDir, String eTag) {
+			this.entryDir = entryDir;
+			this.eTag = eTag;
+			this.object = new File(entryDir, OBJECT);
+			this.temp = new File(entryDir, TEMP);
+		}
+		
+		/**
+		 * @return true if the object is in the cache
+		 */
+		public boolean isCached() {
+			return this.object.isFile();
+		}
+		
+		/**
+		 * @return the file to download a missing object to before calling {@link #commit(String)}
+		 */
+		public File getTempFile() {
+			return this.temp;
+		}
+		
+		/**
+		 * Adds the downloaded temporary file to the cache, unless the object was replaced in the meantime.
+		 *
+		 * @param downloadedETag the ETag of the object that was downloaded
+		 * @throws IOException if the file cannot be moved into the cache
+		 */
+		public void commit(String downloadedETag) throws IOException {
+			if (!this.eTag.equals(ETagUtils.normalize(downloadedETag))) {
+				// the file belongs to another version, so it is only moved to the workspace
+				return;
+			}
+			Files.move(this.temp.toPath(), this.object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			this.object.setWritable(false, false);
+			this.entryDir.setLastModified(System.currentTimeMillis());
+			DownloadCache.this.evict();
+		}
+		
+		/**
+		 * Places a copy of the cached object, or the downloaded file if it was not cached, at the given location.
+		 *
+		 * @param target the file in the workspace; it is replaced if it exists
+		 * @throws IOException if the file cannot be copied or moved
+		 */
+		public void copyTo(File target) throws IOException {
+			Files.deleteIfExists(target.toPath());
+			File parent = target.getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("Failed to create directory " + parent);
+			}
+			if (!this.isCached()) {
+				Files.move(this.temp.toPath(), target.toPath());
+				return;
+			}
+			Files.copy(this.object.toPath(), target.toPath());
+			// the copy keeps the permissions of the read-only cached object
+			target.setWritable(true);
+			// the modification time of the directory tells when the object was used last
+			this.entryDir.setLastModified(System.currentTimeMillis());
+		}
+		
+		/**
+		 * Deletes a leftover temporary file, and the entry directory if the object is not cached, and releases the entry.
+		 *
+		 * @throws IOException if the temporary file or the entry directory cannot be deleted
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				Files.deleteIfExists(this.temp.toPath());
+				if (!this.isCached()) {
+					// a failed or replaced download leaves nothing behind
+					Files.deleteIfExists(this.entryDir.toPath());
+				}
+			} finally {
+				release(this.entryDir.getPath());
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.transfer.TransferProgress;
+
+/**
+ * Downloads a single object in byte ranges that are fetched in parallel, so large objects are not limited to the
+ * speed of a single connection.
+ * <p>
+ * The file is preallocated and every range is written to its position as it arrives. A failed range is retried on
+ * its own, continuing after the last byte written. All ranges are requested with the ETag of the object, so a
+ * download fails instead of mixing two versions if the object is replaced meanwhile.
+ * <p>
+ * All ranges write to the same file channel. Interrupting a thread that writes to a channel closes it for all other
+ * ranges, so a failed download stops the other ranges with a flag instead of interrupting their threads.
+ */
+public class RangedDownload {
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private final AmazonS3 s3Client;
+	private final ExecutorService executor;
+	private final PrintStream logger;
+	private final String bucket;
+	private final String key;
+	private final File file;
+	private TransferProgressReporter reporter;
+	private volatile boolean aborted;
+	
+	/**
+	 * @param s3Client the client to use
+	 * @param executor the pool that fetches the ranges; its size is the number of ranges fetched at the same time
+	 * @param logger   the build log
+	 * @param bucket   the bucket name
+	 * @param key      the key of the object
+	 * @param file     the local file; it is replaced if it exists
+	 */
+	public RangedDownload(AmazonS3 s3Client, ExecutorService executor, PrintStream logger, String bucket, String key, File file) {
+		this.s3Client = s3Client;
+		this.executor = executor;
+		this.logger = logger;
+		this.bucket = bucket;
+		this.key = key;
+		this.file = file;
+	}
+	
+	/**
+	 * Reports the bytes written by all ranges.
+	 *
+	 * @param reporter the reporter to add the download to or null to not report progress
+	 */
+	public void setReporter(TransferProgressReporter reporter) {
+		this.reporter = reporter;
+	}
+	
+	/**
+	 * Downloads the object. If the download fails or is interrupted the file is deleted.
+	 *
+	 * @param rangeSize          the number of bytes per range
+	 * @param retries            the number of retries of each failed range
+	 * @param retryBackoffMillis the delay before the first retry of a range, doubled for every further retry
+	 * @return the metadata of the downloaded object
+	 * @throws IOException          if the file cannot be written or a range still fails after all retries
+	 * @throws InterruptedException if the download was interrupted
+	 */
+	public ObjectMetadata download(long rangeSize, int retries, long retryBackoffMillis) throws IOException, InterruptedException {
+		ObjectMetadata metadata = this.s3Client.getObjectMetadata(this.bucket, this.key);
+		long length = metadata.getContentLength();
+		File parent = this.file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Failed to create directory " + parent);
+		}
+		
+		TransferProgress progress = new TransferProgress();
+		progress.setTotalBytesToTransfer(length);
+		if (this.reporter != null) {
+			this.reporter.add(progress);
+		}
+		List<Future<Void>> futures = new ArrayList<>();
+		try (RandomAccessFile out = new RandomAccessFile(this.file, "rw")) {
+			// ranges are written to their position in any order
+			out.setLength(length);
+			FileChannel channel = out.getChannel();
+			for (long offset = 0; offset < length; offset += rangeSize) {
+				futures.add(this.executor.submit(this.fetchRange(channel, progress, metadata.getETag(), offset, Math.min(offset + rangeSize, length), retries, retryBackoffMillis)));
+			}
+			this.logger.format("Downloading s3://%s/%s (%s) in %d ranges%n", this.bucket, this.key, TransferProgressReporter.formatBytes(length), futures.size());
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			this.cancel(futures);
+			Files.deleteIfExists(this.file.toPath());
+			throw e;
+		} catch (ExecutionException e) {
+			this.cancel(futures);
+			Files.deleteIfExists(this.file.toPath());
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException("Failed to download s3://" + this.bucket + "/" + this.key, e.getCause());
+		}
+		return metadata;
+	}
+	
+	private Callable<Void> fetchRange(final FileChannel channel, final TransferProgress progress, final String eTag, final long start, final long end, final int retries, final long retryBackoffMillis) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws IOException, InterruptedException {
+				AtomicLong position = new AtomicLong(start);
+				for (int attempt = 1; ; attempt++) {
+					try {
+						RangedDownload.this.fetch(channel, progress, eTag, position, end);
+						return null;
+					} catch (ObjectChangedException e) {
+						throw e;
+					} catch (AmazonClientException | IOException e) {
+						if (attempt > retries || RangedDownload.this.aborted) {
+							throw e;
+						}
+						long delay = retryBackoffMillis << Math.min(attempt - 1, 20);
+						RangedDownload.this.logger.format("Retrying bytes %d-%d of s3://%s/%s in %d ms: %s%n", position.get(), end - 1, RangedDownload.this.bucket, RangedDownload.this.key, delay, e.getMessage());
+						Thread.sleep(delay);
+					}
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Writes the bytes from the given position up to the end of the range, advancing the position as bytes are written.
+	 */
+	private void fetch(FileChannel channel, TransferProgress progress, String eTag, AtomicLong position, long end) throws IOException {
+		if (this.aborted) {
+			throw new InterruptedIOException("Download was aborted");
+		}
+		GetObjectRequest request = new GetObjectRequest(this.bucket, this.key).withRange(position.get(), end - 1);
+		if (eTag != null) {
+			request = request.withMatchingETagConstraint(eTag);
+		}
+		S3Object object = this.s3Client.getObject(request);
+		if (object == null) {
+			throw new ObjectChangedException("s3://" + this.bucket + "/" + this.key + " was changed during the download");
+		}
+		S3ObjectInputStream in = object.getObjectContent();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while (position.get() < end && (read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position.get()))) != -1) {
+				if (this.aborted) {
+					throw new InterruptedIOException("Download was aborted");
+				}
+				ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+				while (bytes.hasRemaining()) {
+					int written = channel.write(bytes, position.get());
+					position.addAndGet(written);
+					progress.updateProgress(written);
+				}
+			}
+			if (position.get() < end) {
+				throw new IOException(String.format("Range of s3://%s/%s ended %d bytes early", this.bucket, this.key, end - position.get()));
+			}
+		} catch (IOException | RuntimeException e) {
+			// do not drain the rest of the range when closing
+			in.abort();
+			throw e;
+		} finally {
+			object.close();
+		}
+	}
+	
+	private void cancel(List<Future<Void>> futures) {
+		this.aborted = true;
+		for (Future<Void> future : futures) {
+			// the running ranges stop at the flag; an interrupt would close the shared channel
+			future.cancel(false);
+		}
+	}
+	
+	/**
+	 * Signals that the object no longer has the ETag it had when the download started; this is not retried.
+	 */
+	private static final class ObjectChangedException extends IOException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		ObjectChangedException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import de.taimos.pipeline.aws.utils.AntPathFilter;
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+/**
+ * Snapshot of all objects below a key prefix, taken with a single (paginated) listing.
+ * It is used to find the local files that differ from their remote copies, so only those have to be transferred.
+ */
+public class RemoteObjectIndex {
+
+	/**
+	 * S3 accepts at most 1000 keys per multi-object delete request.
+	 */
+	private static final int MAX_KEYS_PER_DELETE = 1000;
+
+	private final String prefix;
+	private final Map<String, S3ObjectSummary> objects;
+
+	private RemoteObjectIndex(String prefix, Map<String, S3ObjectSummary> objects) {
+		this.prefix = prefix;
+		this.objects = objects;
+	}
+
+	/**
+	 * Lists all objects below the given virtual directory.
+	 *
+	 * @param s3Client the client to use
+	 * @param bucket   the bucket name
+	 * @param path     the virtual directory; a trailing "/" is added if missing
+	 * @return the index of all objects found
+	 */
+	public static RemoteObjectIndex load(AmazonS3 s3Client, String bucket, String path) {
+		String prefix = directoryPrefix(path);
+		Map<String, S3ObjectSummary> objects = new HashMap<>();
+		ListObjectsRequest request = new ListObjectsRequest().withBucketName(bucket).withPrefix(prefix);
+		ObjectListing objectListing = s3Client.listObjects(request);
+		while (true) {
+			for (S3ObjectSummary summary : objectListing.getObjectSummaries()) {
+				// skip the zero-length "folder" objects created by the management console
+				if (!summary.getKey().endsWith("/")) {
+					objects.put(summary.getKey(), summary);
+				}
+			}
+			if (!objectListing.isTruncated()) {
+				break;
+			}
+			objectListing = s3Client.listNextBatchOfObjects(objectListing);
+		}
+		return new RemoteObjectIndex(prefix, objects);
+	}
+
+	/**
+	 * Normalizes the path the same way the TransferManager does for directory uploads.
+	 *
+	 * @param path the virtual directory
+	 * @return the path with a trailing "/" or the empty string for the bucket root
+	 */
+	public static String directoryPrefix(String path) {
+		if (path == null || path.isEmpty()) {
+			return "";
+		}
+		return path.endsWith("/") ? path : path + "/";
+	}
+
+	/**
+	 * Computes the key the TransferManager uses when uploading the given file as part of a directory.
+	 *
+	 * @param path    the virtual directory
+	 * @param baseDir the local directory that is uploaded
+	 * @param file    the file inside the base directory
+	 * @return the S3 key of the file
+	 */
+	public static String keyFor(String path, File baseDir, File file) {
+		String relativePath = file.getAbsolutePath().substring(baseDir.getAbsolutePath().length() + 1);
+		return directoryPrefix(path) + relativePath.replace('\\', '/');
+	}
+
+	/**
+	 * Checks if a local file has the same size and content as the given remote object.
+	 *
+	 * @param file     the local file
+	 * @param summary  the remote object or null if it does not exist
+	 * @param partSize the part size most likely used for multipart uploads or 0 if unknown
+	 * @return true if the file does not need to be uploaded
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isUnchanged(File file, S3ObjectSummary summary, long partSize) throws IOException {
+		return summary != null && isUnchanged(file, summary.getSize(), summary.getETag(), partSize);
+	}
+
+	/**
+	 * Checks if a local file has the given size and matches the given ETag.
+	 *
+	 * @param file     the local file
+	 * @param size     the size of the remote object
+	 * @param eTag     the ETag of the remote object
+	 * @param partSize the part size most likely used for multipart uploads or 0 if unknown
+	 * @return true if the file does not need to be uploaded
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isUnchanged(File file, long size, String eTag, long partSize) throws IOException {
+		return size == file.length() && ETagUtils.matches(file, eTag, partSize);
+	}
+
+	/**
+	 * @return the virtual directory with a trailing "/" or the empty string for the bucket root
+	 */
+	public String getPrefix() {
+		return this.prefix;
+	}
+	
+	/**
+	 * @return all listed objects
+	 */
+	public Collection<S3ObjectSummary> getObjects() {
+		return this.objects.values();
+	}
+	
+	/**
+	 * @param key the S3 key
+	 * @return the listed object or null if there is none
+	 */
+	public S3ObjectSummary get(String key) {
+		return this.objects.get(key);
+	}
+
+	/**
+	 * Filters the given files to the ones that are missing or differ remotely.
+	 *
+	 * @param path     the virtual directory
+	 * @param baseDir  the local directory that is uploaded
+	 * @param files    the files inside the base directory
+	 * @param partSize the part size most likely used for multipart uploads or 0 if unknown
+	 * @return the files that need to be uploaded
+	 * @throws IOException if a file cannot be read
+	 */
+	public List<File> changedFiles(String path, File baseDir, Collection<File> files, long partSize) throws IOException {
+		List<File> changed = new ArrayList<>();
+		for (File file : files) {
+			if (!isUnchanged(file, this.get(keyFor(path, baseDir, file)), partSize)) {
+				changed.add(file);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Finds the remote objects that have no local counterpart.
+	 *
+	 * @param localKeys the keys of all local files
+	 * @param filter    only keys whose path relative to the prefix matches this filter are returned; may be null
+	 * @return the keys of all extraneous remote objects
+	 */
+	public List<String> extraneousKeys(Set<String> localKeys, AntPathFilter filter) {
+		List<String> extraneous = new ArrayList<>();
+		for (String key : this.objects.keySet()) {
+			if (localKeys.contains(key)) {
+				continue;
+			}
+			if (filter == null || filter.matches(key.substring(this.prefix.length()))) {
+				extraneous.add(key);
+			}
+		}
+		return extraneous;
+	}
+
+	/**
+	 * Deletes the given keys using multi-object delete requests.
+	 *
+	 * @param s3Client the client to use
+	 * @param bucket   the bucket name
+	 * @param keys     the keys to delete
+	 */
+	public static void deleteKeys(AmazonS3 s3Client, String bucket, List<String> keys) {
+		for (int i = 0; i < keys.size(); i += MAX_KEYS_PER_DELETE) {
+			List<String> batch = keys.subList(i, Math.min(i + MAX_KEYS_PER_DELETE, keys.size()));
+			s3Client.deleteObjects(new DeleteObjectsRequest(bucket).withKeys(batch.toArray(new String[batch.size()])).withQuiet(true));
+		}
+	}
+}
@@ -0,0 +1,412 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.taimos.pipeline.aws;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.internal.Mimetypes;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.util.BinaryUtils;
+
+import de.taimos.pipeline.aws.utils.ChecksumCalculator;
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+/**
+ * Multipart upload of a single file that can be continued after the agent disconnected or the build was restarted.
+ * <p>
+ * The upload id, part size and the ETags of the uploaded parts are kept in a state file. A later upload of the same
+ * file to the same key lists the parts S3 already has and only sends the missing ones. Parts are only reused if the
+ * file has the same size and modification time as before and the part ETag matches the one recorded when the part was
+ * uploaded, or the content of the local part if none was recorded.
+ * <p>
+ * The metadata and ACL are set when a multipart upload is initiated, so the state also keeps a hash of them. If they
+ * changed, the old upload is aborted and a new one is started, so the object gets the metadata of the current build.
+ */
+public class ResumableUpload {
+	
+	/**
+	 * S3 accepts at most 10000 parts per multipart upload.
+	 */
+	private static final int MAX_PARTS = 10000;
+	
+	private final AmazonS3 s3Client;
+	private final ExecutorService executor;
+	private final PrintStream logger;
+	private final File stateFile;
+	private final String bucket;
+	private final String key;
+	private final File file;
+	private ChecksumCalculator checksums;
+	
+	/**
+	 * @param s3Client the client to use
+	 * @param executor the pool that uploads the parts
+	 * @param logger   the build log
+	 * @param stateDir the directory to keep the upload state in
+	 * @param bucket   the bucket name
+	 * @param key      the key of the object
+	 * @param file     the local file
+	 */
+	public ResumableUpload(AmazonS3 s3Client, ExecutorService executor, PrintStream logger, File stateDir, String bucket, String key, File file) {
+		this.s3Client = s3Client;
+		this.executor = executor;
+		this.logger = logger;
+		this.stateFile = new File(stateDir, stateFileName(bucket, key, file));
+		this.bucket = bucket;
+		this.key = key;
+		this.file = file;
+	}
+	
+	/**
+	 * Verifies the ETag of every uploaded part against a checksum of the local part that is computed while
+	 * the part is uploaded.
+	 *
+	 * @param checksums the calculator to use or null to not verify
+	 */
+	public void setChecksumCalculator(ChecksumCalculator checksums) {
+		this.checksums = checksums;
+	}
+	
+	/**
+	 * Uploads the file, continuing an earlier upload of it if possible. If the upload is interrupted the multipart
+	 * upload is kept, so it can be continued later.
+	 *
+	 * @param minimumPartSize the part size of new uploads; it is raised if the file would need more than 10000 parts
+	 * @param metadata        the metadata of new uploads
+	 * @param acl             the canned ACL of new uploads or null
+	 * @return the result of completing the upload
+	 * @throws IOException          if the file or the state cannot be read or written
+	 * @throws InterruptedException if the upload was interrupted
+	 */
+	public CompleteMultipartUploadResult upload(long minimumPartSize, ObjectMetadata metadata, CannedAccessControlList acl) throws IOException, InterruptedException {
+		// computed before the content type is filled in, so it is the same for the same step parameters
+		String requestHash = requestHash(metadata, acl);
+		State state = this.loadState();
+		Map<Integer, PartETag> uploadedParts = new TreeMap<>();
+		if (state != null) {
+			Map<Integer, PartETag> verifiedParts = this.verifyParts(state, requestHash);
+			if (verifiedParts != null) {
+				uploadedParts.putAll(verifiedParts);
+				this.logger.format("Resuming upload of %s: %d of %d parts already uploaded%n", this.file, uploadedParts.size(), state.getPartCount());
+			} else {
+				state = null;
+			}
+		}
+		if (state == null) {
+			state = this.initiate(minimumPartSize, metadata, acl, requestHash);
+			this.logger.format("Starting resumable upload of %s in %d parts%n", this.file, state.getPartCount());
+		}
+		
+		List<Future<UploadPartResult>> futures = new ArrayList<>();
+		Map<Integer, Future<byte[]>> digests = new TreeMap<>();
+		for (int partNumber = 1; partNumber <= state.getPartCount(); partNumber++) {
+			if (!uploadedParts.containsKey(partNumber)) {
+				if (this.checksums != null) {
+					digests.put(partNumber, this.checksums.digest(this.file, state.getPartOffset(partNumber), state.getPartLength(partNumber)));
+				}
+				futures.add(this.executor.submit(this.uploadPart(state, partNumber)));
+			}
+		}
+		try {
+			boolean encrypted = false;
+			for (Future<UploadPartResult> future : futures) {
+				UploadPartResult result = future.get();
+				PartETag partETag = result.getPartETag();
+				Future<byte[]> digest = digests.get(partETag.getPartNumber());
+				if (digest != null && !ChecksumCalculator.hasMd5ETag(result)) {
+					// parts encrypted with SSE-KMS or SSE-C have no MD5 ETag
+					if (!encrypted) {
+						this.logger.format("Skipped checksums of the parts of %s, objects encrypted with SSE-KMS or SSE-C have no MD5 ETag%n", this.file);
+					}
+					encrypted = true;
+				} else if (digest != null && !ChecksumCalculator.toHex(digest).equals(ETagUtils.normalize(partETag.getETag()))) {
+					// a later attempt re-uploads the part, because its ETag does not match the local file
+					throw new IOException(String.format("Checksum mismatch for part %d of %s", partETag.getPartNumber(), this.file));
+				}
+				uploadedParts.put(partETag.getPartNumber(), partETag);
+			}
+		} catch (IOException | InterruptedException e) {
+			cancel(futures);
+			throw e;
+		} catch (ExecutionException e) {
+			cancel(futures);
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException("Failed to upload part of " + this.file, e.getCause());
+		}
+		
+		CompleteMultipartUploadResult result = this.s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(this.bucket, this.key, state.uploadId, new ArrayList<>(uploadedParts.values())));
+		Files.deleteIfExists(this.stateFile.toPath());
+		return result;
+	}
+	
+	private State initiate(long minimumPartSize, ObjectMetadata metadata, CannedAccessControlList acl, String requestHash) throws IOException {
+		if (metadata.getContentType() == null) {
+			metadata.setContentType(Mimetypes.getInstance().getMimetype(this.file));
+		}
+		InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(this.bucket, this.key, metadata);
+		if (acl != null) {
+			request = request.withCannedACL(acl);
+		}
+		String uploadId = this.s3Client.initiateMultipartUpload(request).getUploadId();
+		long partSize = Math.max(minimumPartSize, (this.file.length() + MAX_PARTS - 1) / MAX_PARTS);
+		State state = new State(uploadId, partSize, this.file.length(), this.file.lastModified(), requestHash);
+		this.saveState(state);
+		return state;
+	}
+	
+	/**
+	 * @return the parts that were uploaded and match the local file or null if the upload cannot be continued
+	 */
+	private Map<Integer, PartETag> verifyParts(State state, String requestHash) throws IOException {
+		if (state.length != this.file.length() || state.lastModified != this.file.lastModified()) {
+			this.logger.format("%s changed since the last upload attempt, starting over%n", this.file);
+			this.abort(state);
+			return null;
+		}
+		if (!requestHash.equals(state.requestHash)) {
+			this.logger.format("The metadata or ACL of %s changed since the last upload attempt, starting over%n", this.file);
+			this.abort(state);
+			return null;
+		}
+		Map<Integer, PartETag> parts = new TreeMap<>();
+		try {
+			PartListing listing = this.s3Client.listParts(new ListPartsRequest(this.bucket, this.key, state.uploadId));
+			while (true) {
+				for (PartSummary part : listing.getParts()) {
+					int partNumber = part.getPartNumber();
+					if (partNumber <= state.getPartCount() && part.getSize() == state.getPartLength(partNumber) && this.isUploaded(state, part)) {
+						parts.put(partNumber, new PartETag(partNumber, part.getETag()));
+					}
+				}
+				if (!listing.isTruncated()) {
+					break;
+				}
+				listing = this.s3Client.listParts(new ListPartsRequest(this.bucket, this.key, state.uploadId).withPartNumberMarker(listing.getNextPartNumberMarker()));
+			}
+		} catch (AmazonS3Exception e) {
+			if (e.getStatusCode() == 404) {
+				// the upload was completed, aborted or removed by a lifecycle rule
+				Files.deleteIfExists(this.stateFile.toPath());
+				return null;
+			}
+			throw e;
+		}
+		return parts;
+	}
+	
+	/**
+	 * Parts encrypted with SSE-KMS or SSE-C have no MD5 ETag, so a part is compared with the ETag recorded when it
+	 * was uploaded. Only parts without a recorded ETag are compared with the MD5 of the local part.
+	 */
+	private boolean isUploaded(State state, PartSummary part) throws IOException {
+		String eTag = ETagUtils.normalize(part.getETag());
+		String recordedETag = state.parts.get(part.getPartNumber());
+		if (recordedETag != null) {
+			return eTag.equals(ETagUtils.normalize(recordedETag));
+		}
+		return eTag.equals(ETagUtils.md5Hex(this.file, state.getPartOffset(part.getPartNumber()), part.getSize()));
+	}
+	
+	private Callable<UploadPartResult> uploadPart(final State state, final int partNumber) {
+		return new Callable<UploadPartResult>() {
+			@Override
+			public UploadPartResult call() throws Exception {
+				UploadPartRequest request = new UploadPartRequest()
+						.withBucketName(ResumableUpload.this.bucket)
+						.withKey(ResumableUpload.this.key)
+						.withUploadId(state.uploadId)
+						.withPartNumber(partNumber)
+						.withFile(ResumableUpload.this.file)
+						.withFileOffset(state.getPartOffset(partNumber))
+						.withPartSize(state.getPartLength(partNumber))
+						.withLastPart(partNumber == state.getPartCount());
+				UploadPartResult result = ResumableUpload.this.s3Client.uploadPart(request);
+				synchronized (state) {
+					state.parts.put(partNumber, result.getETag());
+					ResumableUpload.this.saveState(state);
+				}
+				return result;
+			}
+		};
+	}
+	
+	private void abort(State state) {
+		try {
+			this.s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(this.bucket, this.key, state.uploadId));
+		} catch (RuntimeException e) {
+			this.logger.format("Failed to abort previous upload %s: %s%n", state.uploadId, e.getMessage());
+		}
+	}
+	
+	private static void cancel(List<Future<UploadPartResult>> futures) {
+		for (Future<UploadPartResult> future : futures) {
+			future.cancel(true);
+		}
+	}
+	
+	private State loadState() throws IOException {
+		if (!this.stateFile.isFile()) {
+			return null;
+		}
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(this.stateFile)) {
+			properties.load(in);
+		}
+		try {
+			State state = new State(properties.getProperty("uploadId"), Long.parseLong(properties.getProperty("partSize")),
+									Long.parseLong(properties.getProperty("length")), Long.parseLong(properties.getProperty("lastModified")), properties.getProperty("requestHash"));
+			for (String name : properties.stringPropertyNames()) {
+				if (name.startsWith("part.")) {
+					state.parts.put(Integer.parseInt(name.substring("part.".length())), properties.getProperty(name));
+				}
+			}
+			return state.uploadId != null ? state : null;
+		} catch (NumberFormatException | NullPointerException e) {
+			this.logger.format("Ignoring invalid upload state %s%n", this.stateFile);
+			return null;
+		}
+	}
+	
+	private void saveState(State state) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("bucket", this.bucket);
+		properties.setProperty("key", this.key);
+		properties.setProperty("file", this.file.getAbsolutePath());
+		properties.setProperty("uploadId", state.uploadId);
+		properties.setProperty("partSize", String.valueOf(state.partSize));
+		properties.setProperty("length", String.valueOf(state.length));
+		properties.setProperty("lastModified", String.valueOf(state.lastModified));
+		properties.setProperty("requestHash", state.requestHash);
+		for (Map.Entry<Integer, String> part : state.parts.entrySet()) {
+			properties.setProperty("part." + part.getKey(), part.getValue());
+		}
+		File directory = this.stateFile.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create " + directory);
+		}
+		File tempFile = new File(directory, this.stateFile.getName() + ".tmp");
+		try (OutputStream out = new FileOutputStream(tempFile)) {
+			properties.store(out, "s3Upload resume state");
+		}
+		Files.move(tempFile.toPath(), this.stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	static String stateFileName(String bucket, String key, File file) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update((bucket + "\n" + key + "\n" + file.getAbsolutePath()).getBytes(StandardCharsets.UTF_8));
+			return BinaryUtils.toHex(digest.digest()) + ".properties";
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not supported", e);
+		}
+	}
+	
+	/**
+	 * @param metadata the metadata of the upload
+	 * @param acl      the canned ACL of the upload or null
+	 * @return a hash of everything that is set when the multipart upload is initiated
+	 */
+	static String requestHash(ObjectMetadata metadata, CannedAccessControlList acl) {
+		StringBuilder request = new StringBuilder();
+		for (Map.Entry<String, Object> header : new TreeMap<>(metadata.getRawMetadata()).entrySet()) {
+			request.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+		}
+		for (Map.Entry<String, String> userMetadata : new TreeMap<>(metadata.getUserMetadata()).entrySet()) {
+			request.append("x-amz-meta-").append(userMetadata.getKey()).append(':').append(userMetadata.getValue()).append('\n');
+		}
+		request.append("acl:").append(acl);
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(request.toString().getBytes(StandardCharsets.UTF_8));
+			return BinaryUtils.toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not supported", e);
+		}
+	}
+	
+	/**
+	 * The persisted state of a multipart upload.
+	 */
+	static final class State {
+		
+		private final String uploadId;
+		private final long partSize;
+		private final long length;
+		private final long lastModified;
+		private final String requestHash;
+		private final Map<Integer, String> parts = new TreeMap<>();
+		
+		State(String uploadId, long partSize, long length, long lastModified, String requestHash) {
+			this.uploadId = uploadId;
+			this.partSize = partSize;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.requestHash = requestHash;
+		}
+		
+		int getPartCount() {
+			return this.length == 0 ? 1 : (int) ((this.length + this.partSize - 1) / this.partSize);
+		}
+		
+		long getPartOffset(int partNumber) {
+			return (partNumber - 1) * this.partSize;
+		}
+		
+		long getPartLength(int partNumber) {
+			return Math.min(this.partSize, this.length - this.getPartOffset(partNumber));
+		}
+	}
+}
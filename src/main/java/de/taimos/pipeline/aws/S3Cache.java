@@ -0,0 +1,144 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.taimos.pipeline.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.BinaryUtils;
+
+import de.taimos.pipeline.aws.utils.AntPathFilter;
+import de.taimos.pipeline.aws.utils.ArchiveFormat;
+import de.taimos.pipeline.aws.utils.ETagUtils;
+import de.taimos.pipeline.aws.utils.MatchingFileWalker;
+
+/**
+ * Computes the keys of cache archives and finds the best archive to restore.
+ * <p>
+ * A cache archive is stored as {@code <path>/<key>-<hash>.<format>}, where the hash is computed from the content of
+ * the files the cache depends on, e.g. lock files. Archives of older states can be found by the prefix of their key.
+ */
+public final class S3Cache {
+	
+	private S3Cache() {
+		//
+	}
+	
+	/**
+	 * @param path   the virtual directory of the cache archives
+	 * @param key    the key of the cache
+	 * @param hash   the hash of the files the cache depends on or null
+	 * @param format the archive format
+	 * @return the key of the cache archive
+	 */
+	public static String objectKey(String path, String key, String hash, ArchiveFormat format) {
+		StringBuilder objectKey = new StringBuilder(RemoteObjectIndex.directoryPrefix(path)).append(key);
+		if (hash != null) {
+			objectKey.append(key.isEmpty() || key.endsWith("-") ? "" : "-").append(hash);
+		}
+		return objectKey.append('.').append(format.getName()).toString();
+	}
+	
+	/**
+	 * Hashes the paths and contents of all matching files, so the hash changes whenever one of them is added, removed or changed.
+	 *
+	 * @param baseDir  the directory to search
+	 * @param patterns comma separated Ant style patterns of the files to hash
+	 * @return the hex SHA-256 of the matching files
+	 * @throws IOException              if a file cannot be read
+	 * @throws IllegalArgumentException if no file matches
+	 */
+	public static String hashFiles(File baseDir, String patterns) throws IOException {
+		final Map<String, File> files = new TreeMap<>();
+		MatchingFileWalker.walk(baseDir, new AntPathFilter(patterns, null, true), new MatchingFileWalker.Visitor() {
+			@Override
+			public void visitFile(File file, String relativePath) {
+				// the same on all platforms, so agents share the cache
+				files.put(relativePath.replace('\\', '/'), file);
+			}
+		});
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Hashing " + patterns + " was interrupted");
+		}
+		if (files.isEmpty()) {
+			throw new IllegalArgumentException("No files match " + patterns);
+		}
+		MessageDigest digest = newSha256();
+		for (Map.Entry<String, File> entry : files.entrySet()) {
+			digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(ETagUtils.sha256Hex(entry.getValue()).getBytes(StandardCharsets.UTF_8));
+		}
+		return BinaryUtils.toHex(digest.digest());
+	}
+	
+	/**
+	 * Finds the most recent cache archive whose key starts with one of the given keys. The keys are tried in order.
+	 *
+	 * @param s3Client    the client to use
+	 * @param bucket      the bucket name
+	 * @param path        the virtual directory of the cache archives
+	 * @param restoreKeys the key prefixes to try
+	 * @param format      the archive format
+	 * @return the key of the archive to restore or null if there is none
+	 */
+	public static String findNewest(AmazonS3 s3Client, String bucket, String path, String[] restoreKeys, ArchiveFormat format) {
+		String suffix = "." + format.getName();
+		for (String restoreKey : restoreKeys) {
+			S3ObjectSummary newest = null;
+			ListObjectsRequest request = new ListObjectsRequest().withBucketName(bucket).withPrefix(RemoteObjectIndex.directoryPrefix(path) + restoreKey);
+			ObjectListing objectListing = s3Client.listObjects(request);
+			while (true) {
+				for (S3ObjectSummary summary : objectListing.getObjectSummaries()) {
+					if (summary.getKey().endsWith(suffix) && (newest == null || summary.getLastModified().after(newest.getLastModified()))) {
+						newest = summary;
+					}
+				}
+				if (!objectListing.isTruncated()) {
+					break;
+				}
+				objectListing = s3Client.listNextBatchOfObjects(objectListing);
+			}
+			if (newest != null) {
+				return newest.getKey();
+			}
+		}
+		return null;
+	}
+	
+	private static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not supported", e);
+		}
+	}
+}
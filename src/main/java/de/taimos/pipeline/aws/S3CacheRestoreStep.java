@@ -0,0 +1,207 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.taimos.pipeline.aws;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.jenkinsci.remoting.RoleChecker;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.google.common.base.Preconditions;
+
+import de.taimos.pipeline.aws.utils.ArchiveFormat;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Restores a directory of the workspace from a cache archive on S3. If there is no archive with the exact key, the
+ * most recent archive matching one of the restore keys is used. The step returns the key of the restored archive
+ * or null if none was found.
+ */
+public class S3CacheRestoreStep extends AbstractS3CacheStep {
+	
+	private String[] restoreKeys;
+	
+	@DataBoundConstructor
+	public S3CacheRestoreStep(String bucket, String key, String dir, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
+		super(bucket, key, dir, pathStyleAccessEnabled, payloadSigningEnabled);
+	}
+	
+	public String[] getRestoreKeys() {
+		if (this.restoreKeys != null) {
+			return this.restoreKeys.clone();
+		} else {
+			return null;
+		}
+	}
+	
+	@DataBoundSetter
+	public void setRestoreKeys(String[] restoreKeys) {
+		if (restoreKeys != null) {
+			this.restoreKeys = restoreKeys.clone();
+		} else {
+			this.restoreKeys = null;
+		}
+	}
+	
+	@Extension
+	public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+		
+		public DescriptorImpl() {
+			super(Execution.class);
+		}
+		
+		@Override
+		public String getFunctionName() {
+			return "s3CacheRestore";
+		}
+		
+		@Override
+		public String getDisplayName() {
+			return "Restore a directory from cache on S3";
+		}
+	}
+	
+	public static class Execution extends AbstractStepExecutionImpl {
+		
+		protected static final long serialVersionUID = 1L;
+		@Inject
+		protected transient S3CacheRestoreStep step;
+		@StepContextParameter
+		protected transient EnvVars envVars;
+		@StepContextParameter
+		protected transient FilePath workspace;
+		@StepContextParameter
+		protected transient TaskListener listener;
+		private transient Thread executionThread;
+		private transient volatile Throwable stopCause;
+		
+		@Override
+		public boolean start() throws Exception {
+			final String bucket = this.step.getBucket();
+			final String key = this.step.getKey();
+			final String dir = this.step.getDir();
+			final String path = this.step.getPath();
+			final String hashFiles = this.step.getHashFiles();
+			final String[] restoreKeys = this.step.getRestoreKeys() != null ? this.step.getRestoreKeys() : new String[0];
+			
+			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
+			Preconditions.checkArgument(key != null && !key.isEmpty(), "Key must not be null or empty");
+			Preconditions.checkArgument(dir != null && !dir.isEmpty(), "Dir must not be null or empty");
+			final ArchiveFormat format = ArchiveFormat.fromName(this.step.getFormat());
+			
+			this.executionThread = new Thread("s3CacheRestore") {
+				@Override
+				public void run() {
+					try {
+						String objectKey = Execution.this.workspace.act(new RemoteCacheRestorer(Execution.this.step.createS3ClientOptions(), Execution.this.envVars, Execution.this.listener, bucket, key, dir, path, hashFiles, restoreKeys, format));
+						Execution.this.getContext().onSuccess(objectKey);
+					} catch (Exception e) {
+						// when stopped, report the cause of the stop instead of the resulting interruption
+						Throwable stopCause = Execution.this.stopCause;
+						Execution.this.getContext().onFailure(stopCause != null ? stopCause : e);
+					}
+				}
+			};
+			this.executionThread.start();
+			return false;
+		}
+		
+		@Override
+		public void stop(@Nonnull Throwable cause) throws Exception {
+			// interrupting the thread cancels the remote call, which stops extracting on the agent
+			// the thread completes the context, so it is not completed twice
+			if (this.executionThread != null) {
+				this.stopCause = cause;
+				this.executionThread.interrupt();
+			} else {
+				this.getContext().onFailure(cause);
+			}
+		}
+		
+	}
+	
+	private static class RemoteCacheRestorer implements FilePath.FileCallable<String> {
+		
+		protected static final long serialVersionUID = 1L;
+		private final S3ClientOptions amazonS3ClientOptions;
+		private final EnvVars envVars;
+		private final TaskListener taskListener;
+		private final String bucket;
+		private final String key;
+		private final String dir;
+		private final String path;
+		private final String hashFiles;
+		private final String[] restoreKeys;
+		private final ArchiveFormat format;
+		
+		RemoteCacheRestorer(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String bucket, String key, String dir, String path, String hashFiles, String[] restoreKeys, ArchiveFormat format) {
+			this.amazonS3ClientOptions = amazonS3ClientOptions;
+			this.envVars = envVars;
+			this.taskListener = taskListener;
+			this.bucket = bucket;
+			this.key = key;
+			this.dir = dir;
+			this.path = path;
+			this.hashFiles = hashFiles;
+			this.restoreKeys = restoreKeys;
+			this.format = format;
+		}
+		
+		@Override
+		public String invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+			String hash = this.hashFiles != null ? S3Cache.hashFiles(workspace, this.hashFiles) : null;
+			String objectKey = S3Cache.objectKey(this.path, this.key, hash, this.format);
+			try (TransferManagerRegistry.Lease lease = TransferManagerRegistry.acquire(this.amazonS3ClientOptions, this.envVars)) {
+				AmazonS3 s3Client = lease.getTransferManager().getAmazonS3Client();
+				if (!s3Client.doesObjectExist(this.bucket, objectKey)) {
+					String fallbackKey = S3Cache.findNewest(s3Client, this.bucket, this.path, this.restoreKeys, this.format);
+					if (fallbackKey == null) {
+						this.taskListener.getLogger().format("Cache miss for s3://%s/%s%n", this.bucket, objectKey);
+						return null;
+					}
+					this.taskListener.getLogger().format("Cache miss for s3://%s/%s, restoring s3://%s/%s instead%n", this.bucket, objectKey, this.bucket, fallbackKey);
+					objectKey = fallbackKey;
+				}
+				File target = new File(workspace, this.dir);
+				this.taskListener.getLogger().format("Restoring %s from cache s3://%s/%s%n", target, this.bucket, objectKey);
+				ArchiveTransfer.extract(s3Client, this.bucket, objectKey, this.format, target, this.taskListener.getLogger());
+			}
+			return objectKey;
+		}
+		
+		@Override
+		public void checkRoles(RoleChecker roleChecker) throws SecurityException {
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.taimos.pipeline.aws;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.jenkinsci.remoting.RoleChecker;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.base.Preconditions;
+
+import de.taimos.pipeline.aws.utils.AntPathFilter;
+import de.taimos.pipeline.aws.utils.ArchiveFormat;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Saves a directory of the workspace as a cache archive on S3, unless an archive with the same key already exists.
+ * The step returns the key of the archive.
+ */
+public class S3CacheSaveStep extends AbstractS3CacheStep {
+	
+	@DataBoundConstructor
+	public S3CacheSaveStep(String bucket, String key, String dir, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
+		super(bucket, key, dir, pathStyleAccessEnabled, payloadSigningEnabled);
+	}
+	
+	@DataBoundSetter
+	public void setMultipartThreshold(final Long multipartThreshold) {
+		this.multipartThreshold = multipartThreshold;
+	}
+	
+	@DataBoundSetter
+	public void setMultipartPartSize(final Long multipartPartSize) {
+		this.multipartPartSize = multipartPartSize;
+	}
+	
+	@Extension
+	public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+		
+		public DescriptorImpl() {
+			super(Execution.class);
+		}
+		
+		@Override
+		public String getFunctionName() {
+			return "s3CacheSave";
+		}
+		
+		@Override
+		public String getDisplayName() {
+			return "Save a directory as cache on S3";
+		}
+	}
+	
+	public static class Execution extends AbstractStepExecutionImpl {
+		
+		protected static final long serialVersionUID = 1L;
+		@Inject
+		protected transient S3CacheSaveStep step;
+		@StepContextParameter
+		protected transient EnvVars envVars;
+		@StepContextParameter
+		protected transient FilePath workspace;
+		@StepContextParameter
+		protected transient TaskListener listener;
+		private transient Thread executionThread;
+		private transient volatile Throwable stopCause;
+		
+		@Override
+		public boolean start() throws Exception {
+			final String bucket = this.step.getBucket();
+			final String key = this.step.getKey();
+			final String dir = this.step.getDir();
+			final String path = this.step.getPath();
+			final String hashFiles = this.step.getHashFiles();
+			
+			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
+			Preconditions.checkArgument(key != null && !key.isEmpty(), "Key must not be null or empty");
+			Preconditions.checkArgument(dir != null && !dir.isEmpty(), "Dir must not be null or empty");
+			final ArchiveFormat format = ArchiveFormat.fromName(this.step.getFormat());
+			Preconditions.checkArgument(format.canCreate(), "Format %s can only be extracted", this.step.getFormat());
+			
+			this.executionThread = new Thread("s3CacheSave") {
+				@Override
+				public void run() {
+					try {
+						String objectKey = Execution.this.workspace.act(new RemoteCacheSaver(Execution.this.step.createS3ClientOptions(), Execution.this.envVars, Execution.this.listener, bucket, key, dir, path, hashFiles, format));
+						Execution.this.getContext().onSuccess(objectKey);
+					} catch (Exception e) {
+						// when stopped, report the cause of the stop instead of the resulting interruption
+						Throwable stopCause = Execution.this.stopCause;
+						Execution.this.getContext().onFailure(stopCause != null ? stopCause : e);
+					}
+				}
+			};
+			this.executionThread.start();
+			return false;
+		}
+		
+		@Override
+		public void stop(@Nonnull Throwable cause) throws Exception {
+			// interrupting the thread cancels the remote call, which aborts the upload on the agent
+			// the thread completes the context, so it is not completed twice
+			if (this.executionThread != null) {
+				this.stopCause = cause;
+				this.executionThread.interrupt();
+			} else {
+				this.getContext().onFailure(cause);
+			}
+		}
+		
+	}
+	
+	private static class RemoteCacheSaver implements FilePath.FileCallable<String> {
+		
+		protected static final long serialVersionUID = 1L;
+		private final S3ClientOptions amazonS3ClientOptions;
+		private final EnvVars envVars;
+		private final TaskListener taskListener;
+		private final String bucket;
+		private final String key;
+		private final String dir;
+		private final String path;
+		private final String hashFiles;
+		private final ArchiveFormat format;
+		
+		RemoteCacheSaver(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String bucket, String key, String dir, String path, String hashFiles, ArchiveFormat format) {
+			this.amazonS3ClientOptions = amazonS3ClientOptions;
+			this.envVars = envVars;
+			this.taskListener = taskListener;
+			this.bucket = bucket;
+			this.key = key;
+			this.dir = dir;
+			this.path = path;
+			this.hashFiles = hashFiles;
+			this.format = format;
+		}
+		
+		@Override
+		public String invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+			String hash = this.hashFiles != null ? S3Cache.hashFiles(workspace, this.hashFiles) : null;
+			String objectKey = S3Cache.objectKey(this.path, this.key, hash, this.format);
+			try (TransferManagerRegistry.Lease lease = TransferManagerRegistry.acquire(this.amazonS3ClientOptions, this.envVars)) {
+				AmazonS3 s3Client = lease.getTransferManager().getAmazonS3Client();
+				if (s3Client.doesObjectExist(this.bucket, objectKey)) {
+					this.taskListener.getLogger().format("Cache s3://%s/%s already exists, not saving%n", this.bucket, objectKey);
+					return objectKey;
+				}
+				File source = new File(workspace, this.dir);
+				if (!source.isDirectory()) {
+					this.taskListener.getLogger().format("Not saving cache, %s is not a directory%n", source);
+					return null;
+				}
+				this.taskListener.getLogger().format("Saving %s to cache s3://%s/%s%n", source, this.bucket, objectKey);
+				ArchiveTransfer.upload(lease, this.bucket, objectKey, source, new AntPathFilter(null, null, false), this.format, new ObjectMetadata(), null, this.taskListener.getLogger());
+			}
+			return objectKey;
+		}
+		
+		@Override
+		public void checkRoles(RoleChecker roleChecker) throws SecurityException {
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.taimos.pipeline.aws;
+
+import java.io.Serializable;
+
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+import hudson.EnvVars;
+
+/**
+ * Serializable description of the S3 client settings of a step, so agent side callables can
+ * create an equally configured client and clients can be shared between steps with the same settings.
+ * <p>
+ * The multipart settings are optional; unset values fall back to the defaults set by withAWS and then to the SDK defaults.
+ */
+public class S3ClientOptions implements Serializable {
+	
+	static final String AWS_S3_MULTIPART_THRESHOLD = "AWS_S3_MULTIPART_THRESHOLD";
+	static final String AWS_S3_MULTIPART_PART_SIZE = "AWS_S3_MULTIPART_PART_SIZE";
+	static final String AWS_S3_MAX_CONNECTIONS = "AWS_S3_MAX_CONNECTIONS";
+	static final String AWS_S3_TRANSFER_THREADS = "AWS_S3_TRANSFER_THREADS";
+	static final String AWS_S3_MAX_BYTES_PER_SECOND = "AWS_S3_MAX_BYTES_PER_SECOND";
+	
+	/**
+	 * The smallest part size S3 accepts for all but the last part of a multipart upload.
+	 */
+	static final long MINIMUM_PART_SIZE = 5L * 1024 * 1024;
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final boolean pathStyleAccessEnabled;
+	private final boolean payloadSigningEnabled;
+	private final Long multipartThreshold;
+	private final Long multipartPartSize;
+	private final Integer maxConnections;
+	private final Integer transferThreads;
+	private final Long maxBytesPerSecond;
+	
+	public S3ClientOptions(boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
+		this(pathStyleAccessEnabled, payloadSigningEnabled, null, null, null, null);
+	}
+	
+	public S3ClientOptions(boolean pathStyleAccessEnabled, boolean payloadSigningEnabled, Long multipartThreshold, Long multipartPartSize, Integer maxConnections, Integer transferThreads) {
+		this(pathStyleAccessEnabled, payloadSigningEnabled, multipartThreshold, multipartPartSize, maxConnections, transferThreads, null);
+	}
+	
+	public S3ClientOptions(boolean pathStyleAccessEnabled, boolean payloadSigningEnabled, Long multipartThreshold, Long multipartPartSize, Integer maxConnections, Integer transferThreads, Long maxBytesPerSecond) {
+		Preconditions.checkArgument(multipartThreshold == null || multipartThreshold > 0, "MultipartThreshold must be positive");
+		Preconditions.checkArgument(multipartPartSize == null || multipartPartSize >= MINIMUM_PART_SIZE, "MultipartPartSize must be at least 5 MB");
+		Preconditions.checkArgument(maxConnections == null || maxConnections > 0, "MaxConnections must be positive");
+		Preconditions.checkArgument(transferThreads == null || transferThreads > 0, "TransferThreads must be positive");
+		Preconditions.checkArgument(maxBytesPerSecond == null || maxBytesPerSecond > 0, "MaxBytesPerSecond must be positive");
+		this.pathStyleAccessEnabled = pathStyleAccessEnabled;
+		this.payloadSigningEnabled = payloadSigningEnabled;
+		this.multipartThreshold = multipartThreshold;
+		this.multipartPartSize = multipartPartSize;
+		this.maxConnections = maxConnections;
+		this.transferThreads = transferThreads;
+		this.maxBytesPerSecond = maxBytesPerSecond;
+	}
+	
+	public boolean isPathStyleAccessEnabled() {
+		return this.pathStyleAccessEnabled;
+	}
+	
+	public boolean isPayloadSigningEnabled() {
+		return this.payloadSigningEnabled;
+	}
+	
+	public Long getMultipartThreshold() {
+		return this.multipartThreshold;
+	}
+	
+	public Long getMultipartPartSize() {
+		return this.multipartPartSize;
+	}
+	
+	public Integer getMaxConnections() {
+		return this.maxConnections;
+	}
+	
+	public Integer getTransferThreads() {
+		return this.transferThreads;
+	}
+	
+	public Long getMaxBytesPerSecond() {
+		return this.maxBytesPerSecond;
+	}
+	
+	/**
+	 * Fills all unset multipart settings with the defaults configured by withAWS.
+	 *
+	 * @param vars the environment of the step
+	 * @return the options to use for the step
+	 */
+	public S3ClientOptions withDefaults(EnvVars vars) {
+		return new S3ClientOptions(this.pathStyleAccessEnabled, this.payloadSigningEnabled,
+								   this.multipartThreshold != null ? this.multipartThreshold : parseLong(vars, AWS_S3_MULTIPART_THRESHOLD),
+								   this.multipartPartSize != null ? this.multipartPartSize : parseLong(vars, AWS_S3_MULTIPART_PART_SIZE),
+								   this.maxConnections != null ? this.maxConnections : parseInteger(vars, AWS_S3_MAX_CONNECTIONS),
+								   this.transferThreads != null ? this.transferThreads : parseInteger(vars, AWS_S3_TRANSFER_THREADS),
+								   this.maxBytesPerSecond != null ? this.maxBytesPerSecond : parseLong(vars, AWS_S3_MAX_BYTES_PER_SECOND));
+	}
+	
+	public AmazonS3ClientBuilder createAmazonS3ClientBuilder() {
+		return AmazonS3ClientBuilder.standard()
+				.withPathStyleAccessEnabled(this.isPathStyleAccessEnabled())
+				.withPayloadSigningEnabled(this.isPayloadSigningEnabled());
+	}
+	
+	/**
+	 * Creates a client for the given environment, applying the connection limit on top of the common client configuration.
+	 * If a bandwidth limit is set, the client gets a throttle of its own in addition to the one shared by the whole JVM.
+	 *
+	 * @param vars the environment containing the AWS settings
+	 * @return the new client
+	 */
+	public AmazonS3 createAmazonS3(EnvVars vars) {
+		AmazonS3ClientBuilder builder = AWSClientFactory.configureBuilder(this.createAmazonS3ClientBuilder(), vars);
+		if (this.maxConnections != null) {
+			builder.getClientConfiguration().setMaxConnections(this.maxConnections);
+		}
+		RequestHandler2 throttle = BandwidthThrottle.createRequestHandler(this.maxBytesPerSecond != null ? new BandwidthThrottle(this.maxBytesPerSecond) : null, BandwidthThrottle.global());
+		if (throttle != null) {
+			builder.withRequestHandlers(throttle);
+		}
+		return builder.build();
+	}
+	
+	/**
+	 * @param builder the builder to configure
+	 * @return the builder with the configured multipart settings applied
+	 */
+	public TransferManagerBuilder configure(TransferManagerBuilder builder) {
+		if (this.multipartThreshold != null) {
+			builder.setMultipartUploadThreshold(this.multipartThreshold);
+		}
+		if (this.multipartPartSize != null) {
+			builder.setMinimumUploadPartSize(this.multipartPartSize);
+		}
+		return builder;
+	}
+	
+	private static Long parseLong(EnvVars vars, String name) {
+		String value = vars.get(name);
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		try {
+			return Long.valueOf(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for " + name + ": " + value, e);
+		}
+	}
+	
+	private static Integer parseInteger(EnvVars vars, String name) {
+		Long value = parseLong(vars, name);
+		return value != null ? Integer.valueOf(value.intValue()) : null;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof S3ClientOptions)) {
+			return false;
+		}
+		
+		S3ClientOptions that = (S3ClientOptions) o;
+		
+		return this.pathStyleAccessEnabled == that.pathStyleAccessEnabled
+				&& this.payloadSigningEnabled == that.payloadSigningEnabled
+				&& Objects.equal(this.multipartThreshold, that.multipartThreshold)
+				&& Objects.equal(this.multipartPartSize, that.multipartPartSize)
+				&& Objects.equal(this.maxConnections, that.maxConnections)
+				&& Objects.equal(this.transferThreads, that.transferThreads)
+				&& Objects.equal(this.maxBytesPerSecond, that.maxBytesPerSecond);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(this.pathStyleAccessEnabled, this.payloadSigningEnabled, this.multipartThreshold, this.multipartPartSize, this.maxConnections, this.transferThreads, this.maxBytesPerSecond);
+	}
+}
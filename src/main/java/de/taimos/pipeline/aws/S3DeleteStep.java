@@ -102,6 +102,8 @@ public class S3DeleteStep extends AbstractS3Step {
 		protected transient FilePath workspace;
 		@StepContextParameter
 		protected transient TaskListener listener;
+		private transient Thread executionThread;
+		private transient volatile Throwable stopCause;
 		
 		@Override
 		public boolean start() throws Exception {
@@ -110,12 +112,12 @@ public class S3DeleteStep extends AbstractS3Step {
 			
 			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
 			
-			new Thread("s3Delete") {
+			this.executionThread = new Thread("s3Delete") {
 				@Override
 				public void run() {
 					try {
 						Execution.this.listener.getLogger().format("Deleting s3://%s/%s%n", bucket, path);
-						AmazonS3 s3Client = AWSClientFactory.create(Execution.this.step.createAmazonS3ClientBuilder(), Execution.this.envVars);
+						AmazonS3 s3Client = Execution.this.step.createS3ClientOptions().withDefaults(Execution.this.envVars).createAmazonS3(Execution.this.envVars);
 						
 						if (!path.endsWith("/")) {
 							// See if the thing that we were given is a file.
@@ -142,6 +144,7 @@ public class S3DeleteStep extends AbstractS3Step {
 							// popping the first item off and working on it.  When they're
 							// all gone, we'll be done.
 							while (folders.size() > 0) {
+								checkInterrupted();
 								// This is the folder to investigate.
 								String folder = folders.remove(0);
 								
@@ -170,6 +173,7 @@ public class S3DeleteStep extends AbstractS3Step {
 									if (!objectListing.isTruncated()) {
 										break;
 									}
+									checkInterrupted();
 									// Otherwise, we need to get the next batch and repeat.
 									objectListing = s3Client.listNextBatchOfObjects(objectListing);
 								}
@@ -177,6 +181,7 @@ public class S3DeleteStep extends AbstractS3Step {
 							
 							// Go through all of the objects that we want to delete and actually delete them.
 							for (String objectToDelete : objectsToDelete) {
+								checkInterrupted();
 								Execution.this.listener.getLogger().format("Deleting object at s3://%s/%s%n", bucket, objectToDelete);
 								s3Client.deleteObject(bucket, objectToDelete);
 							}
@@ -184,17 +189,33 @@ public class S3DeleteStep extends AbstractS3Step {
 						
 						Execution.this.listener.getLogger().println("Delete complete");
 						Execution.this.getContext().onSuccess(null);
-					} catch (RuntimeException e) {
-						Execution.this.getContext().onFailure(e);
+					} catch (Exception e) {
+						// when stopped, report the cause of the stop instead of the resulting interruption
+						Throwable stopCause = Execution.this.stopCause;
+						Execution.this.getContext().onFailure(stopCause != null ? stopCause : e);
 					}
 				}
-			}.start();
+			};
+			this.executionThread.start();
 			return false;
 		}
 		
 		@Override
 		public void stop(@Nonnull Throwable cause) throws Exception {
-			//
+			// the thread stops listing and deleting at the next object
+			// the thread completes the context, so it is not completed twice
+			if (this.executionThread != null) {
+				this.stopCause = cause;
+				this.executionThread.interrupt();
+			} else {
+				this.getContext().onFailure(cause);
+			}
+		}
+		
+		private static void checkInterrupted() throws InterruptedException {
+			if (Thread.interrupted()) {
+				throw new InterruptedException("Delete was interrupted");
+			}
 		}
 		
 	}
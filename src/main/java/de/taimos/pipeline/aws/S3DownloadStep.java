@@ -34,28 +34,38 @@ import org.jenkinsci.remoting.RoleChecker;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 
-import com.amazonaws.event.ProgressEvent;
-import com.amazonaws.event.ProgressEventType;
-import com.amazonaws.event.ProgressListener;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.transfer.Download;
 import com.amazonaws.services.s3.transfer.MultipleFileDownload;
 import com.amazonaws.services.s3.transfer.TransferManager;
-import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import com.google.common.base.Preconditions;
 
+import de.taimos.pipeline.aws.utils.AntPathFilter;
+import de.taimos.pipeline.aws.utils.ArchiveFormat;
+import de.taimos.pipeline.aws.utils.TransferUtils;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
 
-public class S3DownloadStep extends AbstractS3Step {
+public class S3DownloadStep extends AbstractS3TransferStep {
 	
 	private final String file;
 	private final String bucket;
 	private String path = "";
 	private boolean force = false;
+	private int progressInterval = TransferProgressReporter.DEFAULT_INTERVAL_SECONDS;
+	private String archive;
+	private boolean extract = false;
+	private boolean parallelRanges = false;
+	private boolean sync = false;
+	private boolean deleteExtraneous = false;
+	private String includePathPattern;
+	private String excludePathPattern;
+	private String cacheDir;
+	private long cacheMaxBytes = DownloadCache.DEFAULT_MAX_BYTES;
+	private boolean conditional = false;
 	
 	@DataBoundConstructor
 	public S3DownloadStep(String file, String bucket, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
@@ -90,6 +100,110 @@ public class S3DownloadStep extends AbstractS3Step {
 		this.path = path;
 	}
 	
+	public int getProgressInterval() {
+		return this.progressInterval;
+	}
+	
+	@DataBoundSetter
+	public void setProgressInterval(int progressInterval) {
+		this.progressInterval = progressInterval;
+	}
+	
+	public String getArchive() {
+		return this.archive;
+	}
+	
+	@DataBoundSetter
+	public void setArchive(String archive) {
+		this.archive = archive;
+	}
+	
+	public boolean isExtract() {
+		return this.extract;
+	}
+	
+	@DataBoundSetter
+	public void setExtract(boolean extract) {
+		this.extract = extract;
+	}
+	
+	public boolean isParallelRanges() {
+		return this.parallelRanges;
+	}
+	
+	@DataBoundSetter
+	public void setParallelRanges(boolean parallelRanges) {
+		this.parallelRanges = parallelRanges;
+	}
+	
+	@DataBoundSetter
+	public void setMultipartPartSize(final Long multipartPartSize) {
+		this.multipartPartSize = multipartPartSize;
+	}
+	
+	public boolean isSync() {
+		return this.sync;
+	}
+	
+	@DataBoundSetter
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+	
+	public boolean isDeleteExtraneous() {
+		return this.deleteExtraneous;
+	}
+	
+	@DataBoundSetter
+	public void setDeleteExtraneous(boolean deleteExtraneous) {
+		this.deleteExtraneous = deleteExtraneous;
+	}
+	
+	public String getIncludePathPattern() {
+		return this.includePathPattern;
+	}
+	
+	@DataBoundSetter
+	public void setIncludePathPattern(String includePathPattern) {
+		this.includePathPattern = includePathPattern;
+	}
+	
+	public String getExcludePathPattern() {
+		return this.excludePathPattern;
+	}
+	
+	@DataBoundSetter
+	public void setExcludePathPattern(String excludePathPattern) {
+		this.excludePathPattern = excludePathPattern;
+	}
+	
+	public String getCacheDir() {
+		return this.cacheDir;
+	}
+	
+	@DataBoundSetter
+	public void setCacheDir(String cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+	
+	public long getCacheMaxBytes() {
+		return this.cacheMaxBytes;
+	}
+	
+	@DataBoundSetter
+	public void setCacheMaxBytes(long cacheMaxBytes) {
+		this.cacheMaxBytes = cacheMaxBytes;
+	}
+	
+	public boolean isConditional() {
+		return this.conditional;
+	}
+	
+	@DataBoundSetter
+	public void setConditional(boolean conditional) {
+		this.conditional = conditional;
+	}
+	
 	@Extension
 	public static class DescriptorImpl extends AbstractStepDescriptorImpl {
 		
@@ -119,6 +233,8 @@ public class S3DownloadStep extends AbstractS3Step {
 		protected transient FilePath workspace;
 		@StepContextParameter
 		protected transient TaskListener listener;
+		private transient Thread executionThread;
+		private transient volatile Throwable stopCause;
 		
 		@Override
 		public boolean start() throws Exception {
@@ -126,15 +242,46 @@ public class S3DownloadStep extends AbstractS3Step {
 			final String bucket = this.step.getBucket();
 			final String path = this.step.getPath();
 			final boolean force = this.step.isForce();
+			final int progressInterval = this.step.getProgressInterval();
+			final String archive = this.step.getArchive();
+			final boolean extract = this.step.isExtract();
+			final boolean parallelRanges = this.step.isParallelRanges();
+			final boolean sync = this.step.isSync();
+			final boolean deleteExtraneous = this.step.isDeleteExtraneous();
+			final String includePathPattern = this.step.getIncludePathPattern();
+			final String excludePathPattern = this.step.getExcludePathPattern();
+			final String cacheDir = this.step.getCacheDir();
+			final long cacheMaxBytes = this.step.getCacheMaxBytes();
+			final boolean conditional = this.step.isConditional();
 			
 			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
+			Preconditions.checkArgument(progressInterval >= 0, "ProgressInterval must not be negative");
+			Preconditions.checkArgument(!sync || path == null || path.isEmpty() || path.endsWith("/"), "Sync can only be used for directories");
+			Preconditions.checkArgument(cacheMaxBytes > 0, "CacheMaxBytes must be positive");
+			if (conditional) {
+				Preconditions.checkArgument(path != null && !path.isEmpty() && !path.endsWith("/"), "Conditional can only be used for a single object");
+				Preconditions.checkArgument(archive == null && !extract && !parallelRanges && cacheDir == null, "Conditional cannot be used together with archive, extract, parallelRanges or cacheDir");
+			}
+			Preconditions.checkArgument(sync || !deleteExtraneous, "DeleteExtraneous can only be used together with sync");
+			Preconditions.checkArgument((includePathPattern == null && excludePathPattern == null) || path == null || path.isEmpty() || path.endsWith("/"), "IncludePathPattern and excludePathPattern can only be used for directories");
+			if (archive != null || extract) {
+				Preconditions.checkArgument(path != null && !path.isEmpty() && !path.endsWith("/"), "Path must point to an object when extracting an archive");
+			}
+			// an explicit archive format wins over the extension of the key
+			final ArchiveFormat archiveFormat = archive != null ? ArchiveFormat.fromName(archive) : extract ? ArchiveFormat.fromKey(path) : null;
+			if (archiveFormat != null) {
+				Preconditions.checkArgument(!parallelRanges && !sync, "ParallelRanges and sync cannot be used together with archive");
+				Preconditions.checkArgument(includePathPattern == null && excludePathPattern == null, "Archive cannot be used together with includePathPattern or excludePathPattern");
+				Preconditions.checkArgument(cacheDir == null, "Archive cannot be used together with cacheDir");
+			}
 			
-			new Thread("s3Download") {
+			this.executionThread = new Thread("s3Download") {
 				@Override
 				public void run() {
 					try {
 						Execution.this.listener.getLogger().format("Downloading s3://%s/%s to %s %n ", bucket, path, target.toURI());
-						if (target.exists()) {
+						// a sync or conditional download keeps the files that are up to date
+						if (!sync && !conditional && target.exists()) {
 							if (force) {
 								if (target.isDirectory()) {
 									target.deleteRecursive();
@@ -147,20 +294,30 @@ public class S3DownloadStep extends AbstractS3Step {
 								return;
 							}
 						}
-						target.act(new RemoteDownloader(Execution.this.step.createAmazonS3ClientBuilder(), Execution.this.envVars, Execution.this.listener, bucket, path));
+						target.act(new RemoteDownloader(Execution.this.step.createS3ClientOptions(), Execution.this.envVars, Execution.this.listener, bucket, path, progressInterval, archiveFormat, parallelRanges, sync, deleteExtraneous, includePathPattern, excludePathPattern, cacheDir, cacheMaxBytes, conditional));
 						Execution.this.listener.getLogger().println("Download complete");
 						Execution.this.getContext().onSuccess(null);
 					} catch (Exception e) {
-						Execution.this.getContext().onFailure(e);
+						// when stopped, report the cause of the stop instead of the resulting interruption
+						Throwable stopCause = Execution.this.stopCause;
+						Execution.this.getContext().onFailure(stopCause != null ? stopCause : e);
 					}
 				}
-			}.start();
+			};
+			this.executionThread.start();
 			return false;
 		}
 		
 		@Override
 		public void stop(@Nonnull Throwable cause) throws Exception {
-			//
+			// interrupting the thread cancels the remote call, which aborts the transfers on the agent
+			// the thread completes the context, so it is not completed twice
+			if (this.executionThread != null) {
+				this.stopCause = cause;
+				this.executionThread.interrupt();
+			} else {
+				this.getContext().onFailure(cause);
+			}
 		}
 		
 	}
@@ -169,44 +326,112 @@ public class S3DownloadStep extends AbstractS3Step {
 		
 		protected static final long serialVersionUID = 1L;
 		
-		private final transient AmazonS3ClientBuilder amazonS3ClientBuilder;
+		private final S3ClientOptions amazonS3ClientOptions;
 		private final EnvVars envVars;
 		private final TaskListener taskListener;
 		private final String bucket;
 		private final String path;
+		private final int progressInterval;
+		private final ArchiveFormat archive;
+		private final boolean parallelRanges;
+		private final boolean sync;
+		private final boolean deleteExtraneous;
+		private final String includePathPattern;
+		private final String excludePathPattern;
+		private final String cacheDir;
+		private final long cacheMaxBytes;
+		private final boolean conditional;
 		
-		RemoteDownloader(AmazonS3ClientBuilder amazonS3ClientBuilder, EnvVars envVars, TaskListener taskListener, String bucket, String path) {
-			this.amazonS3ClientBuilder = amazonS3ClientBuilder;
+		RemoteDownloader(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String bucket, String path, int progressInterval, ArchiveFormat archive, boolean parallelRanges, boolean sync, boolean deleteExtraneous, String includePathPattern, String excludePathPattern, String cacheDir, long cacheMaxBytes, boolean conditional) {
+			this.amazonS3ClientOptions = amazonS3ClientOptions;
 			this.envVars = envVars;
 			this.taskListener = taskListener;
 			this.bucket = bucket;
 			this.path = path;
+			this.progressInterval = progressInterval;
+			this.archive = archive;
+			this.parallelRanges = parallelRanges;
+			this.sync = sync;
+			this.deleteExtraneous = deleteExtraneous;
+			this.includePathPattern = includePathPattern;
+			this.excludePathPattern = excludePathPattern;
+			this.cacheDir = cacheDir;
+			this.cacheMaxBytes = cacheMaxBytes;
+			this.conditional = conditional;
 		}
 		
 		@Override
 		public Void invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
-			TransferManager mgr = TransferManagerBuilder.standard()
-					.withS3Client(AWSClientFactory.create(this.amazonS3ClientBuilder, this.envVars))
-					.build();
-			
-			if (this.path == null || this.path.isEmpty() || this.path.endsWith("/")) {
-				final MultipleFileDownload fileDownload = mgr.downloadDirectory(this.bucket, this.path, localFile);
-				fileDownload.waitForCompletion();
-				RemoteDownloader.this.taskListener.getLogger().println("Finished: " + fileDownload.getDescription());
+			try (TransferManagerRegistry.Lease lease = TransferManagerRegistry.acquire(this.amazonS3ClientOptions, this.envVars)) {
+				return this.invoke(lease, localFile);
+			}
+		}
+		
+		private Void invoke(TransferManagerRegistry.Lease lease, File localFile) throws IOException, InterruptedException {
+			TransferManager mgr = lease.getTransferManager();
+			if (this.archive != null) {
+				ArchiveTransfer.extract(mgr.getAmazonS3Client(), this.bucket, this.path, this.archive, localFile, this.taskListener.getLogger());
 				return null;
-			} else {
-				final Download download = mgr.download(this.bucket, this.path, localFile);
-				download.addProgressListener(new ProgressListener() {
-					@Override
-					public void progressChanged(ProgressEvent progressEvent) {
-						if (progressEvent.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
-							RemoteDownloader.this.taskListener.getLogger().println("Finished: " + download.getDescription());
-						}
+			}
+			DownloadCache cache = this.cacheDir != null ? new DownloadCache(new File(this.cacheDir), this.cacheMaxBytes) : null;
+			boolean singleObject = this.path != null && !this.path.isEmpty() && !this.path.endsWith("/");
+			if (singleObject) {
+				if (this.conditional) {
+					new ConditionalDownload(mgr.getAmazonS3Client(), this.taskListener.getLogger(), this.bucket, this.path, localFile).download();
+					return null;
+				}
+				if (cache == null) {
+					this.downloadObject(lease, localFile);
+					return null;
+				}
+				// a HEAD request tells the ETag, so a cached object is copied without transferring it again
+				ObjectMetadata metadata = mgr.getAmazonS3Client().getObjectMetadata(this.bucket, this.path);
+				try (DownloadCache.Entry entry = cache.acquire(this.bucket, this.path, metadata.getETag(), true)) {
+					if (entry.isCached()) {
+						this.taskListener.getLogger().format("Copying s3://%s/%s from the download cache%n", this.bucket, this.path);
+					} else {
+						entry.commit(this.downloadObject(lease, entry.getTempFile()));
 					}
-				});
-				download.waitForCompletion();
+					entry.copyTo(localFile);
+				}
 				return null;
 			}
+			try (TransferProgressReporter reporter = new TransferProgressReporter(this.taskListener.getLogger(), "Downloaded", this.progressInterval)) {
+				boolean filtered = this.includePathPattern != null || this.excludePathPattern != null;
+				if (this.sync || filtered || cache != null) {
+					// a single listing tells which objects match and which are missing or changed locally
+					RemoteObjectIndex index = RemoteObjectIndex.load(mgr.getAmazonS3Client(), this.bucket, this.path);
+					// the files are placed at their full key, like downloadDirectory does
+					File targetDir = new File(localFile, index.getPrefix());
+					AntPathFilter filter = new AntPathFilter(this.includePathPattern, this.excludePathPattern, false);
+					DirectoryDownload download = new DirectoryDownload(mgr, reporter, this.taskListener.getLogger(), this.bucket, targetDir);
+					download.setCache(cache);
+					download.download(index, filter, this.sync, this.deleteExtraneous);
+				} else {
+					MultipleFileDownload fileDownload = mgr.downloadDirectory(this.bucket, this.path, localFile);
+					reporter.add(fileDownload);
+					TransferUtils.waitForCompletion(fileDownload);
+				}
+			}
+			return null;
+		}
+		
+		private String downloadObject(TransferManagerRegistry.Lease lease, File file) throws IOException, InterruptedException {
+			TransferManager mgr = lease.getTransferManager();
+			if (this.parallelRanges) {
+				// the ranges are fetched on the transfer threads, so more threads and connections fetch more ranges at once
+				RangedDownload download = new RangedDownload(mgr.getAmazonS3Client(), lease.getExecutorService(), this.taskListener.getLogger(), this.bucket, this.path, file);
+				try (TransferProgressReporter reporter = new TransferProgressReporter(this.taskListener.getLogger(), "Downloaded", this.progressInterval)) {
+					download.setReporter(reporter);
+					return download.download(mgr.getConfiguration().getMinimumUploadPartSize(), BatchUpload.DEFAULT_RETRIES, BatchUpload.DEFAULT_RETRY_BACKOFF_MILLIS).getETag();
+				}
+			}
+			try (TransferProgressReporter reporter = new TransferProgressReporter(this.taskListener.getLogger(), "Downloaded", this.progressInterval)) {
+				Download download = mgr.download(this.bucket, this.path, file);
+				reporter.add(download);
+				TransferUtils.waitForCompletion(download);
+				return download.getObjectMetadata().getETag();
+			}
 		}
 		
 		@Override
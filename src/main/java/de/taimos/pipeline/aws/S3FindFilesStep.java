@@ -161,7 +161,7 @@ public class S3FindFilesStep extends AbstractS3Step {
 			
 			Execution.this.listener.getLogger().format("Searching s3://%s/%s for glob:'%s' %s%n", bucket, path, glob, onlyFiles ? "(only files)" : "");
 			
-			AmazonS3 s3Client = AWSClientFactory.create(Execution.this.step.createAmazonS3ClientBuilder(), Execution.this.envVars);
+			AmazonS3 s3Client = Execution.this.step.createS3ClientOptions().withDefaults(Execution.this.envVars).createAmazonS3(Execution.this.envVars);
 			
 			// Construct a PatternMatcher to match the files.
 			// Essentially, we're going to match against "${path}/${glob}".  Obviously,
@@ -0,0 +1,172 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.taimos.pipeline.aws;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+import de.taimos.pipeline.aws.utils.AntPathFilter;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+
+/**
+ * Settings for the objects of an upload whose path matches a pattern. Rules are checked in order and the first
+ * matching rule overrides the settings of the step for the object.
+ */
+public class S3MetadataRule extends AbstractDescribableImpl<S3MetadataRule> implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final String pattern;
+	private String cacheControl;
+	private String contentType;
+	private String[] metadatas;
+	private CannedAccessControlList acl;
+	private transient AntPathFilter filter;
+	
+	@DataBoundConstructor
+	public S3MetadataRule(String pattern) {
+		this.pattern = pattern;
+	}
+	
+	public String getPattern() {
+		return this.pattern;
+	}
+	
+	public String getCacheControl() {
+		return this.cacheControl;
+	}
+	
+	@DataBoundSetter
+	public void setCacheControl(String cacheControl) {
+		this.cacheControl = cacheControl;
+	}
+	
+	public String getContentType() {
+		return this.contentType;
+	}
+	
+	@DataBoundSetter
+	public void setContentType(String contentType) {
+		this.contentType = contentType;
+	}
+	
+	public String[] getMetadatas() {
+		if (this.metadatas != null) {
+			return this.metadatas.clone();
+		} else {
+			return null;
+		}
+	}
+	
+	@DataBoundSetter
+	public void setMetadatas(String[] metadatas) {
+		if (metadatas != null) {
+			this.metadatas = metadatas.clone();
+		} else {
+			this.metadatas = null;
+		}
+	}
+	
+	public CannedAccessControlList getAcl() {
+		return this.acl;
+	}
+	
+	@DataBoundSetter
+	public void setAcl(CannedAccessControlList acl) {
+		this.acl = acl;
+	}
+	
+	/**
+	 * @param relativePath the path of the file relative to the working directory
+	 * @return true if the rule applies to the file
+	 */
+	public boolean matches(String relativePath) {
+		if (this.filter == null) {
+			// compiled once and reused for all files of the upload
+			this.filter = new AntPathFilter(this.pattern, null, false);
+		}
+		return this.filter.matches(relativePath);
+	}
+	
+	/**
+	 * Overrides the settings of the request with the ones this rule defines. User metadata is merged.
+	 *
+	 * @param request the upload of the file
+	 */
+	public void apply(PutObjectRequest request) {
+		ObjectMetadata metadata = request.getMetadata() != null ? request.getMetadata() : new ObjectMetadata();
+		if (this.cacheControl != null && !this.cacheControl.isEmpty()) {
+			metadata.setCacheControl(this.cacheControl);
+		}
+		if (this.contentType != null && !this.contentType.isEmpty()) {
+			metadata.setContentType(this.contentType);
+		}
+		if (this.metadatas != null && this.metadatas.length != 0) {
+			Map<String, String> userMetadata = new HashMap<>(metadata.getUserMetadata());
+			for (String entry : this.metadatas) {
+				if (entry.split(":").length == 2) {
+					userMetadata.put(entry.split(":")[0], entry.split(":")[1]);
+				}
+			}
+			metadata.setUserMetadata(userMetadata);
+		}
+		request.setMetadata(metadata);
+		if (this.acl != null) {
+			request.setCannedAcl(this.acl);
+		}
+	}
+	
+	/**
+	 * @param rules        the rules in order or null
+	 * @param relativePath the path of the file relative to the working directory
+	 * @return the first rule that matches the path or null
+	 */
+	public static S3MetadataRule findFirst(List<S3MetadataRule> rules, String relativePath) {
+		if (rules != null) {
+			for (S3MetadataRule rule : rules) {
+				if (rule.matches(relativePath)) {
+					return rule;
+				}
+			}
+		}
+		return null;
+	}
+	
+	@Extension
+	public static class DescriptorImpl extends Descriptor<S3MetadataRule> {
+		
+		@Override
+		public String getDisplayName() {
+			return "Metadata rule";
+		}
+	}
+}
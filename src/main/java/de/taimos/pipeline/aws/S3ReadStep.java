@@ -0,0 +1,231 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import javax.inject.Inject;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.google.common.base.Preconditions;
+
+import de.taimos.pipeline.aws.utils.JsonUtils;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.TaskListener;
+
+/**
+ * The S3ReadStep returns the content of a small object, read into memory on the controller
+ * without writing it to the workspace.
+ */
+public class S3ReadStep extends AbstractS3Step {
+	
+	/**
+	 * The default maximum number of bytes read.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+	
+	private static final int BUFFER_SIZE = 8 * 1024;
+	
+	private final String bucket;
+	private final String path;
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	private String charset = "UTF-8";
+	private long offset = 0;
+	private long length = 0;
+	private boolean parseJson = false;
+	
+	@DataBoundConstructor
+	public S3ReadStep(String bucket, String path, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
+		super(pathStyleAccessEnabled, payloadSigningEnabled);
+		this.bucket = bucket;
+		this.path = path;
+	}
+	
+	public String getBucket() {
+		return this.bucket;
+	}
+	
+	public String getPath() {
+		return this.path;
+	}
+	
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+	
+	@DataBoundSetter
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+	
+	public String getCharset() {
+		return this.charset;
+	}
+	
+	@DataBoundSetter
+	public void setCharset(String charset) {
+		this.charset = charset;
+	}
+	
+	public long getOffset() {
+		return this.offset;
+	}
+	
+	@DataBoundSetter
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+	
+	public long getLength() {
+		return this.length;
+	}
+	
+	@DataBoundSetter
+	public void setLength(long length) {
+		this.length = length;
+	}
+	
+	public boolean isParseJson() {
+		return this.parseJson;
+	}
+	
+	@DataBoundSetter
+	public void setParseJson(boolean parseJson) {
+		this.parseJson = parseJson;
+	}
+	
+	/**
+	 * Reads an object or a byte range of it into memory.
+	 *
+	 * @param s3Client the client to use
+	 * @param bucket   the bucket name
+	 * @param path     the key of the object
+	 * @param offset   the first byte to read
+	 * @param length   the number of bytes to read or 0 to read to the end of the object
+	 * @param maxBytes the maximum number of bytes to read
+	 * @return the bytes read
+	 * @throws IOException if the object cannot be read or has more than maxBytes bytes to read
+	 */
+	static byte[] read(AmazonS3 s3Client, String bucket, String path, long offset, long length, long maxBytes) throws IOException {
+		GetObjectRequest request = new GetObjectRequest(bucket, path);
+		if (length > 0) {
+			request.withRange(offset, offset + length - 1);
+		} else if (offset > 0) {
+			// one byte more than allowed tells if the rest is too large without transferring it
+			request.withRange(offset, offset + maxBytes);
+		}
+		S3Object object = s3Client.getObject(request);
+		S3ObjectInputStream in = object.getObjectContent();
+		try {
+			long contentLength = object.getObjectMetadata().getContentLength();
+			if (contentLength > maxBytes) {
+				throw new IOException(String.format("s3://%s/%s has more than %d bytes to read; raise maxBytes or read a range", bucket, path, maxBytes));
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(contentLength, 0));
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+				// the content length is not trusted, the cap protects the memory of the controller
+				if (out.size() > maxBytes) {
+					throw new IOException(String.format("s3://%s/%s has more than %d bytes to read; raise maxBytes or read a range", bucket, path, maxBytes));
+				}
+			}
+			return out.toByteArray();
+		} catch (IOException | RuntimeException e) {
+			// do not drain the rest of the object when closing
+			in.abort();
+			throw e;
+		} finally {
+			object.close();
+		}
+	}
+	
+	@Extension
+	public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+		
+		public DescriptorImpl() {
+			super(Execution.class);
+		}
+		
+		@Override
+		public String getFunctionName() {
+			return "s3Read";
+		}
+		
+		@Override
+		public String getDisplayName() {
+			return "Read the content of a file in S3";
+		}
+	}
+	
+	public static class Execution extends AbstractSynchronousStepExecution<Object> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Inject
+		private transient S3ReadStep step;
+		@StepContextParameter
+		private transient EnvVars envVars;
+		@StepContextParameter
+		private transient TaskListener listener;
+		
+		@Override
+		protected Object run() throws Exception {
+			String bucket = this.step.getBucket();
+			String path = this.step.getPath();
+			long maxBytes = this.step.getMaxBytes();
+			long offset = this.step.getOffset();
+			long length = this.step.getLength();
+			String charset = this.step.getCharset();
+			
+			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
+			Preconditions.checkArgument(path != null && !path.isEmpty() && !path.endsWith("/"), "Path must point to an object");
+			Preconditions.checkArgument(maxBytes > 0 && maxBytes < Integer.MAX_VALUE, "MaxBytes must be positive and less than 2 GiB");
+			Preconditions.checkArgument(offset >= 0 && length >= 0, "Offset and length must not be negative");
+			Preconditions.checkArgument(length <= maxBytes, "Length must not be larger than maxBytes");
+			Preconditions.checkArgument(charset != null && Charset.isSupported(charset), "Charset %s is not supported", charset);
+			
+			this.listener.getLogger().format("Reading s3://%s/%s%n", bucket, path);
+			AmazonS3 s3Client = this.step.createS3ClientOptions().withDefaults(this.envVars).createAmazonS3(this.envVars);
+			String content = new String(read(s3Client, bucket, path, offset, length, maxBytes), Charset.forName(charset));
+			if (this.step.isParseJson()) {
+				return JsonUtils.fromString(content);
+			}
+			return content;
+		}
+		
+	}
+	
+}
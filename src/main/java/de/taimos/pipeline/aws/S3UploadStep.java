@@ -22,14 +22,16 @@
 package de.taimos.pipeline.aws;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
@@ -41,28 +43,34 @@ import org.jenkinsci.remoting.RoleChecker;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 
-import com.amazonaws.event.ProgressEvent;
-import com.amazonaws.event.ProgressEventType;
-import com.amazonaws.event.ProgressListener;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
-import com.amazonaws.services.s3.transfer.MultipleFileUpload;
-import com.amazonaws.services.s3.transfer.ObjectMetadataProvider;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.transfer.TransferManager;
-import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.amazonaws.services.s3.transfer.TransferProgress;
 import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
 import com.google.common.base.Preconditions;
 
+import de.taimos.pipeline.aws.utils.AntPathFilter;
+import de.taimos.pipeline.aws.utils.ArchiveFormat;
+import de.taimos.pipeline.aws.utils.ChecksumCalculator;
+import de.taimos.pipeline.aws.utils.Compression;
+import de.taimos.pipeline.aws.utils.ETagUtils;
+import de.taimos.pipeline.aws.utils.MatchingFileWalker;
+import de.taimos.pipeline.aws.utils.TransferUtils;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
 
-public class S3UploadStep extends AbstractS3Step {
+public class S3UploadStep extends AbstractS3TransferStep {
 	
 	private final String bucket;
 	private String file;
@@ -73,6 +81,19 @@ public class S3UploadStep extends AbstractS3Step {
 	private String[] metadatas;
 	private CannedAccessControlList acl;
 	private String cacheControl;
+	private boolean sync = false;
+	private boolean deleteExtraneous = false;
+	private int progressInterval = TransferProgressReporter.DEFAULT_INTERVAL_SECONDS;
+	private boolean resume = false;
+	private int retries = BatchUpload.DEFAULT_RETRIES;
+	private long retryBackoff = BatchUpload.DEFAULT_RETRY_BACKOFF_MILLIS;
+	private boolean verifyChecksums = false;
+	private String compressPathPattern;
+	private String compression = Compression.GZIP.getContentEncoding();
+	private List<S3MetadataRule> metadataRules;
+	private String archive;
+	private boolean contentAddressed = false;
+	private String manifestFile;
 	
 	@DataBoundConstructor
 	public S3UploadStep(String bucket, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
@@ -164,6 +185,141 @@ public class S3UploadStep extends AbstractS3Step {
 		this.cacheControl = cacheControl;
 	}
 	
+	public boolean isSync() {
+		return this.sync;
+	}
+	
+	@DataBoundSetter
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+	
+	public boolean isDeleteExtraneous() {
+		return this.deleteExtraneous;
+	}
+	
+	@DataBoundSetter
+	public void setDeleteExtraneous(boolean deleteExtraneous) {
+		this.deleteExtraneous = deleteExtraneous;
+	}
+	
+	public int getProgressInterval() {
+		return this.progressInterval;
+	}
+	
+	@DataBoundSetter
+	public void setProgressInterval(int progressInterval) {
+		this.progressInterval = progressInterval;
+	}
+	
+	public boolean isResume() {
+		return this.resume;
+	}
+	
+	@DataBoundSetter
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+	
+	public int getRetries() {
+		return this.retries;
+	}
+	
+	@DataBoundSetter
+	public void setRetries(int retries) {
+		this.retries = retries;
+	}
+	
+	public long getRetryBackoff() {
+		return this.retryBackoff;
+	}
+	
+	@DataBoundSetter
+	public void setRetryBackoff(long retryBackoff) {
+		this.retryBackoff = retryBackoff;
+	}
+	
+	public boolean isVerifyChecksums() {
+		return this.verifyChecksums;
+	}
+	
+	@DataBoundSetter
+	public void setVerifyChecksums(boolean verifyChecksums) {
+		this.verifyChecksums = verifyChecksums;
+	}
+	
+	public String getCompressPathPattern() {
+		return this.compressPathPattern;
+	}
+	
+	@DataBoundSetter
+	public void setCompressPathPattern(String compressPathPattern) {
+		this.compressPathPattern = compressPathPattern;
+	}
+	
+	public String getCompression() {
+		return this.compression;
+	}
+	
+	@DataBoundSetter
+	public void setCompression(String compression) {
+		this.compression = compression;
+	}
+	
+	public List<S3MetadataRule> getMetadataRules() {
+		if (this.metadataRules != null) {
+			return new ArrayList<>(this.metadataRules);
+		} else {
+			return null;
+		}
+	}
+	
+	@DataBoundSetter
+	public void setMetadataRules(List<S3MetadataRule> metadataRules) {
+		if (metadataRules != null) {
+			this.metadataRules = new ArrayList<>(metadataRules);
+		} else {
+			this.metadataRules = null;
+		}
+	}
+	
+	public String getArchive() {
+		return this.archive;
+	}
+	
+	@DataBoundSetter
+	public void setArchive(String archive) {
+		this.archive = archive;
+	}
+	
+	public boolean isContentAddressed() {
+		return this.contentAddressed;
+	}
+	
+	@DataBoundSetter
+	public void setContentAddressed(boolean contentAddressed) {
+		this.contentAddressed = contentAddressed;
+	}
+	
+	public String getManifestFile() {
+		return this.manifestFile;
+	}
+	
+	@DataBoundSetter
+	public void setManifestFile(String manifestFile) {
+		this.manifestFile = manifestFile;
+	}
+	
+	@DataBoundSetter
+	public void setMultipartThreshold(final Long multipartThreshold) {
+		this.multipartThreshold = multipartThreshold;
+	}
+	
+	@DataBoundSetter
+	public void setMultipartPartSize(final Long multipartPartSize) {
+		this.multipartPartSize = multipartPartSize;
+	}
+	
 	@Extension
 	public static class DescriptorImpl extends AbstractStepDescriptorImpl {
 		
@@ -193,6 +349,8 @@ public class S3UploadStep extends AbstractS3Step {
 		protected transient FilePath workspace;
 		@StepContextParameter
 		protected transient TaskListener listener;
+		private transient Thread executionThread;
+		private transient volatile Throwable stopCause;
 		
 		@Override
 		public boolean start() throws Exception {
@@ -205,6 +363,18 @@ public class S3UploadStep extends AbstractS3Step {
 			final Map<String, String> metadatas = new HashMap<>();
 			final CannedAccessControlList acl = this.step.getAcl();
 			final String cacheControl = this.step.getCacheControl();
+			final boolean sync = this.step.isSync();
+			final boolean deleteExtraneous = this.step.isDeleteExtraneous();
+			final int progressInterval = this.step.getProgressInterval();
+			final boolean resume = this.step.isResume();
+			final int retries = this.step.getRetries();
+			final long retryBackoff = this.step.getRetryBackoff();
+			final boolean verifyChecksums = this.step.isVerifyChecksums();
+			final String compressPathPattern = this.step.getCompressPathPattern();
+			final List<S3MetadataRule> metadataRules = this.step.getMetadataRules();
+			final String archive = this.step.getArchive();
+			final boolean contentAddressed = this.step.isContentAddressed();
+			final String manifestFile = this.step.getManifestFile();
 			
 			if (this.step.getMetadatas() != null && this.step.getMetadatas().length != 0) {
 				for (String metadata : this.step.getMetadatas()) {
@@ -217,29 +387,54 @@ public class S3UploadStep extends AbstractS3Step {
 			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
 			Preconditions.checkArgument(file != null || includePathPattern != null, "File or IncludePathPattern must not be null");
 			Preconditions.checkArgument(includePathPattern == null || file == null, "File and IncludePathPattern cannot be use together");
+			Preconditions.checkArgument(sync || !deleteExtraneous, "DeleteExtraneous can only be used together with sync");
+			Preconditions.checkArgument(progressInterval >= 0, "ProgressInterval must not be negative");
+			Preconditions.checkArgument(!resume || file != null, "Resume can only be used together with file");
+			Preconditions.checkArgument(retries >= 0, "Retries must not be negative");
+			Preconditions.checkArgument(retryBackoff >= 0, "RetryBackoff must not be negative");
+			Preconditions.checkArgument(!contentAddressed || !sync && !resume, "ContentAddressed cannot be used together with sync or resume");
+			final Compression compression = Compression.fromContentEncoding(this.step.getCompression());
+			final ArchiveFormat archiveFormat = archive != null ? ArchiveFormat.fromName(archive) : null;
+			if (archiveFormat != null) {
+				Preconditions.checkArgument(path != null && !path.isEmpty(), "Path must not be null or empty when uploading an archive");
+				Preconditions.checkArgument(archiveFormat.canCreate(), "Archive format %s can only be extracted", archive);
+				Preconditions.checkArgument(!sync && !resume && !contentAddressed, "Archive cannot be used together with sync, resume or contentAddressed");
+				Preconditions.checkArgument(compressPathPattern == null && (metadataRules == null || metadataRules.isEmpty()), "Archive cannot be used together with compressPathPattern or metadataRules");
+			}
 			
-			final List<FilePath> children = new ArrayList<>();
 			final FilePath dir;
 			if (workingDir != null && !"".equals(workingDir.trim())) {
 				dir = this.workspace.child(workingDir);
 			} else {
 				dir = this.workspace;
 			}
-			if (file != null) {
-				children.add(dir.child(file));
-			} else if (excludePathPattern != null && !excludePathPattern.trim().isEmpty()) {
-				children.addAll(Arrays.asList(dir.list(includePathPattern, excludePathPattern, true)));
+			final String resumeStateDir;
+			if (resume) {
+				// keep the state out of the workspace, so it is neither uploaded nor archived
+				FilePath tempDir = WorkspaceList.tempDir(this.workspace);
+				resumeStateDir = (tempDir != null ? tempDir : this.workspace).child("s3upload").getRemote();
 			} else {
-				children.addAll(Arrays.asList(dir.list(includePathPattern, null, true)));
-				
+				resumeStateDir = null;
 			}
+			final FilePath manifestPath = manifestFile != null && !manifestFile.trim().isEmpty() ? this.workspace.child(manifestFile) : null;
+			final String manifestRemote = manifestPath != null ? manifestPath.getRemote() : null;
 			
-			new Thread("s3Upload") {
+			this.executionThread = new Thread("s3Upload") {
 				@Override
 				public void run() {
 					try {
-						if (children.size() == 1) {
-							FilePath child = children.get(0);
+						Map<String, UploadedObject> manifest;
+						if (archiveFormat != null) {
+							FilePath source = file != null ? dir.child(file) : dir;
+							Execution.this.listener.getLogger().format("Archiving %s into s3://%s/%s %n", source.toURI(), bucket, path);
+							if (!source.exists()) {
+								Execution.this.listener.getLogger().println("Upload failed due to missing source file");
+								Execution.this.getContext().onFailure(new FileNotFoundException(source.toURI().toString()));
+								return;
+							}
+							manifest = source.act(new RemoteArchiveUploader(Execution.this.step.createS3ClientOptions(), Execution.this.envVars, Execution.this.listener, bucket, path, metadatas, acl, cacheControl, includePathPattern, excludePathPattern, archiveFormat, manifestRemote));
+						} else if (file != null) {
+							FilePath child = dir.child(file);
 							Execution.this.listener.getLogger().format("Uploading %s to s3://%s/%s %n", child.toURI(), bucket, path);
 							if (!child.exists()) {
 								Execution.this.listener.getLogger().println("Upload failed due to missing source file");
@@ -247,39 +442,49 @@ public class S3UploadStep extends AbstractS3Step {
 								return;
 							}
 							
-							child.act(new RemoteUploader(Execution.this.step.createAmazonS3ClientBuilder(), Execution.this.envVars, Execution.this.listener, bucket, path, metadatas, acl, cacheControl));
-							
-							Execution.this.listener.getLogger().println("Upload complete");
-							Execution.this.getContext().onSuccess(null);
-						} else if (children.size() > 1) {
-							List<File> fileList = new ArrayList<>();
+							manifest = child.act(new RemoteUploader(Execution.this.step.createS3ClientOptions(), Execution.this.envVars, Execution.this.listener, bucket, path, metadatas, acl, cacheControl, sync, deleteExtraneous, progressInterval, resumeStateDir, retries, retryBackoff, verifyChecksums, compressPathPattern, compression, metadataRules, contentAddressed, manifestRemote, file));
+						} else {
 							Execution.this.listener.getLogger().format("Uploading %s to s3://%s/%s %n", includePathPattern, bucket, path);
-							for (FilePath child : children) {
-								child.act(new FeedList(fileList));
-							}
-							dir.act(new RemoteListUploader(Execution.this.step.createAmazonS3ClientBuilder(), Execution.this.envVars, Execution.this.listener, fileList, bucket, path, metadatas, acl, cacheControl));
-							Execution.this.listener.getLogger().println("Upload complete");
-							Execution.this.getContext().onSuccess(null);
+							// matching and uploading happen in a single call on the agent
+							manifest = dir.act(new RemoteListUploader(Execution.this.step.createS3ClientOptions(), Execution.this.envVars, Execution.this.listener, bucket, path, metadatas, acl, cacheControl, includePathPattern, excludePathPattern, true, sync, deleteExtraneous, progressInterval, retries, retryBackoff, verifyChecksums, compressPathPattern, compression, metadataRules, contentAddressed, manifestRemote, ""));
+						}
+						Execution.this.listener.getLogger().println("Upload complete");
+						if (manifestPath != null) {
+							Execution.this.listener.getLogger().format("Wrote upload manifest to %s%n", manifestPath.toURI());
 						}
+						Execution.this.getContext().onSuccess(manifest);
 					} catch (Exception e) {
-						Execution.this.getContext().onFailure(e);
+						// when stopped, report the cause of the stop instead of the resulting interruption
+						Throwable stopCause = Execution.this.stopCause;
+						Execution.this.getContext().onFailure(stopCause != null ? stopCause : e);
 					}
 				}
-			}.start();
+			};
+			this.executionThread.start();
 			return false;
 		}
 		
 		@Override
 		public void stop(@Nonnull Throwable cause) throws Exception {
-			//
+			// interrupting the thread cancels the remote call, which aborts the transfers on the agent
+			// the thread completes the context, so it is not completed twice
+			if (this.executionThread != null) {
+				this.stopCause = cause;
+				this.executionThread.interrupt();
+			} else {
+				this.getContext().onFailure(cause);
+			}
 		}
 		
 	}
 	
-	private static class RemoteUploader implements FilePath.FileCallable<Void> {
+	/**
+	 * Returns the uploaded objects by local path or null if the manifest is written to a file.
+	 */
+	private static class RemoteUploader implements FilePath.FileCallable<Map<String, UploadedObject>> {
 		
 		protected static final long serialVersionUID = 1L;
-		private final transient AmazonS3ClientBuilder amazonS3ClientBuilder;
+		private final S3ClientOptions amazonS3ClientOptions;
 		private final EnvVars envVars;
 		private final TaskListener taskListener;
 		private final String bucket;
@@ -287,9 +492,25 @@ public class S3UploadStep extends AbstractS3Step {
 		private final Map<String, String> metadatas;
 		private final CannedAccessControlList acl;
 		private final String cacheControl;
+		private final boolean sync;
+		private final boolean deleteExtraneous;
+		private final int progressInterval;
+		private final String resumeStateDir;
+		private final int retries;
+		private final long retryBackoff;
+		private final boolean verifyChecksums;
+		private final String compressPathPattern;
+		private final Compression compression;
+		private final List<S3MetadataRule> metadataRules;
+		private final boolean contentAddressed;
+		private final String manifestFile;
+		private final String sourcePath;
 		
-		RemoteUploader(AmazonS3ClientBuilder amazonS3ClientBuilder, EnvVars envVars, TaskListener taskListener, String bucket, String path, Map<String, String> metadatas, CannedAccessControlList acl, String cacheControl) {
-			this.amazonS3ClientBuilder = amazonS3ClientBuilder;
+		/**
+		 * @param sourcePath the path of the file or directory relative to the working directory, which compressPathPattern and metadataRules are matched against
+		 */
+		RemoteUploader(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String bucket, String path, Map<String, String> metadatas, CannedAccessControlList acl, String cacheControl, boolean sync, boolean deleteExtraneous, int progressInterval, String resumeStateDir, int retries, long retryBackoff, boolean verifyChecksums, String compressPathPattern, Compression compression, List<S3MetadataRule> metadataRules, boolean contentAddressed, String manifestFile, String sourcePath) {
+			this.amazonS3ClientOptions = amazonS3ClientOptions;
 			this.envVars = envVars;
 			this.taskListener = taskListener;
 			this.bucket = bucket;
@@ -297,151 +518,211 @@ public class S3UploadStep extends AbstractS3Step {
 			this.metadatas = metadatas;
 			this.acl = acl;
 			this.cacheControl = cacheControl;
+			this.sync = sync;
+			this.deleteExtraneous = deleteExtraneous;
+			this.progressInterval = progressInterval;
+			this.resumeStateDir = resumeStateDir;
+			this.retries = retries;
+			this.retryBackoff = retryBackoff;
+			this.verifyChecksums = verifyChecksums;
+			this.compressPathPattern = compressPathPattern;
+			this.compression = compression;
+			this.metadataRules = metadataRules;
+			this.contentAddressed = contentAddressed;
+			this.manifestFile = manifestFile;
+			this.sourcePath = normalizeSourcePath(sourcePath);
 		}
 		
 		@Override
-		public Void invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
-			TransferManager mgr = TransferManagerBuilder.standard()
-					.withS3Client(AWSClientFactory.create(this.amazonS3ClientBuilder, this.envVars))
-					.build();
+		public Map<String, UploadedObject> invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+			try (TransferManagerRegistry.Lease lease = TransferManagerRegistry.acquire(this.amazonS3ClientOptions, this.envVars)) {
+				return this.invoke(lease, localFile);
+			}
+		}
+		
+		private Map<String, UploadedObject> invoke(TransferManagerRegistry.Lease lease, File localFile) throws IOException, InterruptedException {
+			TransferManager mgr = lease.getTransferManager();
 			if (localFile.isFile()) {
 				Preconditions.checkArgument(this.path != null && !this.path.isEmpty(), "Path must not be null or empty when uploading file");
-				final Upload upload;
-				if ((this.metadatas != null && this.metadatas.size() > 0) || (this.cacheControl != null && !this.cacheControl.isEmpty())) {
-					ObjectMetadata metas = new ObjectMetadata();
-					if (this.metadatas != null && this.metadatas.size() > 0) {
-						metas.setUserMetadata(this.metadatas);
-					}
-					if (this.cacheControl != null && !this.cacheControl.isEmpty()) {
-						metas.setCacheControl(this.cacheControl);
-					}
-					FileInputStream stream = new FileInputStream(localFile);
-					PutObjectRequest request = new PutObjectRequest(this.bucket, this.path, stream, metas);
-					if (this.acl != null) {
-						request = request.withCannedAcl(this.acl);
-					}
-					upload = mgr.upload(request);
-					stream.close();
-				} else {
-					PutObjectRequest request = new PutObjectRequest(this.bucket, this.path, localFile);
-					if (this.acl != null) {
-						request = request.withCannedAcl(this.acl);
-					}
-					upload = mgr.upload(request);
+				Preconditions.checkArgument(!this.contentAddressed, "ContentAddressed can only be used for directories and patterns");
+				try (UploadManifest manifest = createManifest(this.manifestFile)) {
+					this.upload(lease, localFile, manifest);
+					return manifest.getObjects();
 				}
-				upload.addProgressListener(new ProgressListener() {
-					@Override
-					public void progressChanged(ProgressEvent progressEvent) {
-						if (progressEvent.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
-							RemoteUploader.this.taskListener.getLogger().println("Finished: " + upload.getDescription());
-						}
-					}
-				});
-				upload.waitForCompletion();
-				return null;
 			}
 			if (localFile.isDirectory()) {
-				final MultipleFileUpload fileUpload;
-				ObjectMetadataProvider metadatasProvider = new ObjectMetadataProvider() {
-					@Override
-					public void provideObjectMetadata(File file, ObjectMetadata meta) {
-						if (meta != null) {
-							if (RemoteUploader.this.metadatas != null && RemoteUploader.this.metadatas.size() > 0) {
-								meta.setUserMetadata(RemoteUploader.this.metadatas);
-							}
-							if (RemoteUploader.this.acl != null) {
-								meta.setHeader(Headers.S3_CANNED_ACL, RemoteUploader.this.acl);
-							}
-							if (RemoteUploader.this.cacheControl != null && !RemoteUploader.this.cacheControl.isEmpty()) {
-								meta.setCacheControl(RemoteUploader.this.cacheControl);
-							}
-						}
-						
-					}
-				};
-				fileUpload = mgr.uploadDirectory(this.bucket, this.path, localFile, true, metadatasProvider);
-				for (final Upload upload : fileUpload.getSubTransfers()) {
-					upload.addProgressListener(new ProgressListener() {
-						@Override
-						public void progressChanged(ProgressEvent progressEvent) {
-							if (progressEvent.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
-								RemoteUploader.this.taskListener.getLogger().println("Finished: " + upload.getDescription());
-							}
-						}
-					});
+				if (this.resumeStateDir != null) {
+					this.taskListener.getLogger().println("Resume is only supported for single files, uploading directory from scratch");
 				}
-				fileUpload.waitForCompletion();
-				return null;
+				// walk the tree lazily instead of listing it up front, so huge trees start uploading right away
+				RemoteListUploader walker = new RemoteListUploader(this.amazonS3ClientOptions, this.envVars, this.taskListener, this.bucket, this.path, this.metadatas, this.acl, this.cacheControl, null, null, false, this.sync, this.deleteExtraneous, this.progressInterval, this.retries, this.retryBackoff, this.verifyChecksums, this.compressPathPattern, this.compression, this.metadataRules, this.contentAddressed, this.manifestFile, this.sourcePath.isEmpty() ? "" : this.sourcePath + "/");
+				return walker.invoke(lease, localFile);
 			}
 			return null;
 		}
 		
+		private void upload(TransferManagerRegistry.Lease lease, File localFile, UploadManifest manifest) throws IOException, InterruptedException {
+			TransferManager mgr = lease.getTransferManager();
+			S3MetadataRule rule = S3MetadataRule.findFirst(this.metadataRules, this.sourcePath);
+			boolean compress = this.compressPathPattern != null && new AntPathFilter(this.compressPathPattern, null, false).matches(this.sourcePath);
+			if (this.sync) {
+				ObjectMetadata remote = this.getRemoteMetadata(mgr);
+				// a compressed object is compared with the MD5 of the original content stored in its metadata
+				boolean unchanged = remote != null && (compress ? this.compression.isUnchanged(localFile, remote)
+						: RemoteObjectIndex.isUnchanged(localFile, remote.getContentLength(), remote.getETag(), mgr.getConfiguration().getMinimumUploadPartSize()));
+				if (unchanged) {
+					this.taskListener.getLogger().format("Skipping %s, s3://%s/%s is up to date%n", localFile, this.bucket, this.path);
+					manifest.add(new UploadedObject(localFile.getName(), this.path, remote.getContentLength(), ETagUtils.normalize(remote.getETag()), remote.getVersionId(), 0));
+					return;
+				}
+			}
+			long started = System.currentTimeMillis();
+			if (compress) {
+				// the compressed content is streamed into the upload, so it can neither be resumed nor verified against the file
+				PutObjectRequest request = createRequest(this.bucket, this.path, localFile, this.metadatas, this.cacheControl, this.acl, rule);
+				try (TransferProgressReporter reporter = new TransferProgressReporter(this.taskListener.getLogger(), "Uploaded", this.progressInterval)) {
+					TransferProgress progress = new TransferProgress();
+					reporter.add(progress);
+					manifest.add(CompressedUpload.upload(mgr.getAmazonS3Client(), lease.getExecutorService(), mgr.getConfiguration().getMinimumUploadPartSize(), request, this.compression, localFile.getName(), progress));
+				}
+				return;
+			}
+			try (ChecksumCalculator checksums = this.verifyChecksums ? new ChecksumCalculator() : null) {
+				if (this.resumeStateDir != null && localFile.length() >= mgr.getConfiguration().getMultipartUploadThreshold()) {
+					ResumableUpload upload = new ResumableUpload(mgr.getAmazonS3Client(), lease.getExecutorService(), this.taskListener.getLogger(), new File(this.resumeStateDir), this.bucket, this.path, localFile);
+					upload.setChecksumCalculator(checksums);
+					PutObjectRequest request = createRequest(this.bucket, this.path, localFile, this.metadatas, this.cacheControl, this.acl, rule);
+					CompleteMultipartUploadResult result = upload.upload(mgr.getConfiguration().getMinimumUploadPartSize(), request.getMetadata(), request.getCannedAcl());
+					manifest.add(new UploadedObject(localFile.getName(), this.path, localFile.length(), ETagUtils.normalize(result.getETag()), result.getVersionId(), System.currentTimeMillis() - started));
+					return;
+				}
+				// upload from the file, so the TransferManager knows the length and can upload parts in parallel
+				PutObjectRequest request = createRequest(this.bucket, this.path, localFile, this.metadatas, this.cacheControl, this.acl, rule);
+				try (TransferProgressReporter reporter = new TransferProgressReporter(this.taskListener.getLogger(), "Uploaded", this.progressInterval)) {
+					Upload upload = mgr.upload(request);
+					reporter.add(upload);
+					// the checksum is computed while the file is uploaded
+					ChecksumCalculator.Checksum checksum = checksums != null ? checksums.submit(localFile, ChecksumCalculator.partSizeFor(mgr.getConfiguration(), localFile.length())) : null;
+					TransferUtils.waitForCompletion(upload);
+					UploadResult result = upload.waitForUploadResult();
+					if (checksum != null && !checksum.verify(result.getETag(), mgr.getAmazonS3Client(), this.bucket, this.path)) {
+						this.taskListener.getLogger().format("Skipped checksum of s3://%s/%s, objects encrypted with SSE-KMS or SSE-C have no MD5 ETag%n", this.bucket, this.path);
+					}
+					manifest.add(new UploadedObject(localFile.getName(), this.path, localFile.length(), ETagUtils.normalize(result.getETag()), result.getVersionId(), System.currentTimeMillis() - started));
+				}
+			}
+		}
+		
+		/**
+		 * @return the metadata of the remote object or null if it does not exist
+		 */
+		private ObjectMetadata getRemoteMetadata(TransferManager mgr) {
+			try {
+				return mgr.getAmazonS3Client().getObjectMetadata(this.bucket, this.path);
+			} catch (AmazonS3Exception e) {
+				if (e.getStatusCode() == 404) {
+					return null;
+				}
+				throw e;
+			}
+		}
+		
 		@Override
 		public void checkRoles(RoleChecker roleChecker) throws SecurityException {
 		}
 	}
 	
-	private static class RemoteListUploader implements FilePath.FileCallable<Void> {
+	private static void deleteExtraneousObjects(AmazonS3 s3Client, TaskListener taskListener, String bucket, RemoteObjectIndex index, Set<String> localKeys, AntPathFilter deleteFilter) {
+		List<String> extraneousKeys = index.extraneousKeys(localKeys, deleteFilter);
+		for (String key : extraneousKeys) {
+			taskListener.getLogger().format("Deleting extraneous object s3://%s/%s%n", bucket, key);
+		}
+		RemoteObjectIndex.deleteKeys(s3Client, bucket, extraneousKeys);
+	}
+	
+	private static ObjectMetadata createMetadata(Map<String, String> metadatas, String cacheControl) {
+		ObjectMetadata metas = new ObjectMetadata();
+		if (metadatas != null && metadatas.size() > 0) {
+			metas.setUserMetadata(metadatas);
+		}
+		if (cacheControl != null && !cacheControl.isEmpty()) {
+			metas.setCacheControl(cacheControl);
+		}
+		return metas;
+	}
+	
+	private static UploadManifest createManifest(String manifestFile) throws IOException {
+		return manifestFile != null ? UploadManifest.toFile(new File(manifestFile)) : UploadManifest.inMemory();
+	}
+	
+	/**
+	 * @param file the file parameter of the step
+	 * @return the path relative to the working directory with forward slashes and without a leading ./ or trailing slash
+	 */
+	static String normalizeSourcePath(String file) {
+		String path = file.replace('\\', '/');
+		while (path.startsWith("./")) {
+			path = path.substring(2);
+		}
+		while (path.endsWith("/") && path.length() > 1) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return ".".equals(path) ? "" : path;
+	}
+	
+	private static PutObjectRequest createRequest(String bucket, String key, File file, Map<String, String> metadatas, String cacheControl, CannedAccessControlList acl, S3MetadataRule rule) {
+		PutObjectRequest request = new PutObjectRequest(bucket, key, file).withMetadata(createMetadata(metadatas, cacheControl));
+		if (acl != null) {
+			request = request.withCannedAcl(acl);
+		}
+		if (rule != null) {
+			rule.apply(request);
+		}
+		return request;
+	}
+	
+	/**
+	 * Streams the matching files into a single archive object. Neither the archive nor its parts are written to disk.
+	 */
+	private static class RemoteArchiveUploader implements FilePath.FileCallable<Map<String, UploadedObject>> {
 		
 		protected static final long serialVersionUID = 1L;
-		private final transient AmazonS3ClientBuilder amazonS3ClientBuilder;
+		private final S3ClientOptions amazonS3ClientOptions;
 		private final EnvVars envVars;
 		private final TaskListener taskListener;
 		private final String bucket;
 		private final String path;
-		private final List<File> fileList;
 		private final Map<String, String> metadatas;
 		private final CannedAccessControlList acl;
 		private final String cacheControl;
+		private final String includePathPattern;
+		private final String excludePathPattern;
+		private final ArchiveFormat format;
+		private final String manifestFile;
 		
-		RemoteListUploader(AmazonS3ClientBuilder amazonS3ClientBuilder, EnvVars envVars, TaskListener taskListener, List<File> fileList, String bucket, String path, Map<String, String> metadatas, CannedAccessControlList acl, final String cacheControl) {
-			this.amazonS3ClientBuilder = amazonS3ClientBuilder;
+		RemoteArchiveUploader(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String bucket, String path, Map<String, String> metadatas, CannedAccessControlList acl, String cacheControl, String includePathPattern, String excludePathPattern, ArchiveFormat format, String manifestFile) {
+			this.amazonS3ClientOptions = amazonS3ClientOptions;
 			this.envVars = envVars;
 			this.taskListener = taskListener;
-			this.fileList = fileList;
 			this.bucket = bucket;
 			this.path = path;
 			this.metadatas = metadatas;
 			this.acl = acl;
 			this.cacheControl = cacheControl;
+			this.includePathPattern = includePathPattern;
+			this.excludePathPattern = excludePathPattern;
+			this.format = format;
+			this.manifestFile = manifestFile;
 		}
 		
 		@Override
-		public Void invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
-			TransferManager mgr = TransferManagerBuilder.standard()
-					.withS3Client(AWSClientFactory.create(this.amazonS3ClientBuilder, this.envVars))
-					.build();
-			Preconditions.checkArgument(this.path != null && !this.path.isEmpty(), "Path must not be null or empty when uploading file");
-			final MultipleFileUpload fileUpload;
-			ObjectMetadataProvider metadatasProvider = new ObjectMetadataProvider() {
-				@Override
-				public void provideObjectMetadata(File file, ObjectMetadata meta) {
-					if (meta != null) {
-						if (RemoteListUploader.this.metadatas != null && RemoteListUploader.this.metadatas.size() > 0) {
-							meta.setUserMetadata(RemoteListUploader.this.metadatas);
-						}
-						if (RemoteListUploader.this.acl != null) {
-							meta.setHeader(Headers.S3_CANNED_ACL, RemoteListUploader.this.acl);
-						}
-						if (RemoteListUploader.this.cacheControl != null && !RemoteListUploader.this.cacheControl.isEmpty()) {
-							meta.setCacheControl(RemoteListUploader.this.cacheControl);
-						}
-					}
-				}
-			};
-			fileUpload = mgr.uploadFileList(this.bucket, this.path, localFile, this.fileList, metadatasProvider);
-			for (final Upload upload : fileUpload.getSubTransfers()) {
-				upload.addProgressListener(new ProgressListener() {
-					@Override
-					public void progressChanged(ProgressEvent progressEvent) {
-						if (progressEvent.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
-							RemoteListUploader.this.taskListener.getLogger().println("Finished: " + upload.getDescription());
-						}
-					}
-				});
+		public Map<String, UploadedObject> invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+			try (TransferManagerRegistry.Lease lease = TransferManagerRegistry.acquire(this.amazonS3ClientOptions, this.envVars);
+					UploadManifest manifest = createManifest(this.manifestFile)) {
+				AntPathFilter filter = new AntPathFilter(this.includePathPattern, this.excludePathPattern, this.includePathPattern != null);
+				manifest.add(ArchiveTransfer.upload(lease, this.bucket, this.path, localFile, filter, this.format, createMetadata(this.metadatas, this.cacheControl), this.acl, this.taskListener.getLogger()));
+				return manifest.getObjects();
 			}
-			fileUpload.waitForCompletion();
-			return null;
 		}
 		
 		@Override
@@ -449,22 +730,196 @@ public class S3UploadStep extends AbstractS3Step {
 		}
 	}
 	
-	private static class FeedList implements FilePath.FileCallable<Void> {
+	/**
+	 * Returns the uploaded objects by local path or null if the manifest is written to a file.
+	 */
+	private static class RemoteListUploader implements FilePath.FileCallable<Map<String, UploadedObject>> {
 		
-		private final List<File> fileList;
+		protected static final long serialVersionUID = 1L;
+		private final S3ClientOptions amazonS3ClientOptions;
+		private final EnvVars envVars;
+		private final TaskListener taskListener;
+		private final String bucket;
+		private final String path;
+		private final Map<String, String> metadatas;
+		private final CannedAccessControlList acl;
+		private final String cacheControl;
+		private final String includePathPattern;
+		private final String excludePathPattern;
+		private final boolean defaultExcludes;
+		private final boolean sync;
+		private final boolean deleteExtraneous;
+		private final int progressInterval;
+		private final int retries;
+		private final long retryBackoff;
+		private final boolean verifyChecksums;
+		private final String compressPathPattern;
+		private final Compression compression;
+		private final List<S3MetadataRule> metadataRules;
+		private final boolean contentAddressed;
+		private final String manifestFile;
+		private final String pathPrefix;
 		
-		FeedList(List<File> fileList) {
-			this.fileList = fileList;
+		/**
+		 * @param pathPrefix the path of the walked directory relative to the working directory, ending with a slash or empty; prepended to the relative
+		 *                   paths of the files to match compressPathPattern and metadataRules
+		 */
+		RemoteListUploader(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String bucket, String path, Map<String, String> metadatas, CannedAccessControlList acl, final String cacheControl, String includePathPattern, String excludePathPattern, boolean defaultExcludes, boolean sync, boolean deleteExtraneous, int progressInterval, int retries, long retryBackoff, boolean verifyChecksums, String compressPathPattern, Compression compression, List<S3MetadataRule> metadataRules, boolean contentAddressed, String manifestFile, String pathPrefix) {
+			this.amazonS3ClientOptions = amazonS3ClientOptions;
+			this.envVars = envVars;
+			this.taskListener = taskListener;
+			this.bucket = bucket;
+			this.path = path;
+			this.metadatas = metadatas;
+			this.acl = acl;
+			this.cacheControl = cacheControl;
+			this.includePathPattern = includePathPattern;
+			this.excludePathPattern = excludePathPattern;
+			this.defaultExcludes = defaultExcludes;
+			this.sync = sync;
+			this.deleteExtraneous = deleteExtraneous;
+			this.progressInterval = progressInterval;
+			this.retries = retries;
+			this.retryBackoff = retryBackoff;
+			this.verifyChecksums = verifyChecksums;
+			this.compressPathPattern = compressPathPattern;
+			this.compression = compression;
+			this.metadataRules = metadataRules;
+			this.contentAddressed = contentAddressed;
+			this.manifestFile = manifestFile;
+			this.pathPrefix = pathPrefix;
 		}
 		
 		@Override
-		public Void invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
-			this.fileList.add(localFile);
-			return null;
+		public Map<String, UploadedObject> invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+			Preconditions.checkArgument(this.path != null && !this.path.isEmpty(), "Path must not be null or empty when uploading file");
+			try (TransferManagerRegistry.Lease lease = TransferManagerRegistry.acquire(this.amazonS3ClientOptions, this.envVars)) {
+				return this.invoke(lease, localFile);
+			}
+		}
+		
+		private Map<String, UploadedObject> invoke(TransferManagerRegistry.Lease lease, final File localFile) throws IOException, InterruptedException {
+			final TransferManager mgr = lease.getTransferManager();
+			final AntPathFilter filter = new AntPathFilter(this.includePathPattern, this.excludePathPattern, this.defaultExcludes);
+			// a single listing tells which contents are already stored
+			final RemoteObjectIndex index = this.sync || this.contentAddressed ? RemoteObjectIndex.load(mgr.getAmazonS3Client(), this.bucket, this.path) : null;
+			final long partSize = mgr.getConfiguration().getMinimumUploadPartSize();
+			// only the keys are kept, so the memory used by huge trees stays small
+			final Set<String> localKeys = this.sync && this.deleteExtraneous ? new HashSet<String>() : null;
+			final AtomicInteger matchingFiles = new AtomicInteger();
+			final AntPathFilter compressFilter = this.compressPathPattern != null ? new AntPathFilter(this.compressPathPattern, null, false) : null;
+			final Set<String> storedKeys = this.contentAddressed ? new HashSet<String>() : null;
+			// a pattern matching a single file uploads it to path itself, so the first match waits for a second one
+			final boolean holdFirstMatch = this.includePathPattern != null && !this.contentAddressed;
+			final AtomicReference<File> heldFile = new AtomicReference<>();
+			final AtomicReference<String> heldPath = new AtomicReference<>();
+			
+			try (UploadManifest manifest = createManifest(this.manifestFile)) {
+				try (ChecksumCalculator checksums = this.verifyChecksums ? new ChecksumCalculator() : null;
+						TransferProgressReporter reporter = new TransferProgressReporter(this.taskListener.getLogger(), "Uploaded", this.progressInterval)) {
+					final BatchUpload batch = new BatchUpload(mgr, reporter, this.taskListener.getLogger(), this.retries, this.retryBackoff);
+					batch.setChecksumCalculator(checksums);
+					batch.setPartExecutor(lease.getExecutorService());
+					batch.setManifest(manifest);
+					// every matching file is queued for upload as soon as it is found, adding blocks while too many uploads are pending
+					try {
+						MatchingFileWalker.walk(localFile, filter, new MatchingFileWalker.Visitor() {
+							@Override
+							public void visitFile(File file, String relativePath) throws IOException, InterruptedException {
+								int matches = matchingFiles.incrementAndGet();
+								String path = relativePath.replace('\\', '/');
+								if (holdFirstMatch && matches == 1) {
+									heldFile.set(file);
+									heldPath.set(path);
+									return;
+								}
+								File firstFile = heldFile.getAndSet(null);
+								if (firstFile != null) {
+									this.queue(firstFile, heldPath.get());
+								}
+								this.queue(file, path);
+							}
+							
+							private void queue(File file, String path) throws IOException, InterruptedException {
+								// the patterns of both match the path relative to the working directory
+								String sourcePath = RemoteListUploader.this.pathPrefix + path;
+								Compression compression = compressFilter != null && compressFilter.matches(sourcePath) ? RemoteListUploader.this.compression : null;
+								S3MetadataRule rule = S3MetadataRule.findFirst(RemoteListUploader.this.metadataRules, sourcePath);
+								if (storedKeys != null) {
+									RemoteListUploader.this.uploadContentAddressed(file, path, compression, rule, index, storedKeys, manifest, batch);
+								} else {
+									RemoteListUploader.this.upload(mgr.getAmazonS3Client(), localFile, file, path, compression, rule, index, partSize, localKeys, manifest, batch);
+								}
+							}
+						});
+					} catch (IOException | RuntimeException e) {
+						batch.abort();
+						throw e;
+					}
+					if (Thread.interrupted()) {
+						batch.abort();
+						throw new InterruptedException("Upload was interrupted");
+					}
+					
+					File singleFile = heldFile.get();
+					if (singleFile != null) {
+						// uploaded like a single file: extraneous objects are only deleted below path when uploading several files
+						RemoteUploader uploader = new RemoteUploader(this.amazonS3ClientOptions, this.envVars, this.taskListener, this.bucket, this.path, this.metadatas, this.acl, this.cacheControl, this.sync, false, this.progressInterval, null, this.retries, this.retryBackoff, this.verifyChecksums, this.compressPathPattern, this.compression, this.metadataRules, false, this.manifestFile, this.pathPrefix + heldPath.get());
+						uploader.upload(lease, singleFile, manifest);
+						return manifest.getObjects();
+					}
+					if (this.sync) {
+						this.taskListener.getLogger().format("Sync: %d of %d files are new or changed%n", batch.size(), matchingFiles.get());
+					} else if (this.contentAddressed) {
+						this.taskListener.getLogger().format("Content addressed: %d of %d files have new content%n", batch.size(), matchingFiles.get());
+					} else if (batch.size() == 0) {
+						this.taskListener.getLogger().format("No files found matching %s%n", this.includePathPattern != null ? this.includePathPattern : "**");
+					}
+					batch.waitForCompletion();
+				}
+				if (this.sync && this.deleteExtraneous) {
+					deleteExtraneousObjects(mgr.getAmazonS3Client(), this.taskListener, this.bucket, index, localKeys, filter);
+				}
+				return manifest.getObjects();
+			}
+		}
+		
+		private void upload(AmazonS3 s3Client, File baseDir, File file, String relativePath, Compression compression, S3MetadataRule rule, RemoteObjectIndex index, long partSize, Set<String> localKeys, UploadManifest manifest, BatchUpload batch) throws IOException, InterruptedException {
+			String key = RemoteObjectIndex.keyFor(this.path, baseDir, file);
+			if (localKeys != null) {
+				localKeys.add(key);
+			}
+			if (index != null) {
+				S3ObjectSummary summary = index.get(key);
+				// the listing lacks the MD5 of the original content of compressed objects, which only a HEAD request tells
+				boolean unchanged = compression != null ? summary != null && compression.isUnchanged(file, s3Client.getObjectMetadata(this.bucket, key))
+						: RemoteObjectIndex.isUnchanged(file, summary, partSize);
+				if (unchanged) {
+					manifest.add(new UploadedObject(relativePath, key, summary.getSize(), ETagUtils.normalize(summary.getETag()), null, 0));
+					return;
+				}
+			}
+			batch.add(createRequest(this.bucket, key, file, this.metadatas, this.cacheControl, this.acl, rule), compression, relativePath);
+		}
+		
+		/**
+		 * Stores the file under the SHA-256 of its content, unless an object with this content exists already.
+		 */
+		private void uploadContentAddressed(File file, String relativePath, Compression compression, S3MetadataRule rule, RemoteObjectIndex index, Set<String> storedKeys, UploadManifest manifest, BatchUpload batch) throws IOException, InterruptedException {
+			String key = RemoteObjectIndex.directoryPrefix(this.path) + ETagUtils.sha256Hex(file);
+			S3ObjectSummary summary = index.get(key);
+			if (summary != null) {
+				manifest.add(new UploadedObject(relativePath, key, summary.getSize(), ETagUtils.normalize(summary.getETag()), null, 0));
+			} else if (storedKeys.add(key)) {
+				batch.add(createRequest(this.bucket, key, file, this.metadatas, this.cacheControl, this.acl, rule), compression, relativePath);
+			} else {
+				// identical files of this upload are only stored once; the ETag is not known before the first one is done
+				manifest.add(new UploadedObject(relativePath, key, file.length(), null, null, 0));
+			}
 		}
 		
 		@Override
-		public void checkRoles(RoleChecker arg0) throws SecurityException {
+		public void checkRoles(RoleChecker roleChecker) throws SecurityException {
 		}
 	}
 	
@@ -0,0 +1,302 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.taimos.pipeline.aws;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.util.Base64;
+import com.amazonaws.util.Md5Utils;
+
+/**
+ * Uploads everything written to it as a single object, without knowing the length up front and without a temporary file.
+ * <p>
+ * The content is cut into parts that are uploaded in the background while more content is written. The parts waiting
+ * for their upload share a memory budget of the given number of parts of the initial size; as later parts grow, fewer
+ * of them are uploaded at the same time, and writing blocks until the budget allows the next part. Content that fits into a single part
+ * is uploaded with a single PUT. Every part is sent with its Content-MD5, so S3 rejects parts that were corrupted in transit.
+ */
+public class StreamingMultipartUpload extends OutputStream {
+	
+	/**
+	 * The part size grows after this many parts, so the 10000 parts S3 allows are enough for large streams.
+	 */
+	private static final int PARTS_PER_SIZE = 1000;
+	/**
+	 * The largest part kept in memory; with parts of 5 MB the 10000 parts still hold about 800 GB.
+	 */
+	private static final int MAX_PART_SIZE = 128 * 1024 * 1024;
+	/**
+	 * The unit of the memory budget, so budgets beyond 2 GB fit into the permits of a semaphore.
+	 */
+	private static final int KB = 1024;
+	
+	private final AmazonS3 s3Client;
+	private final ExecutorService executor;
+	private final String bucket;
+	private final String key;
+	private final ObjectMetadata metadata;
+	private final CannedAccessControlList acl;
+	private final long partSize;
+	private final Semaphore bufferedKilobytes;
+	private final int budgetKilobytes;
+	private final List<Future<PartETag>> parts = new ArrayList<>();
+	private String uploadId;
+	private byte[] buffer;
+	private int count;
+	private long bytesWritten;
+	private boolean closed;
+	private String eTag;
+	private String versionId;
+	
+	/**
+	 * @param s3Client        the client to use
+	 * @param executor        the executor the parts are uploaded on
+	 * @param bucket          the bucket name
+	 * @param key             the key of the object
+	 * @param metadata        the metadata of the object
+	 * @param acl             the canned ACL of the object or null
+	 * @param partSize        the size of the first parts
+	 * @param maxPendingParts the number of parts of the initial size that may be uploaded at the same time; together with
+	 *                        the part size it bounds the memory of the parts waiting for their upload
+	 */
+	public StreamingMultipartUpload(AmazonS3 s3Client, ExecutorService executor, String bucket, String key, ObjectMetadata metadata, CannedAccessControlList acl, long partSize, int maxPendingParts) {
+		this.s3Client = s3Client;
+		this.executor = executor;
+		this.bucket = bucket;
+		this.key = key;
+		this.metadata = metadata;
+		this.acl = acl;
+		this.partSize = partSize;
+		this.budgetKilobytes = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxPendingParts * partSize / KB));
+		this.bufferedKilobytes = new Semaphore(this.budgetKilobytes);
+	}
+	
+	/**
+	 * @return the number of bytes written so far
+	 */
+	public long getBytesWritten() {
+		return this.bytesWritten;
+	}
+	
+	/**
+	 * @return the ETag of the object or null if the upload is not complete
+	 */
+	public String getETag() {
+		return this.eTag;
+	}
+	
+	/**
+	 * @return the version id of the object or null if the upload is not complete or the bucket is not versioned
+	 */
+	public String getVersionId() {
+		return this.versionId;
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		this.write(new byte[]{(byte) b}, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (this.closed) {
+			throw new IOException("Upload of s3://" + this.bucket + "/" + this.key + " is already closed");
+		}
+		int offset = off;
+		int remaining = len;
+		while (remaining > 0) {
+			if (this.buffer == null) {
+				this.buffer = new byte[this.getPartSize(this.parts.size() + 1)];
+			}
+			int length = Math.min(remaining, this.buffer.length - this.count);
+			System.arraycopy(b, offset, this.buffer, this.count, length);
+			this.count += length;
+			this.bytesWritten += length;
+			offset += length;
+			remaining -= length;
+			if (this.count == this.buffer.length) {
+				this.uploadPart(false);
+			}
+		}
+	}
+	
+	/**
+	 * Uploads the remaining content and completes the upload. If anything fails, the upload is aborted.
+	 *
+	 * @throws IOException if the upload failed or was interrupted
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		try {
+			if (this.uploadId == null) {
+				byte[] content = this.buffer != null ? this.buffer : new byte[0];
+				this.metadata.setContentLength(this.count);
+				this.metadata.setContentMD5(Base64.encodeAsString(Md5Utils.computeMD5Hash(new ByteArrayInputStream(content, 0, this.count))));
+				PutObjectRequest request = new PutObjectRequest(this.bucket, this.key, new ByteArrayInputStream(content, 0, this.count), this.metadata);
+				if (this.acl != null) {
+					request = request.withCannedAcl(this.acl);
+				}
+				PutObjectResult result = this.s3Client.putObject(request);
+				this.eTag = result.getETag();
+				this.versionId = result.getVersionId();
+				return;
+			}
+			if (this.count > 0) {
+				this.uploadPart(true);
+			}
+			List<PartETag> partETags = new ArrayList<>();
+			for (Future<PartETag> part : this.parts) {
+				partETags.add(get(part));
+			}
+			CompleteMultipartUploadResult result = this.s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(this.bucket, this.key, this.uploadId, partETags));
+			this.eTag = result.getETag();
+			this.versionId = result.getVersionId();
+		} catch (IOException | RuntimeException e) {
+			this.abort();
+			throw e;
+		} finally {
+			this.buffer = null;
+		}
+	}
+	
+	/**
+	 * Stops uploading and removes the parts uploaded so far.
+	 */
+	public void abort() {
+		this.closed = true;
+		this.buffer = null;
+		for (Future<PartETag> part : this.parts) {
+			part.cancel(true);
+		}
+		if (this.uploadId != null) {
+			try {
+				this.s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(this.bucket, this.key, this.uploadId));
+			} catch (RuntimeException e) {
+				// the bucket lifecycle has to clean up
+			}
+			this.uploadId = null;
+		}
+	}
+	
+	private int getPartSize(int partNumber) {
+		long size = this.partSize << Math.min((partNumber - 1) / PARTS_PER_SIZE, 20);
+		return (int) Math.min(size, MAX_PART_SIZE);
+	}
+	
+	private void uploadPart(final boolean lastPart) throws IOException {
+		try {
+			if (this.uploadId == null) {
+				InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(this.bucket, this.key, this.metadata);
+				if (this.acl != null) {
+					request = request.withCannedACL(this.acl);
+				}
+				this.uploadId = this.s3Client.initiateMultipartUpload(request).getUploadId();
+			}
+			this.checkFailedParts();
+			// a part larger than the whole budget waits until all others are uploaded
+			this.bufferedKilobytes.acquire(this.permitsFor(this.count));
+		} catch (InterruptedException e) {
+			this.abort();
+			throw new InterruptedIOException("Upload of s3://" + this.bucket + "/" + this.key + " was interrupted");
+		} catch (IOException | RuntimeException e) {
+			this.abort();
+			throw e;
+		}
+		final int partNumber = this.parts.size() + 1;
+		final byte[] content = this.buffer;
+		final int length = this.count;
+		final int permits = this.permitsFor(length);
+		final String partUploadId = this.uploadId;
+		this.buffer = null;
+		this.count = 0;
+		this.parts.add(this.executor.submit(new Callable<PartETag>() {
+			@Override
+			public PartETag call() {
+				try {
+					UploadPartRequest request = new UploadPartRequest()
+							.withBucketName(StreamingMultipartUpload.this.bucket)
+							.withKey(StreamingMultipartUpload.this.key)
+							.withUploadId(partUploadId)
+							.withPartNumber(partNumber)
+							.withInputStream(new ByteArrayInputStream(content, 0, length))
+							.withPartSize(length)
+							.withMD5Digest(Base64.encodeAsString(Md5Utils.computeMD5Hash(new ByteArrayInputStream(content, 0, length))))
+							.withLastPart(lastPart);
+					return StreamingMultipartUpload.this.s3Client.uploadPart(request).getPartETag();
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				} finally {
+					StreamingMultipartUpload.this.bufferedKilobytes.release(permits);
+				}
+			}
+		}));
+	}
+	
+	private int permitsFor(int length) {
+		return Math.max(1, Math.min(this.budgetKilobytes, (length + KB - 1) / KB));
+	}
+	
+	private void checkFailedParts() throws IOException {
+		for (Future<PartETag> part : this.parts) {
+			if (part.isDone()) {
+				get(part);
+			}
+		}
+	}
+	
+	private static PartETag get(Future<PartETag> part) throws IOException {
+		try {
+			return part.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Upload was interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException("Failed to upload part", e.getCause());
+		}
+	}
+}
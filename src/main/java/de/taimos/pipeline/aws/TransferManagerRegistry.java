@@ -0,0 +1,360 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.taimos.pipeline.aws;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.client.builder.ExecutorFactory;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+
+import hudson.EnvVars;
+
+/**
+ * Agent JVM wide registry of S3 clients and TransferManagers.
+ * <p>
+ * Callables lease a TransferManager for their client options and AWS environment instead of building a new one each time,
+ * so HTTP connections are reused between steps. All TransferManagers share a global thread budget, their threads die
+ * when idle, and TransferManagers that were not leased for a while are shut down. A step that needs a new TransferManager
+ * while the budget is used up waits until another step releases its threads.
+ */
+public final class TransferManagerRegistry {
+	
+	private static final Logger LOGGER = Logger.getLogger(TransferManagerRegistry.class.getName());
+	
+	/**
+	 * System property for the maximum number of transfer threads of all TransferManagers in this JVM.
+	 */
+	static final String MAX_THREADS_PROPERTY = TransferManagerRegistry.class.getName() + ".maxThreads";
+	/**
+	 * System property for the number of seconds after which an unused TransferManager is shut down.
+	 */
+	static final String IDLE_TIMEOUT_PROPERTY = TransferManagerRegistry.class.getName() + ".idleTimeoutSeconds";
+	
+	/**
+	 * The SDK default pool size of a single TransferManager, used if the step does not configure transferThreads.
+	 */
+	private static final int THREADS_PER_MANAGER = 10;
+	static final int MAX_THREADS = Math.max(1, Integer.getInteger(MAX_THREADS_PROPERTY, 50));
+	private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(Math.max(1, Long.getLong(IDLE_TIMEOUT_PROPERTY, 300L)));
+	private static final long THREAD_KEEP_ALIVE_SECONDS = 60;
+	
+	/**
+	 * The environment variables that influence client creation in {@link AWSClientFactory}.
+	 */
+	private static final String[] CLIENT_VARIABLES = {
+			AWSClientFactory.AWS_PROFILE, AWSClientFactory.AWS_DEFAULT_PROFILE,
+			AWSClientFactory.AWS_ACCESS_KEY_ID, AWSClientFactory.AWS_SECRET_ACCESS_KEY, AWSClientFactory.AWS_SESSION_TOKEN,
+			AWSClientFactory.AWS_DEFAULT_REGION, AWSClientFactory.AWS_REGION, AWSClientFactory.AWS_ENDPOINT_URL,
+			ProxyConfiguration.HTTP_PROXY, ProxyConfiguration.HTTP_PROXY_LC, ProxyConfiguration.HTTPS_PROXY,
+			ProxyConfiguration.HTTPS_PROXY_LC, ProxyConfiguration.NO_PROXY, ProxyConfiguration.NO_PROXY_LC
+	};
+	
+	private static final Map<Key, Entry> ENTRIES = new HashMap<>();
+	private static ScheduledExecutorService evictor;
+	private static int threadsInUse = 0;
+	
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread("s3-transfer-manager-shutdown") {
+			@Override
+			public void run() {
+				TransferManagerRegistry.shutdownAll();
+			}
+		});
+	}
+	
+	private TransferManagerRegistry() {
+		//
+	}
+	
+	/**
+	 * Leases a TransferManager configured for the given options and environment.
+	 * The lease has to be closed when the transfers are done.
+	 *
+	 * @param options the S3 client options of the step
+	 * @param vars    the environment containing the AWS settings
+	 * @return the lease holding the shared TransferManager
+	 * @throws InterruptedException if the thread was interrupted while waiting for free transfer threads
+	 */
+	public static Lease acquire(S3ClientOptions options, EnvVars vars) throws InterruptedException {
+		S3ClientOptions resolved = options.withDefaults(vars);
+		Key key = new Key(resolved, vars);
+		synchronized (ENTRIES) {
+			if (resolved.getMaxBytesPerSecond() != null) {
+				// the bandwidth limit belongs to a single step, so its client is not shared and shut down with the lease
+				int poolSize = reserveThreads(resolved.getTransferThreads() != null ? resolved.getTransferThreads() : THREADS_PER_MANAGER);
+				Entry entry = new Entry(resolved, resolved.createAmazonS3(vars), poolSize);
+				entry.shared = false;
+				entry.leases++;
+				return new Lease(entry);
+			}
+			Entry entry = ENTRIES.get(key);
+			if (entry == null) {
+				int poolSize = reserveThreads(resolved.getTransferThreads() != null ? resolved.getTransferThreads() : THREADS_PER_MANAGER);
+				AmazonS3 s3Client = resolved.createAmazonS3(vars);
+				entry = new Entry(resolved, s3Client, poolSize);
+				ENTRIES.put(key, entry);
+				startEvictor();
+			}
+			entry.leases++;
+			entry.lastUsed = System.currentTimeMillis();
+			return new Lease(entry);
+		}
+	}
+	
+	/**
+	 * Shuts down all TransferManagers and their clients. Running transfers are aborted.
+	 */
+	public static void shutdownAll() {
+		List<Entry> entries;
+		synchronized (ENTRIES) {
+			entries = new ArrayList<>(ENTRIES.values());
+			ENTRIES.clear();
+			threadsInUse = 0;
+			ENTRIES.notifyAll();
+			if (evictor != null) {
+				evictor.shutdownNow();
+				evictor = null;
+			}
+		}
+		for (Entry entry : entries) {
+			entry.shutdown();
+		}
+	}
+	
+	/**
+	 * Determines the pool size of a new TransferManager, evicting unused TransferManagers if the budget is exhausted.
+	 * A new TransferManager gets the free threads up to the requested number; if no thread is free at all, this waits
+	 * until a lease is closed, so the budget is never exceeded. Must be called holding the lock on ENTRIES.
+	 */
+	private static int reserveThreads(int requested) throws InterruptedException {
+		if (MAX_THREADS - threadsInUse < requested) {
+			evictIdle(0);
+		}
+		while (MAX_THREADS - threadsInUse < 1) {
+			ENTRIES.wait();
+			evictIdle(0);
+		}
+		int poolSize = Math.max(1, Math.min(requested, MAX_THREADS - threadsInUse));
+		threadsInUse += poolSize;
+		return poolSize;
+	}
+	
+	private static void evictIdle(long idleMillis) {
+		List<Entry> evicted = new ArrayList<>();
+		synchronized (ENTRIES) {
+			long now = System.currentTimeMillis();
+			for (Iterator<Entry> iterator = ENTRIES.values().iterator(); iterator.hasNext(); ) {
+				Entry entry = iterator.next();
+				if (entry.leases == 0 && now - entry.lastUsed >= idleMillis) {
+					iterator.remove();
+					threadsInUse -= entry.poolSize;
+					evicted.add(entry);
+				}
+			}
+			if (!evicted.isEmpty()) {
+				ENTRIES.notifyAll();
+			}
+			if (ENTRIES.isEmpty() && evictor != null) {
+				evictor.shutdown();
+				evictor = null;
+			}
+		}
+		for (Entry entry : evicted) {
+			entry.shutdown();
+		}
+	}
+	
+	private static void startEvictor() {
+		if (evictor != null) {
+			return;
+		}
+		evictor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("s3-transfer-manager-evictor"));
+		long interval = Math.max(1000, IDLE_TIMEOUT_MILLIS / 2);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					TransferManagerRegistry.evictIdle(IDLE_TIMEOUT_MILLIS);
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Failed to evict idle TransferManagers", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * A lease on a shared TransferManager. Closing the lease does not shut down the TransferManager,
+	 * so it must not be used afterwards.
+	 */
+	public static final class Lease implements Closeable {
+		
+		private final Entry entry;
+		private boolean closed = false;
+		
+		private Lease(Entry entry) {
+			this.entry = entry;
+		}
+		
+		public TransferManager getTransferManager() {
+			return this.entry.transferManager;
+		}
+		
+		public AmazonS3 getAmazonS3() {
+			return this.entry.s3Client;
+		}
+		
+		/**
+		 * @return the thread pool of the TransferManager, for transfers that are not run by the TransferManager itself
+		 */
+		public ExecutorService getExecutorService() {
+			return this.entry.executor;
+		}
+		
+		@Override
+		public void close() {
+			synchronized (ENTRIES) {
+				if (this.closed) {
+					return;
+				}
+				this.closed = true;
+				this.entry.leases--;
+				this.entry.lastUsed = System.currentTimeMillis();
+				// waiting steps may evict a shared entry without leases or use the threads of this one
+				ENTRIES.notifyAll();
+				if (this.entry.shared) {
+					return;
+				}
+				threadsInUse -= this.entry.poolSize;
+			}
+			this.entry.shutdown();
+		}
+	}
+	
+	private static final class Entry {
+		
+		private final AmazonS3 s3Client;
+		private final TransferManager transferManager;
+		private final ExecutorService executor;
+		private final int poolSize;
+		private int leases = 0;
+		private long lastUsed;
+		private boolean shared = true;
+		
+		Entry(S3ClientOptions options, AmazonS3 s3Client, int poolSize) {
+			this.s3Client = s3Client;
+			this.poolSize = poolSize;
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+																	   new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("s3-transfer"));
+			executor.allowCoreThreadTimeOut(true);
+			this.executor = executor;
+			this.transferManager = options.configure(TransferManagerBuilder.standard())
+					.withS3Client(s3Client)
+					.withExecutorFactory(new ExecutorFactory() {
+						@Override
+						public ExecutorService newExecutor() {
+							return executor;
+						}
+					})
+					.withShutDownThreadPools(true)
+					.build();
+		}
+		
+		void shutdown() {
+			try {
+				// also shuts down the executor and the S3 client
+				this.transferManager.shutdownNow(true);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.FINE, "Failed to shut down TransferManager", e);
+			}
+		}
+	}
+	
+	/**
+	 * Identifies clients with identical settings and credentials.
+	 */
+	private static final class Key {
+		
+		private final S3ClientOptions options;
+		private final Map<String, String> variables = new TreeMap<>();
+		
+		Key(S3ClientOptions options, EnvVars vars) {
+			this.options = options;
+			for (String name : CLIENT_VARIABLES) {
+				String value = vars.get(name);
+				if (value != null) {
+					this.variables.put(name, value);
+				}
+			}
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key that = (Key) o;
+			return this.options.equals(that.options) && this.variables.equals(that.variables);
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * this.options.hashCode() + this.variables.hashCode();
+		}
+	}
+	
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		
+		private final String namePrefix;
+		private final AtomicInteger counter = new AtomicInteger();
+		
+		DaemonThreadFactory(String namePrefix) {
+			this.namePrefix = namePrefix;
+		}
+		
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, this.namePrefix + "-" + this.counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package de.taimos.pipeline.aws;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.s3.transfer.MultipleFileDownload;
+import com.amazonaws.services.s3.transfer.MultipleFileUpload;
+import com.amazonaws.services.s3.transfer.Transfer;
+import com.amazonaws.services.s3.transfer.TransferProgress;
+
+/**
+ * Reports the aggregated progress of all transfers of a step at a fixed interval and once at the end,
+ * instead of logging every single file, which floods the build log for large directories.
+ * <p>
+ * The progress is polled from the transfers, so no listener has to be installed on every transfer.
+ * Completed transfers are folded into running totals and dropped, so the memory used does not grow with the number of files.
+ */
+public class TransferProgressReporter implements Closeable {
+	
+	/**
+	 * The default interval of the intermediate reports.
+	 */
+	public static final int DEFAULT_INTERVAL_SECONDS = 10;
+	/**
+	 * The number of tracked transfers that triggers folding the completed ones into the totals.
+	 */
+	private static final int COMPACT_THRESHOLD = 1024;
+	
+	private final PrintStream logger;
+	private final String action;
+	private final Timer timer;
+	private final long startTime;
+	private final List<Transfer> transfers = new ArrayList<>();
+	private final List<Transfer> files = new ArrayList<>();
+	private final List<TransferProgress> progresses = new ArrayList<>();
+	private long completedBytes;
+	private long completedTotalBytes;
+	private int completedFiles;
+	private int compactAt = COMPACT_THRESHOLD;
+	private long lastReportTime;
+	private long lastReportBytes;
+	
+	/**
+	 * @param logger          the log to write to
+	 * @param action          the past tense of the transfer direction, e.g. "Uploaded"
+	 * @param intervalSeconds the interval of the intermediate reports or 0 to only report at the end
+	 */
+	public TransferProgressReporter(PrintStream logger, String action, int intervalSeconds) {
+		this.logger = logger;
+		this.action = action;
+		this.startTime = System.currentTimeMillis();
+		this.lastReportTime = this.startTime;
+		if (intervalSeconds > 0) {
+			long interval = TimeUnit.SECONDS.toMillis(intervalSeconds);
+			this.timer = new Timer("s3-transfer-progress", true);
+			this.timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					TransferProgressReporter.this.report();
+				}
+			}, interval, interval);
+		} else {
+			this.timer = null;
+		}
+	}
+	
+	/**
+	 * Adds a transfer to the report. The sub transfers of a {@link MultipleFileUpload} are counted as files,
+	 * a {@link MultipleFileDownload} only contributes its bytes.
+	 *
+	 * @param transfer the started transfer
+	 */
+	public void add(Transfer transfer) {
+		synchronized (this.transfers) {
+			this.transfers.add(transfer);
+			if (transfer instanceof MultipleFileUpload) {
+				this.files.addAll(((MultipleFileUpload) transfer).getSubTransfers());
+			} else if (!(transfer instanceof MultipleFileDownload)) {
+				this.files.add(transfer);
+			}
+			if (this.transfers.size() + this.files.size() >= this.compactAt) {
+				this.compact();
+				this.compactAt = Math.max(COMPACT_THRESHOLD, 2 * (this.transfers.size() + this.files.size()));
+			}
+		}
+	}
+	
+	/**
+	 * Adds the progress of a transfer that does not use the TransferManager, e.g. a download in ranges. It only
+	 * contributes its bytes and is folded into the totals once all of them are transferred.
+	 *
+	 * @param progress the progress that is updated while transferring
+	 */
+	public void add(TransferProgress progress) {
+		synchronized (this.transfers) {
+			this.progresses.add(progress);
+		}
+	}
+	
+	/**
+	 * Removes a transfer from the report, e.g. a failed transfer that is replaced by a retry.
+	 *
+	 * @param transfer the transfer added before
+	 */
+	public void remove(Transfer transfer) {
+		synchronized (this.transfers) {
+			this.transfers.remove(transfer);
+			this.files.remove(transfer);
+		}
+	}
+	
+	/**
+	 * Removes the progress of a failed transfer that does not use the TransferManager.
+	 *
+	 * @param progress the progress added before
+	 */
+	public void remove(TransferProgress progress) {
+		synchronized (this.transfers) {
+			this.progresses.remove(progress);
+		}
+	}
+	
+	/**
+	 * Logs the current progress, throughput since the last report and the estimated remaining time.
+	 */
+	public void report() {
+		Snapshot snapshot = this.snapshot();
+		long now = System.currentTimeMillis();
+		long bytesPerSecond;
+		synchronized (this) {
+			bytesPerSecond = rate(snapshot.bytesTransferred - this.lastReportBytes, now - this.lastReportTime);
+			this.lastReportTime = now;
+			this.lastReportBytes = snapshot.bytesTransferred;
+		}
+		StringBuilder line = new StringBuilder(this.action).append(' ');
+		if (snapshot.totalFiles > 0) {
+			line.append(String.format(Locale.ENGLISH, "%d of %d files, ", snapshot.completedFiles, snapshot.totalFiles));
+		}
+		line.append(formatBytes(snapshot.bytesTransferred));
+		if (snapshot.totalBytes > 0) {
+			line.append(" of ").append(formatBytes(snapshot.totalBytes))
+					.append(String.format(Locale.ENGLISH, " (%d%%)", snapshot.bytesTransferred * 100 / snapshot.totalBytes));
+		}
+		line.append(", ").append(formatBytes(bytesPerSecond)).append("/s");
+		if (snapshot.totalBytes > snapshot.bytesTransferred && bytesPerSecond > 0) {
+			line.append(", ETA ").append(formatDuration(TimeUnit.SECONDS.toMillis((snapshot.totalBytes - snapshot.bytesTransferred) / bytesPerSecond)));
+		}
+		this.logger.println(line);
+	}
+	
+	/**
+	 * Stops the intermediate reports and logs the totals.
+	 */
+	@Override
+	public void close() {
+		if (this.timer != null) {
+			this.timer.cancel();
+		}
+		Snapshot snapshot = this.snapshot();
+		long duration = System.currentTimeMillis() - this.startTime;
+		StringBuilder line = new StringBuilder(this.action).append(' ');
+		if (snapshot.totalFiles > 0) {
+			line.append(String.format(Locale.ENGLISH, "%d of %d files, ", snapshot.completedFiles, snapshot.totalFiles));
+		}
+		line.append(formatBytes(snapshot.bytesTransferred))
+				.append(" in ").append(formatDuration(duration))
+				.append(" (").append(formatBytes(rate(snapshot.bytesTransferred, duration))).append("/s)");
+		this.logger.println(line);
+	}
+	
+	private Snapshot snapshot() {
+		Snapshot snapshot = new Snapshot();
+		synchronized (this.transfers) {
+			this.compact();
+			snapshot.bytesTransferred = this.completedBytes;
+			snapshot.totalBytes = this.completedTotalBytes;
+			for (Transfer transfer : this.transfers) {
+				TransferProgress progress = transfer.getProgress();
+				snapshot.bytesTransferred += progress.getBytesTransferred();
+				snapshot.totalBytes += Math.max(0, progress.getTotalBytesToTransfer());
+			}
+			for (TransferProgress progress : this.progresses) {
+				snapshot.bytesTransferred += progress.getBytesTransferred();
+				snapshot.totalBytes += Math.max(0, progress.getTotalBytesToTransfer());
+			}
+			snapshot.completedFiles = this.completedFiles;
+			snapshot.totalFiles = this.completedFiles + this.files.size();
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Moves the completed transfers into the totals. Must be called holding the lock on the transfer list.
+	 */
+	private void compact() {
+		for (Iterator<Transfer> iterator = this.transfers.iterator(); iterator.hasNext(); ) {
+			Transfer transfer = iterator.next();
+			if (transfer.getState() == Transfer.TransferState.Completed) {
+				TransferProgress progress = transfer.getProgress();
+				this.completedBytes += progress.getBytesTransferred();
+				this.completedTotalBytes += Math.max(0, progress.getTotalBytesToTransfer());
+				iterator.remove();
+			}
+		}
+		for (Iterator<TransferProgress> iterator = this.progresses.iterator(); iterator.hasNext(); ) {
+			TransferProgress progress = iterator.next();
+			if (progress.getTotalBytesToTransfer() >= 0 && progress.getBytesTransferred() >= progress.getTotalBytesToTransfer()) {
+				this.completedBytes += progress.getBytesTransferred();
+				this.completedTotalBytes += progress.getTotalBytesToTransfer();
+				iterator.remove();
+			}
+		}
+		for (Iterator<Transfer> iterator = this.files.iterator(); iterator.hasNext(); ) {
+			if (iterator.next().getState() == Transfer.TransferState.Completed) {
+				this.completedFiles++;
+				iterator.remove();
+			}
+		}
+	}
+	
+	private static long rate(long bytes, long millis) {
+		return millis > 0 ? bytes * 1000 / millis : 0;
+	}
+	
+	static String formatBytes(long bytes) {
+		if (bytes < 1024) {
+			return bytes + " B";
+		}
+		String[] units = {"KB", "MB", "GB", "TB"};
+		double value = bytes / 1024.0;
+		int unit = 0;
+		while (value >= 1024 && unit < units.length - 1) {
+			value /= 1024;
+			unit++;
+		}
+		return String.format(Locale.ENGLISH, "%.1f %s", value, units[unit]);
+	}
+	
+	static String formatDuration(long millis) {
+		long seconds = TimeUnit.MILLISECONDS.toSeconds(millis);
+		return String.format(Locale.ENGLISH, "%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+	}
+	
+	private static final class Snapshot {
+		private long bytesTransferred;
+		private long totalBytes;
+		private int completedFiles;
+		private int totalFiles;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the objects stored by an upload. The manifest is either kept in memory and returned to the pipeline
+ * or, for very large uploads, written to a file with one JSON object per line, so it never has to fit into memory.
+ */
+public class UploadManifest implements Closeable {
+	
+	private final Map<String, UploadedObject> objects;
+	private final Writer writer;
+	private int size;
+	
+	private UploadManifest(Map<String, UploadedObject> objects, Writer writer) {
+		this.objects = objects;
+		this.writer = writer;
+	}
+	
+	/**
+	 * @return a manifest that keeps all objects in memory
+	 */
+	public static UploadManifest inMemory() {
+		return new UploadManifest(new TreeMap<String, UploadedObject>(), null);
+	}
+	
+	/**
+	 * @param file the JSON-lines file to write; it is replaced if it exists
+	 * @return a manifest that writes all objects to the given file
+	 * @throws IOException if the file cannot be created
+	 */
+	public static UploadManifest toFile(File file) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Failed to create directory " + parent);
+		}
+		return new UploadManifest(null, new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)));
+	}
+	
+	/**
+	 * Adds an object. Objects are listed under their local path, archives under their key.
+	 *
+	 * @param object the stored object
+	 * @throws IOException if the manifest file cannot be written
+	 */
+	public synchronized void add(UploadedObject object) throws IOException {
+		if (this.writer != null) {
+			this.writer.write(object.toJson());
+			this.writer.write('\n');
+		} else {
+			this.objects.put(object.getPath() != null ? object.getPath() : object.getKey(), object);
+		}
+		this.size++;
+	}
+	
+	/**
+	 * @return the number of objects added
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+	
+	/**
+	 * @return the objects by local path or null if the manifest is written to a file
+	 */
+	public synchronized Map<String, UploadedObject> getObjects() {
+		return this.objects;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (this.writer != null) {
+			this.writer.close();
+		}
+	}
+}
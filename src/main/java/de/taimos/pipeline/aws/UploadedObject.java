@@ -0,0 +1,155 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.Serializable;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.Whitelisted;
+
+/**
+ * Describes an object stored by s3Upload, so pipelines do not need to list the bucket again to find it.
+ */
+public class UploadedObject implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final String path;
+	@Nonnull
+	private final String key;
+	private final long size;
+	private final String eTag;
+	private final String versionId;
+	private final long duration;
+	
+	/**
+	 * @param path      the path of the local file relative to the uploaded directory or null for archives
+	 * @param key       the S3 key
+	 * @param size      the number of bytes stored
+	 * @param eTag      the ETag of the object
+	 * @param versionId the version id or null if the bucket is not versioned or the object already existed
+	 * @param duration  the milliseconds the upload took; 0 if the object already existed
+	 */
+	public UploadedObject(String path, @Nonnull String key, long size, String eTag, String versionId, long duration) {
+		this.path = path;
+		this.key = key;
+		this.size = size;
+		this.eTag = eTag;
+		this.versionId = versionId;
+		this.duration = duration;
+	}
+	
+	@Whitelisted
+	@CheckForNull
+	public String getPath() {
+		return this.path;
+	}
+	
+	@Whitelisted
+	@Nonnull
+	public String getKey() {
+		return this.key;
+	}
+	
+	@Whitelisted
+	public long getSize() {
+		return this.size;
+	}
+	
+	@Whitelisted
+	@CheckForNull
+	public String getETag() {
+		return this.eTag;
+	}
+	
+	@Whitelisted
+	@CheckForNull
+	public String getVersionId() {
+		return this.versionId;
+	}
+	
+	@Whitelisted
+	public long getDuration() {
+		return this.duration;
+	}
+	
+	/**
+	 * @return this object as a single line JSON object
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder("{");
+		appendJson(json, "path", this.path).append(',');
+		appendJson(json, "key", this.key).append(',');
+		json.append("\"size\":").append(this.size).append(',');
+		appendJson(json, "eTag", this.eTag).append(',');
+		appendJson(json, "versionId", this.versionId).append(',');
+		json.append("\"duration\":").append(this.duration);
+		return json.append('}').toString();
+	}
+	
+	private static StringBuilder appendJson(StringBuilder json, String name, String value) {
+		json.append('"').append(name).append("\":");
+		if (value == null) {
+			return json.append("null");
+		}
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append('"');
+	}
+	
+	@Override
+	@Whitelisted
+	@Nonnull
+	public String toString() {
+		return this.key;
+	}
+	
+	@Override
+	@Whitelisted
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof UploadedObject)) {
+			return false;
+		}
+		UploadedObject that = (UploadedObject) o;
+		return this.key.equals(that.key) && (this.path == null ? that.path == null : this.path.equals(that.path));
+	}
+	
+	@Override
+	@Whitelisted
+	public int hashCode() {
+		return 31 * this.key.hashCode() + (this.path != null ? this.path.hashCode() : 0);
+	}
+}
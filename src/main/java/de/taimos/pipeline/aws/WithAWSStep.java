@@ -74,6 +74,11 @@ public class WithAWSStep extends AbstractStepImpl {
 	private String externalId = "";
 	private String federatedUserId = "";
 	private String policy = "";
+	private String s3MultipartThreshold = "";
+	private String s3MultipartPartSize = "";
+	private String s3MaxConnections = "";
+	private String s3TransferThreads = "";
+	private String s3MaxBytesPerSecond = "";
 	
 	@DataBoundConstructor
 	public WithAWSStep() {
@@ -161,6 +166,51 @@ public class WithAWSStep extends AbstractStepImpl {
 		this.policy = policy;
 	}
 	
+	public String getS3MultipartThreshold() {
+		return this.s3MultipartThreshold;
+	}
+	
+	@DataBoundSetter
+	public void setS3MultipartThreshold(String s3MultipartThreshold) {
+		this.s3MultipartThreshold = s3MultipartThreshold;
+	}
+	
+	public String getS3MultipartPartSize() {
+		return this.s3MultipartPartSize;
+	}
+	
+	@DataBoundSetter
+	public void setS3MultipartPartSize(String s3MultipartPartSize) {
+		this.s3MultipartPartSize = s3MultipartPartSize;
+	}
+	
+	public String getS3MaxConnections() {
+		return this.s3MaxConnections;
+	}
+	
+	@DataBoundSetter
+	public void setS3MaxConnections(String s3MaxConnections) {
+		this.s3MaxConnections = s3MaxConnections;
+	}
+	
+	public String getS3TransferThreads() {
+		return this.s3TransferThreads;
+	}
+	
+	@DataBoundSetter
+	public void setS3TransferThreads(String s3TransferThreads) {
+		this.s3TransferThreads = s3TransferThreads;
+	}
+	
+	public String getS3MaxBytesPerSecond() {
+		return this.s3MaxBytesPerSecond;
+	}
+	
+	@DataBoundSetter
+	public void setS3MaxBytesPerSecond(String s3MaxBytesPerSecond) {
+		this.s3MaxBytesPerSecond = s3MaxBytesPerSecond;
+	}
+	
 	@Extension
 	public static class DescriptorImpl extends AbstractStepDescriptorImpl {
 		
@@ -220,6 +270,7 @@ public class WithAWSStep extends AbstractStepImpl {
 			this.withEndpointUrl(awsEnv);
 			this.withRole(awsEnv);
 			this.withFederatedUserId(awsEnv);
+			this.withS3Transfer(awsEnv);
 			
 			EnvironmentExpander expander = new EnvironmentExpander() {
 				@Override
@@ -322,6 +373,22 @@ public class WithAWSStep extends AbstractStepImpl {
 			}
 		}
 		
+		private void withS3Transfer(@Nonnull EnvVars localEnv) {
+			this.withS3TransferSetting(localEnv, S3ClientOptions.AWS_S3_MULTIPART_THRESHOLD, "multipart threshold", this.step.getS3MultipartThreshold());
+			this.withS3TransferSetting(localEnv, S3ClientOptions.AWS_S3_MULTIPART_PART_SIZE, "multipart part size", this.step.getS3MultipartPartSize());
+			this.withS3TransferSetting(localEnv, S3ClientOptions.AWS_S3_MAX_CONNECTIONS, "max connections", this.step.getS3MaxConnections());
+			this.withS3TransferSetting(localEnv, S3ClientOptions.AWS_S3_TRANSFER_THREADS, "transfer threads", this.step.getS3TransferThreads());
+			this.withS3TransferSetting(localEnv, S3ClientOptions.AWS_S3_MAX_BYTES_PER_SECOND, "max bytes per second", this.step.getS3MaxBytesPerSecond());
+		}
+		
+		private void withS3TransferSetting(@Nonnull EnvVars localEnv, String name, String description, String value) {
+			if (!StringUtils.isNullOrEmpty(value)) {
+				this.listener.getLogger().format("Setting S3 %s %s %n ", description, value);
+				localEnv.override(name, value);
+				this.envVars.overrideAll(localEnv);
+			}
+		}
+		
 		private void withProfile(@Nonnull EnvVars localEnv) {
 			if (!StringUtils.isNullOrEmpty(this.step.getProfile())) {
 				this.listener.getLogger().format("Setting AWS profile %s %n ", this.step.getProfile());
@@ -0,0 +1,119 @@
+package de.taimos.pipeline.aws.utils;
+
+/*-
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 - 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * Matches relative paths against comma separated Ant style include and exclude patterns,
+ * the same way {@link hudson.FilePath#list(String, String, boolean)} does for local files.
+ * This allows applying the patterns to S3 keys and to files found during a directory walk.
+ */
+public class AntPathFilter implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<String> includes;
+	private final List<String> excludes;
+
+	public AntPathFilter(String includes, String excludes, boolean defaultExcludes) {
+		this.includes = tokenize(includes);
+		this.excludes = tokenize(excludes);
+		if (defaultExcludes) {
+			for (String exclude : DirectoryScanner.getDefaultExcludes()) {
+				this.excludes.add(normalize(exclude));
+			}
+		}
+		if (this.includes.isEmpty()) {
+			this.includes.add("**");
+		}
+	}
+
+	/**
+	 * @param relativePath the path relative to the base directory or key prefix, using "/" or the platform separator
+	 * @return true if the path matches one of the includes and none of the excludes
+	 */
+	public boolean matches(String relativePath) {
+		String path = normalize(relativePath);
+		return matchesAny(this.includes, path) && !matchesAny(this.excludes, path);
+	}
+
+	/**
+	 * Checks if files below the given directory can match at all, so directory walks can skip it.
+	 *
+	 * @param relativeDir the directory relative to the base directory, using "/" or the platform separator
+	 * @return false if no file below the directory can match
+	 */
+	public boolean mayMatchBelow(String relativeDir) {
+		String path = normalize(relativeDir);
+		for (String exclude : this.excludes) {
+			// "dir/**" excludes the directory with all its content
+			if (exclude.endsWith(File.separator + "**") && SelectorUtils.matchPath(exclude.substring(0, exclude.length() - 3), path, true)) {
+				return false;
+			}
+		}
+		for (String include : this.includes) {
+			if (SelectorUtils.matchPatternStart(include, path, true)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matchesAny(List<String> patterns, String path) {
+		for (String pattern : patterns) {
+			if (SelectorUtils.matchPath(pattern, path, true)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<String> tokenize(String patterns) {
+		List<String> result = new ArrayList<>();
+		if (patterns == null) {
+			return result;
+		}
+		StringTokenizer tokenizer = new StringTokenizer(patterns, ", ", false);
+		while (tokenizer.hasMoreTokens()) {
+			String pattern = normalize(tokenizer.nextToken().trim());
+			if (pattern.endsWith(File.separator)) {
+				// Ant treats "dir/" as "dir/**"
+				pattern += "**";
+			}
+			if (!pattern.isEmpty()) {
+				result.add(pattern);
+			}
+		}
+		return result;
+	}
+
+	private static String normalize(String path) {
+		return path.replace('/', File.separatorChar).replace('\\', File.separatorChar);
+	}
+}
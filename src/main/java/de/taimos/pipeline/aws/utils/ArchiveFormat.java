@@ -0,0 +1,257 @@
+package de.taimos.pipeline.aws.utils;
+
+/*-
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 - 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+
+/**
+ * Archive formats that many files can be streamed into and out of a single object with.
+ * Zip archives can only be extracted; as they are read while streaming, executable bits of their files are not restored.
+ */
+public enum ArchiveFormat {
+	
+	TAR("tar", "application/x-tar", new Compressor() {
+		@Override
+		public OutputStream compress(OutputStream out) {
+			return out;
+		}
+	}) {
+		@Override
+		ArchiveInputStream openArchive(InputStream in) {
+			return new TarArchiveInputStream(in);
+		}
+	},
+	TGZ("tgz", "application/gzip", new Compressor() {
+		@Override
+		public OutputStream compress(OutputStream out) throws IOException {
+			return new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+	}) {
+		@Override
+		ArchiveInputStream openArchive(InputStream in) throws IOException {
+			return new TarArchiveInputStream(new GZIPInputStream(in, BUFFER_SIZE));
+		}
+	},
+	// zip archives can only be extracted, so there is nothing to create them with
+	ZIP("zip", "application/zip", null) {
+		@Override
+		ArchiveInputStream openArchive(InputStream in) {
+			// the sizes of stored entries written by streaming tools are only known from the data descriptor
+			return new ZipArchiveInputStream(in, "UTF-8", true, true);
+		}
+	};
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int EXECUTABLE_MODE = 0100755;
+	
+	private final String name;
+	private final String contentType;
+	private final Compressor compressor;
+	
+	ArchiveFormat(String name, String contentType, Compressor compressor) {
+		this.name = name;
+		this.contentType = contentType;
+		this.compressor = compressor;
+	}
+	
+	/**
+	 * @param name the name of the format, "tar" or "tgz"
+	 * @return the matching format
+	 * @throws IllegalArgumentException if the format is not supported
+	 */
+	public static ArchiveFormat fromName(String name) {
+		for (ArchiveFormat format : values()) {
+			if (format.name.equalsIgnoreCase(name)) {
+				return format;
+			}
+		}
+		if ("tar.gz".equalsIgnoreCase(name)) {
+			return TGZ;
+		}
+		throw new IllegalArgumentException("Unsupported archive format " + name + ", supported are tar, tgz and zip");
+	}
+	
+	/**
+	 * @param key the key or file name of an archive
+	 * @return the format matching the extension, ".tar", ".tgz", ".tar.gz" or ".zip"
+	 * @throws IllegalArgumentException if the extension is not supported
+	 */
+	public static ArchiveFormat fromKey(String key) {
+		String name = key.toLowerCase();
+		if (name.endsWith(".tar")) {
+			return TAR;
+		}
+		if (name.endsWith(".tgz") || name.endsWith(".tar.gz")) {
+			return TGZ;
+		}
+		if (name.endsWith(".zip")) {
+			return ZIP;
+		}
+		throw new IllegalArgumentException("Cannot detect the archive format of " + key + ", set archive to tar, tgz or zip");
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	
+	public String getContentType() {
+		return this.contentType;
+	}
+	
+	abstract ArchiveInputStream openArchive(InputStream in) throws IOException;
+	
+	/**
+	 * @return false if archives of this format can only be extracted
+	 */
+	public boolean canCreate() {
+		return this.compressor != null;
+	}
+	
+	/**
+	 * @param out the stream to write the archive to
+	 * @return a stream to add the files to; closing it closes the given stream
+	 * @throws IOException           if the stream cannot be written
+	 * @throws IllegalStateException if archives of this format can only be extracted, see {@link #canCreate()}
+	 */
+	public TarArchiveOutputStream createOutputStream(OutputStream out) throws IOException {
+		if (this.compressor == null) {
+			throw new IllegalStateException("Archives of format " + this.name + " can only be extracted");
+		}
+		TarArchiveOutputStream tar = new TarArchiveOutputStream(this.compressor.compress(out));
+		tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+		tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+		return tar;
+	}
+	
+	/**
+	 * Adds a file to an archive.
+	 *
+	 * @param tar          the archive
+	 * @param file         the file
+	 * @param relativePath the path of the file inside the archive
+	 * @throws IOException if the file cannot be read or the archive cannot be written
+	 */
+	public static void addFile(TarArchiveOutputStream tar, File file, String relativePath) throws IOException {
+		TarArchiveEntry entry = new TarArchiveEntry(file, relativePath.replace('\\', '/'));
+		if (file.canExecute()) {
+			entry.setMode(EXECUTABLE_MODE);
+		}
+		tar.putArchiveEntry(entry);
+		try (InputStream in = new FileInputStream(file)) {
+			copy(in, tar);
+		}
+		tar.closeArchiveEntry();
+	}
+	
+	/**
+	 * Extracts an archive while it is read. Entries that are neither files nor directories are skipped.
+	 *
+	 * @param in        the archive
+	 * @param targetDir the directory to extract to
+	 * @return the number of extracted files
+	 * @throws IOException          if the archive cannot be read, a file cannot be written or an entry points outside the target directory
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	public int extract(InputStream in, File targetDir) throws IOException, InterruptedException {
+		mkdirs(targetDir);
+		String targetPath = targetDir.getCanonicalPath() + File.separator;
+		int files = 0;
+		ArchiveInputStream archive = this.openArchive(in);
+		ArchiveEntry entry;
+		while ((entry = archive.getNextEntry()) != null) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException("Extracting was interrupted");
+			}
+			File file = new File(targetDir, entry.getName());
+			if (!file.getCanonicalPath().startsWith(targetPath) && !file.getCanonicalPath().equals(targetDir.getCanonicalPath())) {
+				throw new IOException("Archive entry " + entry.getName() + " points outside of " + targetDir);
+			}
+			if (entry.isDirectory()) {
+				mkdirs(file);
+			} else if (isFile(entry)) {
+				mkdirs(file.getParentFile());
+				try (OutputStream out = new FileOutputStream(file)) {
+					copy(archive, out);
+				}
+				if ((getMode(entry) & 0100) != 0 && !file.setExecutable(true)) {
+					throw new IOException("Failed to make " + file + " executable");
+				}
+				// zip entries may have no modification time
+				long lastModified = entry.getLastModifiedDate().getTime();
+				if (lastModified > 0 && !file.setLastModified(lastModified)) {
+					throw new IOException("Failed to set the modification time of " + file);
+				}
+				files++;
+			}
+		}
+		return files;
+	}
+	
+	private static boolean isFile(ArchiveEntry entry) {
+		if (entry instanceof TarArchiveEntry) {
+			return ((TarArchiveEntry) entry).isFile();
+		}
+		return !entry.isDirectory();
+	}
+	
+	private static int getMode(ArchiveEntry entry) {
+		if (entry instanceof TarArchiveEntry) {
+			return ((TarArchiveEntry) entry).getMode();
+		}
+		// zip keeps the unix mode in the central directory at the end of the archive, which is not read while streaming
+		return 0;
+	}
+	
+	private static void mkdirs(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Failed to create " + dir);
+		}
+	}
+	
+	/**
+	 * Compresses the tar stream of the formats that archives can be created in.
+	 */
+	private interface Compressor {
+		OutputStream compress(OutputStream out) throws IOException;
+	}
+	
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package de.taimos.pipeline.aws.utils;
+
+/*-
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 - 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.internal.SSEResultBase;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.SSEAlgorithm;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Computes the expected ETags of uploaded files in the background, so hashing overlaps with the network transfer.
+ * Every part of a file is hashed as a task of its own over a memory-mapped region, so large files are hashed on all cores.
+ */
+public class ChecksumCalculator implements Closeable {
+	
+	/**
+	 * The size of the regions mapped at once; bounds the address space used per task.
+	 */
+	private static final long MAP_SIZE = 64L * 1024 * 1024;
+	/**
+	 * The AWS SDK never uploads more parts than this.
+	 */
+	private static final long MAX_PARTS = 10000;
+	
+	private final ExecutorService executor;
+	
+	public ChecksumCalculator() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	public ChecksumCalculator(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "s3-checksum-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Computes the part size the TransferManager uses for a file.
+	 *
+	 * @param configuration the configuration of the TransferManager
+	 * @param length        the length of the file
+	 * @return the part size or 0 if the file is uploaded with a single PUT
+	 */
+	public static long partSizeFor(TransferManagerConfiguration configuration, long length) {
+		if (length <= configuration.getMultipartUploadThreshold()) {
+			return 0;
+		}
+		return Math.max(configuration.getMinimumUploadPartSize(), (length + MAX_PARTS - 1) / MAX_PARTS);
+	}
+	
+	/**
+	 * Starts computing the ETag of a file.
+	 *
+	 * @param file     the file
+	 * @param partSize the part size of a multipart upload or 0 for a single PUT
+	 * @return the pending checksum
+	 */
+	public Checksum submit(File file, long partSize) {
+		long length = file.length();
+		List<Future<byte[]>> parts = new ArrayList<>();
+		if (partSize <= 0) {
+			parts.add(this.digest(file, 0, length));
+		} else {
+			for (long offset = 0; offset < length || parts.isEmpty(); offset += partSize) {
+				parts.add(this.digest(file, offset, Math.min(partSize, length - offset)));
+			}
+		}
+		return new Checksum(parts, partSize > 0);
+	}
+	
+	/**
+	 * Starts computing the MD5 of a region of a file.
+	 *
+	 * @param file   the file
+	 * @param offset the position of the first byte
+	 * @param length the number of bytes
+	 * @return the pending binary MD5
+	 */
+	public Future<byte[]> digest(final File file, final long offset, final long length) {
+		return this.executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				return md5(file, offset, length);
+			}
+		});
+	}
+	
+	@Override
+	public void close() {
+		this.executor.shutdownNow();
+	}
+	
+	static byte[] md5(File file, long offset, long length) throws IOException {
+		MessageDigest digest = ETagUtils.newMd5();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			for (long position = offset; position < offset + length; position += MAP_SIZE) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, offset + length - position));
+				digest.update(buffer);
+			}
+		}
+		return digest.digest();
+	}
+	
+	/**
+	 * @param digest the pending digest
+	 * @return the hex MD5
+	 * @throws IOException          if the file could not be read
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	public static String toHex(Future<byte[]> digest) throws IOException, InterruptedException {
+		return BinaryUtils.toHex(get(digest));
+	}
+	
+	/**
+	 * Objects and parts encrypted with SSE-KMS or SSE-C have an ETag that is not the MD5 of their content.
+	 *
+	 * @param result the result of an upload
+	 * @return true if the ETag of the result can be compared with a checksum
+	 */
+	public static boolean hasMd5ETag(SSEResultBase result) {
+		return hasMd5ETag(result.getSSEAlgorithm(), result.getSSECustomerAlgorithm());
+	}
+	
+	/**
+	 * @param metadata the metadata of an object
+	 * @return true if the ETag of the object can be compared with a checksum
+	 * @see #hasMd5ETag(SSEResultBase)
+	 */
+	public static boolean hasMd5ETag(ObjectMetadata metadata) {
+		return hasMd5ETag(metadata.getSSEAlgorithm(), metadata.getSSECustomerAlgorithm());
+	}
+	
+	private static boolean hasMd5ETag(String sseAlgorithm, String sseCustomerAlgorithm) {
+		return !SSEAlgorithm.KMS.getAlgorithm().equals(sseAlgorithm) && sseCustomerAlgorithm == null;
+	}
+	
+	private static byte[] get(Future<byte[]> digest) throws IOException, InterruptedException {
+		try {
+			return digest.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to compute checksum", e.getCause());
+		}
+	}
+	
+	/**
+	 * The ETag of a file that is still being computed.
+	 */
+	public static final class Checksum {
+		
+		private final List<Future<byte[]>> parts;
+		private final boolean multipart;
+		
+		Checksum(List<Future<byte[]>> parts, boolean multipart) {
+			this.parts = parts;
+			this.multipart = multipart;
+		}
+		
+		/**
+		 * Waits for the checksum.
+		 *
+		 * @return the ETag S3 reports for the file if it was transferred intact
+		 * @throws IOException          if the file could not be read
+		 * @throws InterruptedException if the thread was interrupted
+		 */
+		public String getETag() throws IOException, InterruptedException {
+			if (!this.multipart) {
+				return toHex(this.parts.get(0));
+			}
+			MessageDigest total = ETagUtils.newMd5();
+			for (Future<byte[]> part : this.parts) {
+				total.update(get(part));
+			}
+			return BinaryUtils.toHex(total.digest()) + "-" + this.parts.size();
+		}
+		
+		/**
+		 * Checks the ETag reported by S3. The result of a TransferManager upload does not tell the encryption of the
+		 * object, so on a mismatch a HEAD request tells if the object was encrypted with SSE-KMS, e.g. by the default
+		 * encryption of the bucket, and has no MD5 ETag to compare with.
+		 *
+		 * @param eTag     the ETag of the uploaded object
+		 * @param s3Client the client to look up the encryption of the object with
+		 * @param bucket   the bucket of the object
+		 * @param key      the key of the object
+		 * @return true if the ETag matches, false if the object has no MD5 ETag and cannot be verified
+		 * @throws IOException          if the ETag does not match or the file could not be read
+		 * @throws InterruptedException if the thread was interrupted
+		 */
+		public boolean verify(String eTag, AmazonS3 s3Client, String bucket, String key) throws IOException, InterruptedException {
+			String expected = this.getETag();
+			if (expected.equals(ETagUtils.normalize(eTag))) {
+				return true;
+			}
+			if (!hasMd5ETag(s3Client.getObjectMetadata(bucket, key))) {
+				return false;
+			}
+			throw new IOException(String.format("Checksum mismatch for s3://%s/%s: expected ETag %s but S3 reported %s", bucket, key, expected, ETagUtils.normalize(eTag)));
+		}
+		
+		/**
+		 * Stops computing the checksum.
+		 */
+		public void cancel() {
+			for (Future<byte[]> part : this.parts) {
+				part.cancel(true);
+			}
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package de.taimos.pipeline.aws.utils;
+
+/*-
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 - 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.amazonaws.services.s3.internal.Mimetypes;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Content encodings that files can be compressed with while they are uploaded.
+ * <p>
+ * A file is compressed in a single pass straight into its upload, so the compressed copy is never written to disk.
+ * The MD5 of the original content is stored in the user metadata of the object, so a sync recognizes unchanged files
+ * without compressing them again.
+ */
+public enum Compression {
+	
+	GZIP("gzip") {
+		@Override
+		OutputStream wrap(OutputStream out) throws IOException {
+			return new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+	},
+	DEFLATE("deflate") {
+		@Override
+		OutputStream wrap(OutputStream out) throws IOException {
+			return new DeflaterOutputStream(out);
+		}
+	};
+	
+	/**
+	 * The user metadata that holds the hex MD5 of the content before it was compressed.
+	 */
+	public static final String UNCOMPRESSED_MD5 = "uncompressed-md5";
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private final String contentEncoding;
+	
+	Compression(String contentEncoding) {
+		this.contentEncoding = contentEncoding;
+	}
+	
+	/**
+	 * @param contentEncoding the value of the Content-Encoding header
+	 * @return the matching compression
+	 * @throws IllegalArgumentException if the encoding is not supported
+	 */
+	public static Compression fromContentEncoding(String contentEncoding) {
+		for (Compression compression : values()) {
+			if (compression.contentEncoding.equalsIgnoreCase(contentEncoding)) {
+				return compression;
+			}
+		}
+		throw new IllegalArgumentException("Unsupported compression " + contentEncoding + ", supported are gzip and deflate");
+	}
+	
+	/**
+	 * @param length the length of the original content
+	 * @return an upper bound of the compressed length, for content that does not compress at all
+	 */
+	public static long maxCompressedLength(long length) {
+		// stored deflate blocks add a few bytes per block, gzip adds its header and trailer
+		return length + (length >> 11) + 1024;
+	}
+	
+	public String getContentEncoding() {
+		return this.contentEncoding;
+	}
+	
+	abstract OutputStream wrap(OutputStream out) throws IOException;
+	
+	/**
+	 * Compresses a file in a single pass.
+	 *
+	 * @param file the file to compress
+	 * @param out  the stream to write the compressed content to; it is left open
+	 * @return the hex MD5 of the original content
+	 * @throws IOException if the file cannot be read, the stream cannot be written or the thread was interrupted
+	 */
+	public String compress(File file, OutputStream out) throws IOException {
+		MessageDigest digest = ETagUtils.newMd5();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		// closing the compressor writes the trailer and frees its native memory, but must not close the target
+		try (InputStream in = new FileInputStream(file); OutputStream compressor = this.wrap(new KeepOpenOutputStream(out))) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException("Compressing " + file + " was interrupted");
+				}
+				digest.update(buffer, 0, read);
+				compressor.write(buffer, 0, read);
+			}
+		}
+		return BinaryUtils.toHex(digest.digest());
+	}
+	
+	/**
+	 * Creates the metadata of the compressed object. The Content-Type is kept, so clients that accept the encoding
+	 * get the original file.
+	 *
+	 * @param request the upload of the file
+	 * @return a copy of the metadata of the request with the Content-Type and Content-Encoding set
+	 */
+	public ObjectMetadata createMetadata(PutObjectRequest request) {
+		ObjectMetadata metadata = request.getMetadata() != null ? request.getMetadata().clone() : new ObjectMetadata();
+		if (metadata.getContentType() == null) {
+			metadata.setContentType(Mimetypes.getInstance().getMimetype(request.getFile()));
+		}
+		metadata.setContentEncoding(this.contentEncoding);
+		return metadata;
+	}
+	
+	/**
+	 * Checks if an object holds the compressed content of a file, using the MD5 stored when it was uploaded.
+	 *
+	 * @param file   the local file
+	 * @param remote the metadata of the object
+	 * @return true if the object does not need to be uploaded again
+	 * @throws IOException if the file cannot be read
+	 */
+	public boolean isUnchanged(File file, ObjectMetadata remote) throws IOException {
+		String md5 = remote.getUserMetaDataOf(UNCOMPRESSED_MD5);
+		return this.contentEncoding.equals(remote.getContentEncoding()) && md5 != null && md5.equals(ETagUtils.md5Hex(file));
+	}
+	
+	/**
+	 * Passes everything on to the wrapped stream, but only flushes it when closed.
+	 */
+	private static class KeepOpenOutputStream extends FilterOutputStream {
+		
+		KeepOpenOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			this.flush();
+		}
+	}
+}
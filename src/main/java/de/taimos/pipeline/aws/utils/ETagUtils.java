@@ -0,0 +1,239 @@
+package de.taimos.pipeline.aws.utils;
+
+/*-
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 - 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Computes S3 style ETags for local files so they can be compared with the ETags of existing objects.
+ * <p>
+ * Objects uploaded with a single PUT have the hex MD5 of their content as ETag. Objects uploaded in parts
+ * have the hex MD5 of the concatenated binary part MD5s followed by "-" and the number of parts.
+ */
+public final class ETagUtils {
+
+	private static final long MB = 1024L * 1024L;
+	/**
+	 * Part sizes commonly used by S3 clients (AWS SDK, AWS CLI, ...) that are tried to recalculate a multipart ETag.
+	 */
+	private static final long[] COMMON_PART_SIZES = {5 * MB, 8 * MB, 15 * MB, 16 * MB, 32 * MB, 64 * MB, 100 * MB, 128 * MB, 256 * MB, 512 * MB};
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private ETagUtils() {
+		//
+	}
+
+	/**
+	 * @param eTag the ETag as returned by S3
+	 * @return the ETag without surrounding quotes and in lower case
+	 */
+	public static String normalize(String eTag) {
+		if (eTag == null) {
+			return null;
+		}
+		String result = eTag.trim();
+		if (result.length() >= 2 && result.startsWith("\"") && result.endsWith("\"")) {
+			result = result.substring(1, result.length() - 1);
+		}
+		return result.toLowerCase();
+	}
+
+	/**
+	 * @param eTag the ETag as returned by S3
+	 * @return the number of parts of a multipart ETag or 0 if the ETag belongs to a single part upload
+	 */
+	public static int getPartCount(String eTag) {
+		String normalized = normalize(eTag);
+		int index = normalized.lastIndexOf('-');
+		if (index < 0) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(normalized.substring(index + 1));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Checks if the given file has the content described by the given ETag.
+	 * For multipart ETags the part size is not known, so all common part sizes that result in the
+	 * expected number of parts are tried.
+	 *
+	 * @param file              the local file
+	 * @param eTag              the ETag of the remote object
+	 * @param preferredPartSize the part size that was most likely used for uploading or 0 if unknown
+	 * @return true if the local file matches the ETag
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean matches(File file, String eTag, long preferredPartSize) throws IOException {
+		String expected = normalize(eTag);
+		if (expected == null || expected.isEmpty()) {
+			return false;
+		}
+		int partCount = getPartCount(expected);
+		if (partCount == 0) {
+			return expected.equals(md5Hex(file));
+		}
+		for (long partSize : candidatePartSizes(file.length(), partCount, preferredPartSize)) {
+			if (expected.equals(multipartETag(file, partSize))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param file the local file
+	 * @return the hex MD5 of the file content, which is the ETag of a single part upload
+	 * @throws IOException if the file cannot be read
+	 */
+	public static String md5Hex(File file) throws IOException {
+		MessageDigest digest = newMd5();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream in = new FileInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return BinaryUtils.toHex(digest.digest());
+	}
+
+	/**
+	 * @param file   the local file
+	 * @param offset the position of the first byte
+	 * @param length the number of bytes to digest
+	 * @return the hex MD5 of the given range, which is the ETag of a part uploaded from this range
+	 * @throws IOException if the file cannot be read
+	 */
+	public static String md5Hex(File file, long offset, long length) throws IOException {
+		MessageDigest digest = newMd5();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long remaining = length;
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			in.seek(offset);
+			int read;
+			while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+				digest.update(buffer, 0, read);
+				remaining -= read;
+			}
+		}
+		return BinaryUtils.toHex(digest.digest());
+	}
+
+	/**
+	 * @param file     the local file
+	 * @param partSize the size of each part but the last one
+	 * @return the ETag S3 reports for the file if uploaded in parts of the given size
+	 * @throws IOException if the file cannot be read
+	 */
+	public static String multipartETag(File file, long partSize) throws IOException {
+		MessageDigest total = newMd5();
+		MessageDigest part = newMd5();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long remainingInPart = partSize;
+		int parts = 0;
+		try (InputStream in = new FileInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer, 0, (int) Math.min(buffer.length, remainingInPart))) != -1) {
+				part.update(buffer, 0, read);
+				remainingInPart -= read;
+				if (remainingInPart == 0) {
+					total.update(part.digest());
+					parts++;
+					remainingInPart = partSize;
+				}
+			}
+		}
+		if (remainingInPart != partSize || parts == 0) {
+			total.update(part.digest());
+			parts++;
+		}
+		return BinaryUtils.toHex(total.digest()) + "-" + parts;
+	}
+
+	/**
+	 * @param file the local file
+	 * @return the hex SHA-256 of the file content
+	 * @throws IOException if the file cannot be read
+	 */
+	public static String sha256Hex(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not supported", e);
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream in = new FileInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return BinaryUtils.toHex(digest.digest());
+	}
+
+	static Set<Long> candidatePartSizes(long fileSize, int partCount, long preferredPartSize) {
+		Set<Long> candidates = new LinkedHashSet<>();
+		if (preferredPartSize > 0) {
+			candidates.add(preferredPartSize);
+		}
+		for (long size : COMMON_PART_SIZES) {
+			candidates.add(size);
+		}
+		// the AWS SDK raises the part size if the file would need more than 10000 parts
+		candidates.add(Math.max(5 * MB, (long) Math.ceil((double) fileSize / 10000)));
+		// tools that derive the part size from the desired part count usually round up to full megabytes
+		long exact = (long) Math.ceil((double) fileSize / partCount);
+		candidates.add(exact);
+		candidates.add(((exact + MB - 1) / MB) * MB);
+
+		Set<Long> result = new LinkedHashSet<>();
+		for (Long candidate : candidates) {
+			long parts = fileSize == 0 ? 1 : (fileSize + candidate - 1) / candidate;
+			if (candidate > 0 && parts == partCount) {
+				result.add(candidate);
+			}
+		}
+		return result;
+	}
+
+	static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not supported", e);
+		}
+	}
+
+}
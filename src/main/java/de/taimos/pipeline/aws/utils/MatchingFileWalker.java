@@ -0,0 +1,100 @@
+package de.taimos.pipeline.aws.utils;
+
+/*-
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 - 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+
+/**
+ * Walks a directory lazily and reports the files matching an {@link AntPathFilter}, so huge trees can be processed
+ * without listing them up front. Directories no file can match are skipped and symbolic links are followed.
+ */
+public final class MatchingFileWalker {
+	
+	/**
+	 * Called for every file of a directory walk that matches the patterns.
+	 */
+	public interface Visitor {
+		void visitFile(File file, String relativePath) throws IOException, InterruptedException;
+	}
+	
+	private MatchingFileWalker() {
+		//
+	}
+	
+	/**
+	 * Calls the visitor for every regular file below the base directory that matches the filter.
+	 * If the thread is interrupted the walk stops with the interrupt flag set.
+	 *
+	 * @param baseDir the directory to walk
+	 * @param filter  the filter the paths relative to the base directory have to match
+	 * @param visitor the visitor to call
+	 * @throws IOException if a directory cannot be read or the visitor failed
+	 */
+	public static void walk(final File baseDir, final AntPathFilter filter, final Visitor visitor) throws IOException {
+		Files.walkFileTree(baseDir.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if (Thread.currentThread().isInterrupted()) {
+					return FileVisitResult.TERMINATE;
+				}
+				String relativePath = baseDir.toPath().relativize(dir).toString();
+				if (relativePath.isEmpty() || filter.mayMatchBelow(relativePath)) {
+					return FileVisitResult.CONTINUE;
+				}
+				return FileVisitResult.SKIP_SUBTREE;
+			}
+			
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (Thread.currentThread().isInterrupted()) {
+					return FileVisitResult.TERMINATE;
+				}
+				String relativePath = baseDir.toPath().relativize(file).toString();
+				if (attrs.isRegularFile() && filter.matches(relativePath)) {
+					try {
+						visitor.visitFile(file.toFile(), relativePath);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return FileVisitResult.TERMINATE;
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				if (exc instanceof FileSystemLoopException) {
+					return FileVisitResult.CONTINUE;
+				}
+				throw exc;
+			}
+		});
+	}
+}
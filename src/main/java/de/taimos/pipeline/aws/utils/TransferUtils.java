@@ -0,0 +1,102 @@
+package de.taimos.pipeline.aws.utils;
+
+/*-
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 - 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.s3.transfer.Download;
+import com.amazonaws.services.s3.transfer.MultipleFileDownload;
+import com.amazonaws.services.s3.transfer.MultipleFileUpload;
+import com.amazonaws.services.s3.transfer.Transfer;
+import com.amazonaws.services.s3.transfer.Upload;
+
+/**
+ * Waits for TransferManager transfers and aborts them if waiting is interrupted or one of them fails,
+ * so no transfer keeps running after a step ended and no incomplete multipart upload is left in the bucket.
+ */
+public final class TransferUtils {
+
+	private static final Logger LOGGER = Logger.getLogger(TransferUtils.class.getName());
+
+	private TransferUtils() {
+		//
+	}
+
+	/**
+	 * @param transfer the transfer to wait for
+	 * @throws InterruptedException if the thread was interrupted; the transfer is aborted
+	 * @see #waitForCompletion(Collection)
+	 */
+	public static void waitForCompletion(Transfer transfer) throws InterruptedException {
+		waitForCompletion(Collections.singletonList(transfer));
+	}
+
+	/**
+	 * Waits for all given transfers. If the thread is interrupted or a transfer fails, all transfers that
+	 * are still running are aborted before the exception is rethrown.
+	 *
+	 * @param transfers the transfers to wait for
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	public static void waitForCompletion(Collection<? extends Transfer> transfers) throws InterruptedException {
+		try {
+			for (Transfer transfer : transfers) {
+				transfer.waitForCompletion();
+			}
+		} catch (InterruptedException | RuntimeException e) {
+			abort(transfers);
+			throw e;
+		}
+	}
+
+	/**
+	 * Aborts all given transfers that are not done yet. Multipart uploads that were already started are aborted as well.
+	 *
+	 * @param transfers the transfers to abort
+	 */
+	public static void abort(Collection<? extends Transfer> transfers) {
+		for (Transfer transfer : transfers) {
+			if (!transfer.isDone()) {
+				abort(transfer);
+			}
+		}
+	}
+
+	private static void abort(Transfer transfer) {
+		try {
+			if (transfer instanceof Upload) {
+				((Upload) transfer).abort();
+			} else if (transfer instanceof Download) {
+				((Download) transfer).abort();
+			} else if (transfer instanceof MultipleFileDownload) {
+				((MultipleFileDownload) transfer).abort();
+			} else if (transfer instanceof MultipleFileUpload) {
+				abort(((MultipleFileUpload) transfer).getSubTransfers());
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.FINE, "Failed to abort " + transfer.getDescription(), e);
+		}
+	}
+}
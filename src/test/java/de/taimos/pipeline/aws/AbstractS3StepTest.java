@@ -25,6 +25,8 @@ import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import org.junit.Assert;
 import org.junit.Test;
 
+import hudson.EnvVars;
+
 public class AbstractS3StepTest {
 	@Test
 	public void gettersWorkAsExpected() throws Exception {
@@ -33,4 +35,53 @@ public class AbstractS3StepTest {
 		Assert.assertEquals( true, amazonS3ClientBuilder.isPathStyleAccessEnabled() );
 		Assert.assertEquals( true, amazonS3ClientBuilder.isPayloadSigningEnabled() );
 	}
+
+	@Test
+	public void transferSettingsAreUnsetByDefault() throws Exception {
+		S3DownloadStep step = new S3DownloadStep( "my-file", "my-bucket" , false, false);
+		final S3ClientOptions options = step.createS3ClientOptions().withDefaults( new EnvVars() );
+		Assert.assertNull( options.getMultipartThreshold() );
+		Assert.assertNull( options.getMultipartPartSize() );
+		Assert.assertNull( options.getMaxConnections() );
+		Assert.assertNull( options.getTransferThreads() );
+	}
+
+	@Test
+	public void transferSettingsFallBackToEnvironment() throws Exception {
+		S3DownloadStep step = new S3DownloadStep( "my-file", "my-bucket" , false, false);
+		step.setMultipartPartSize( 16L * 1024 * 1024 );
+		EnvVars envVars = new EnvVars();
+		envVars.put( S3ClientOptions.AWS_S3_MULTIPART_PART_SIZE, "8388608" );
+		envVars.put( S3ClientOptions.AWS_S3_TRANSFER_THREADS, "4" );
+		final S3ClientOptions options = step.createS3ClientOptions().withDefaults( envVars );
+		Assert.assertEquals( Long.valueOf( 16L * 1024 * 1024 ), options.getMultipartPartSize() );
+		Assert.assertEquals( Integer.valueOf( 4 ), options.getTransferThreads() );
+		Assert.assertNull( options.getMultipartThreshold() );
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void partSizeBelowMinimumIsRejected() throws Exception {
+		S3DownloadStep step = new S3DownloadStep( "my-file", "my-bucket" , false, false);
+		step.setMultipartPartSize( 1024L );
+		step.createS3ClientOptions();
+	}
+
+	@Test
+	public void multipartSettingsAreOnlyTakenWhereTheyApply() throws Exception {
+		Assert.assertTrue( hasSetter( S3UploadStep.class, "setMultipartThreshold" ) );
+		Assert.assertTrue( hasSetter( S3CacheSaveStep.class, "setMultipartPartSize" ) );
+		Assert.assertTrue( hasSetter( S3DownloadStep.class, "setMultipartPartSize" ) );
+		Assert.assertFalse( hasSetter( S3DownloadStep.class, "setMultipartThreshold" ) );
+		Assert.assertFalse( hasSetter( S3CacheRestoreStep.class, "setMultipartThreshold" ) );
+		Assert.assertFalse( hasSetter( S3CacheRestoreStep.class, "setMultipartPartSize" ) );
+	}
+
+	private static boolean hasSetter( Class<?> stepClass, String name ) {
+		try {
+			stepClass.getMethod( name, Long.class );
+			return true;
+		} catch ( NoSuchMethodException e ) {
+			return false;
+		}
+	}
 }
@@ -0,0 +1,130 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BandwidthThrottleTest {
+	
+	private static final int KB = 1024;
+	
+	@Test
+	public void limitsBytesPerSecond() throws Exception {
+		BandwidthThrottle throttle = new BandwidthThrottle(1024 * KB);
+		long start = System.currentTimeMillis();
+		// the first second worth of bytes is available right away
+		throttle.acquire(1536 * KB);
+		long duration = System.currentTimeMillis() - start;
+		Assert.assertTrue("took " + duration + " ms", duration >= 400 && duration < 2000);
+	}
+	
+	@Test
+	public void throttledStreamReadsAllContent() throws Exception {
+		byte[] content = new byte[100 * KB];
+		new Random(42).nextBytes(content);
+		BandwidthThrottle throttle = new BandwidthThrottle(1024 * KB);
+		byte[] read = new byte[content.length];
+		try (InputStream in = new BandwidthThrottle.ThrottledInputStream(new ByteArrayInputStream(content), Collections.singletonList(throttle))) {
+			int offset = 0;
+			int count;
+			while ((count = in.read(read, offset, read.length - offset)) > 0) {
+				offset += count;
+			}
+			Assert.assertEquals(-1, in.read());
+		}
+		Assert.assertTrue(Arrays.equals(content, read));
+	}
+	
+	@Test
+	public void contentHashedBySignerIsTakenOnce() throws Exception {
+		AtomicLong acquired = new AtomicLong();
+		byte[] buffer = new byte[200 * KB];
+		try (InputStream in = new BandwidthThrottle.ThrottledInputStream(new ByteArrayInputStream(new byte[100 * KB]), Collections.singletonList(countingThrottle(acquired)))) {
+			// like the signer hashing the payload before it is sent
+			in.mark(-1);
+			Assert.assertEquals(100 * KB, in.read(buffer, 0, 200 * KB));
+			Assert.assertEquals(-1, in.read(buffer, 0, 200 * KB));
+			in.reset();
+			Assert.assertEquals(100 * KB, in.read(buffer, 0, 200 * KB));
+		}
+		Assert.assertEquals(100 * KB, acquired.get());
+	}
+	
+	@Test
+	public void retriesAreTakenAgain() throws Exception {
+		AtomicLong acquired = new AtomicLong();
+		byte[] buffer = new byte[200 * KB];
+		try (InputStream in = new BandwidthThrottle.ThrottledInputStream(new ByteArrayInputStream(new byte[100 * KB]), Collections.singletonList(countingThrottle(acquired)))) {
+			in.mark(-1);
+			// hashed by the signer and sent
+			for (int pass = 0; pass < 2; pass++) {
+				Assert.assertEquals(100 * KB, in.read(buffer, 0, 200 * KB));
+				Assert.assertEquals(-1, in.read(buffer, 0, 200 * KB));
+				in.reset();
+			}
+			// sent again by a retry
+			Assert.assertEquals(100 * KB, in.read(buffer, 0, 200 * KB));
+		}
+		Assert.assertEquals(200 * KB, acquired.get());
+	}
+	
+	@Test
+	public void retriesOfPartlySentContentAreTakenAgain() throws Exception {
+		AtomicLong acquired = new AtomicLong();
+		byte[] buffer = new byte[200 * KB];
+		try (InputStream in = new BandwidthThrottle.ThrottledInputStream(new ByteArrayInputStream(new byte[100 * KB]), Collections.singletonList(countingThrottle(acquired)))) {
+			in.mark(-1);
+			Assert.assertEquals(60 * KB, in.read(buffer, 0, 60 * KB));
+			in.reset();
+			Assert.assertEquals(100 * KB, in.read(buffer, 0, 200 * KB));
+		}
+		Assert.assertEquals(160 * KB, acquired.get());
+	}
+	
+	@Test
+	public void noHandlerWithoutLimit() {
+		Assert.assertNull(BandwidthThrottle.createRequestHandler(null, null));
+		Assert.assertNotNull(BandwidthThrottle.createRequestHandler(new BandwidthThrottle(KB), null));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNonPositiveLimit() {
+		new BandwidthThrottle(0);
+	}
+	
+	private static BandwidthThrottle countingThrottle(final AtomicLong acquired) {
+		return new BandwidthThrottle(1024 * KB) {
+			@Override
+			public void acquire(long bytes) throws InterruptedException {
+				acquired.addAndGet(bytes);
+			}
+		};
+	}
+}
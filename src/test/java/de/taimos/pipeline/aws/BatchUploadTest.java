@@ -0,0 +1,229 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+
+import de.taimos.pipeline.aws.utils.ChecksumCalculator;
+import de.taimos.pipeline.aws.utils.Compression;
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+public class BatchUploadTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+	private final PrintStream logger = new PrintStream(this.log, true);
+	private final FakeS3 s3 = new FakeS3();
+	private final TransferManager mgr = TransferManagerBuilder.standard().withS3Client(this.s3.client()).build();
+	
+	@After
+	public void shutdown() {
+		this.mgr.shutdownNow(false);
+	}
+	
+	@Test
+	public void retriesOnlyFailedObjects() throws Exception {
+		this.s3.failures.put("a", 2);
+		BatchUpload batch = new BatchUpload(this.mgr, new TransferProgressReporter(this.logger, "Uploaded", 0), this.logger, 3, 0);
+		batch.add(new PutObjectRequest("bucket", "a", this.folder.newFile()));
+		batch.add(new PutObjectRequest("bucket", "b", this.folder.newFile()));
+		batch.waitForCompletion();
+		
+		Assert.assertEquals(2, batch.size());
+		Assert.assertEquals(3, this.count("a"));
+		Assert.assertEquals(1, this.count("b"));
+	}
+	
+	@Test
+	public void reportsFailedKeysAfterLastRetry() throws Exception {
+		this.s3.failures.put("a", 10);
+		BatchUpload batch = new BatchUpload(this.mgr, new TransferProgressReporter(this.logger, "Uploaded", 0), this.logger, 1, 0);
+		batch.add(new PutObjectRequest("bucket", "a", this.folder.newFile()));
+		batch.add(new PutObjectRequest("bucket", "b", this.folder.newFile()));
+		try {
+			batch.waitForCompletion();
+			Assert.fail("Upload should fail");
+		} catch (IOException e) {
+			Assert.assertEquals("Failed to upload 1 of 2 objects after 1 retries", e.getMessage());
+		}
+		Assert.assertEquals(2, this.count("a"));
+		Assert.assertTrue(this.log.toString().contains("Failed to upload s3://bucket/a"));
+		Assert.assertFalse(this.log.toString().contains("s3://bucket/b"));
+	}
+	
+	@Test
+	public void uploadsMoreObjectsThanPending() throws Exception {
+		this.s3.failures.put("key3", 1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TransferProgressReporter reporter = new TransferProgressReporter(new PrintStream(out, true), "Uploaded", 0);
+		BatchUpload batch = new BatchUpload(this.mgr, reporter, this.logger, 1, 0, 2);
+		for (int i = 0; i < 10; i++) {
+			batch.add(new PutObjectRequest("bucket", "key" + i, this.folder.newFile()));
+		}
+		batch.waitForCompletion();
+		reporter.close();
+		
+		Assert.assertEquals(11, this.s3.puts.size());
+		Assert.assertTrue(out.toString().startsWith("Uploaded 10 of 10 files"));
+	}
+	
+	@Test
+	public void retriesObjectsWithMismatchingChecksum() throws Exception {
+		this.s3.corrupted.put("a", 1);
+		try (ChecksumCalculator checksums = new ChecksumCalculator(1)) {
+			BatchUpload batch = new BatchUpload(this.mgr, new TransferProgressReporter(this.logger, "Uploaded", 0), this.logger, 1, 0);
+			batch.setChecksumCalculator(checksums);
+			batch.add(new PutObjectRequest("bucket", "a", this.folder.newFile()));
+			batch.add(new PutObjectRequest("bucket", "b", this.folder.newFile()));
+			batch.waitForCompletion();
+		}
+		Assert.assertEquals(2, this.count("a"));
+		Assert.assertEquals(1, this.count("b"));
+	}
+	
+	@Test
+	public void recordsUploadedObjectsInManifest() throws Exception {
+		this.s3.failures.put("a", 1);
+		File file = this.folder.newFile();
+		Files.write(file.toPath(), "content".getBytes(StandardCharsets.UTF_8));
+		try (UploadManifest manifest = UploadManifest.inMemory()) {
+			BatchUpload batch = new BatchUpload(this.mgr, new TransferProgressReporter(this.logger, "Uploaded", 0), this.logger, 1, 0);
+			batch.setManifest(manifest);
+			batch.add(new PutObjectRequest("bucket", "a", file), null, "dir/a.txt");
+			batch.waitForCompletion();
+			
+			Assert.assertEquals(1, manifest.size());
+			UploadedObject uploaded = manifest.getObjects().get("dir/a.txt");
+			Assert.assertEquals("a", uploaded.getKey());
+			Assert.assertEquals(7, uploaded.getSize());
+			Assert.assertEquals(ETagUtils.md5Hex(file), uploaded.getETag());
+			Assert.assertTrue(uploaded.getDuration() >= 0);
+		}
+	}
+	
+	@Test
+	public void retriesFailedCompressedFiles() throws Exception {
+		this.s3.failures.put("a.js", 1);
+		File file = this.folder.newFile();
+		Files.write(file.toPath(), "var a = 1;".getBytes(StandardCharsets.UTF_8));
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try (UploadManifest manifest = UploadManifest.inMemory()) {
+			BatchUpload batch = new BatchUpload(this.mgr, new TransferProgressReporter(this.logger, "Uploaded", 0), this.logger, 1, 0);
+			batch.setPartExecutor(executor);
+			batch.setManifest(manifest);
+			batch.add(new PutObjectRequest("bucket", "a.js", file), Compression.GZIP, "a.js");
+			batch.waitForCompletion();
+			
+			Assert.assertEquals(2, this.count("a.js"));
+			Assert.assertEquals("etag-a.js", manifest.getObjects().get("a.js").getETag());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void compressedFilesNeedPartExecutor() throws Exception {
+		BatchUpload batch = new BatchUpload(this.mgr, new TransferProgressReporter(this.logger, "Uploaded", 0), this.logger, 1, 0);
+		batch.add(new PutObjectRequest("bucket", "a.js", this.folder.newFile()), Compression.GZIP);
+	}
+	
+	private int count(String key) {
+		int count = 0;
+		synchronized (this.s3.puts) {
+			for (String put : this.s3.puts) {
+				if (put.equals(key)) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Stand-in for S3 that fails a configured number of PUTs per key.
+	 */
+	private static class FakeS3 extends FakeAmazonS3 {
+		
+		private final Map<String, Integer> failures = new HashMap<>();
+		private final Map<String, Integer> corrupted = new HashMap<>();
+		private final List<String> puts = new ArrayList<>();
+		
+		@Override
+		protected synchronized Object answer(String method, Object[] args) throws Throwable {
+			if ("getObjectMetadata".equals(method)) {
+				// the objects are not encrypted, so their ETags are MD5s
+				return new ObjectMetadata();
+			}
+			if (!"putObject".equals(method)) {
+				throw new UnsupportedOperationException(method);
+			}
+			String key = ((PutObjectRequest) args[0]).getKey();
+			synchronized (this.puts) {
+				this.puts.add(key);
+			}
+			Integer remaining = this.failures.get(key);
+			if (remaining != null && remaining > 0) {
+				this.failures.put(key, remaining - 1);
+				AmazonServiceException e = new AmazonServiceException("Internal Error");
+				e.setStatusCode(500);
+				throw e;
+			}
+			PutObjectResult result = new PutObjectResult();
+			Integer corrupt = this.corrupted.get(key);
+			if (corrupt != null && corrupt > 0) {
+				this.corrupted.put(key, corrupt - 1);
+				result.setETag("00000000000000000000000000000000");
+			} else {
+				PutObjectRequest request = (PutObjectRequest) args[0];
+				// compressed content is streamed
+				result.setETag(request.getFile() != null ? ETagUtils.md5Hex(request.getFile()) : "etag-" + key);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+package de.taimos.pipeline.aws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.services.s3.transfer.TransferProgress;
+
+import de.taimos.pipeline.aws.utils.Compression;
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+public class CompressedUploadTest {
+	
+	private static final int PART_SIZE = 64 * 1024;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	private final FakeS3 s3 = new FakeS3();
+	
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+	
+	@Test
+	public void uploadsSmallFileWithMd5OfSinglePass() throws Exception {
+		byte[] content = content(PART_SIZE / 2);
+		File file = this.createFile("app.js", content);
+		TransferProgress progress = new TransferProgress();
+		UploadedObject uploaded = CompressedUpload.upload(this.s3.client(), this.executor, PART_SIZE, new PutObjectRequest("bucket", "app.js", file), Compression.GZIP, "app.js", progress);
+		
+		Assert.assertEquals(0, this.s3.initiated);
+		Assert.assertEquals("gzip", this.s3.metadata.getContentEncoding());
+		Assert.assertEquals(ETagUtils.md5Hex(file), this.s3.metadata.getUserMetaDataOf(Compression.UNCOMPRESSED_MD5));
+		Assert.assertArrayEquals(content, gunzip(this.s3.content.toByteArray()));
+		Assert.assertEquals(this.s3.content.size(), uploaded.getSize());
+		Assert.assertEquals(uploaded.getSize(), progress.getBytesTransferred());
+		Assert.assertEquals(uploaded.getSize(), progress.getTotalBytesToTransfer());
+	}
+	
+	@Test
+	public void uploadsLargeFileInPartsWithMd5InMetadata() throws Exception {
+		byte[] content = content(4 * PART_SIZE);
+		File file = this.createFile("data.json", content);
+		CompressedUpload.upload(this.s3.client(), this.executor, PART_SIZE, new PutObjectRequest("bucket", "data.json", file), Compression.GZIP, "data.json", new TransferProgress());
+		
+		Assert.assertEquals(1, this.s3.initiated);
+		// S3 takes the metadata when the multipart upload starts
+		Assert.assertEquals(ETagUtils.md5Hex(file), this.s3.metadata.getUserMetaDataOf(Compression.UNCOMPRESSED_MD5));
+		Assert.assertArrayEquals(content, gunzip(this.s3.content.toByteArray()));
+	}
+	
+	private File createFile(String name, byte[] content) throws IOException {
+		File file = this.folder.newFile(name);
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(content);
+		}
+		return file;
+	}
+	
+	private static byte[] content(int size) {
+		// random bytes that do not compress well, so large files need several parts
+		byte[] content = new byte[size];
+		new Random(42).nextBytes(content);
+		return content;
+	}
+	
+	private static byte[] gunzip(byte[] compressed) throws IOException {
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			return readAll(in);
+		}
+	}
+	
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1000];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Stand-in for S3 that keeps the content and metadata of a single object.
+	 */
+	private static class FakeS3 extends FakeAmazonS3 {
+		
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		private final Map<Integer, byte[]> parts = new TreeMap<>();
+		private ObjectMetadata metadata;
+		private int initiated;
+		
+		@Override
+		protected synchronized Object answer(String method, Object[] args) throws Throwable {
+			switch (method) {
+				case "putObject":
+					PutObjectRequest put = (PutObjectRequest) args[0];
+					this.metadata = put.getMetadata();
+					this.content.write(readAll(put.getInputStream()));
+					return new PutObjectResult();
+				case "initiateMultipartUpload":
+					this.initiated++;
+					this.metadata = ((InitiateMultipartUploadRequest) args[0]).getObjectMetadata();
+					InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+					result.setUploadId("upload");
+					return result;
+				case "uploadPart":
+					UploadPartRequest request = (UploadPartRequest) args[0];
+					this.parts.put(request.getPartNumber(), readAll(request.getInputStream()));
+					UploadPartResult partResult = new UploadPartResult();
+					partResult.setPartNumber(request.getPartNumber());
+					partResult.setETag("etag-" + request.getPartNumber());
+					return partResult;
+				case "completeMultipartUpload":
+					for (byte[] part : this.parts.values()) {
+						this.content.write(part);
+					}
+					return new CompleteMultipartUploadResult();
+				default:
+					throw new UnsupportedOperationException(method);
+			}
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+public class ConditionalDownloadTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private final PrintStream logger = new PrintStream(new ByteArrayOutputStream(), true);
+	
+	@Test
+	public void unchangedObjectIsNotTransferredAgain() throws Exception {
+		FakeS3 s3 = new FakeS3("content", "etag-1");
+		File file = new File(this.folder.getRoot(), "dir/config.json");
+		Assert.assertTrue(this.download(s3, file));
+		Assert.assertFalse(this.download(s3, file));
+		
+		Assert.assertEquals("content", read(file));
+		Assert.assertNull(s3.constraints.get(0));
+		Assert.assertEquals("etag-1", s3.constraints.get(1));
+	}
+	
+	@Test
+	public void changedObjectIsDownloadedAgain() throws Exception {
+		FakeS3 s3 = new FakeS3("content", "etag-1");
+		File file = new File(this.folder.getRoot(), "config.json");
+		this.download(s3, file);
+		s3.content = "changed";
+		s3.eTag = "etag-2";
+		Assert.assertTrue(this.download(s3, file));
+		Assert.assertFalse(this.download(s3, file));
+		
+		Assert.assertEquals("changed", read(file));
+		Assert.assertEquals("etag-2", s3.constraints.get(2));
+	}
+	
+	@Test
+	public void changedLocalFileIsDownloadedAgain() throws Exception {
+		FakeS3 s3 = new FakeS3("content", "etag-1");
+		File file = new File(this.folder.getRoot(), "config.json");
+		this.download(s3, file);
+		Files.write(file.toPath(), "local change".getBytes(StandardCharsets.UTF_8));
+		Assert.assertTrue(this.download(s3, file));
+		
+		Assert.assertEquals("content", read(file));
+		Assert.assertNull(s3.constraints.get(1));
+	}
+	
+	private boolean download(FakeS3 s3, File file) throws Exception {
+		return new ConditionalDownload(s3.client(), this.logger, "bucket", "config.json", file).download();
+	}
+	
+	private static String read(File file) throws Exception {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Stand-in for S3 that serves a single object and honors If-None-Match.
+	 */
+	private static class FakeS3 extends FakeAmazonS3 {
+		
+		private final List<String> constraints = new ArrayList<>();
+		private String content;
+		private String eTag;
+		
+		FakeS3(String content, String eTag) {
+			this.content = content;
+			this.eTag = eTag;
+		}
+		
+		@Override
+		protected Object answer(String method, Object[] args) throws Throwable {
+			if (!"getObject".equals(method)) {
+				throw new UnsupportedOperationException(method);
+			}
+			GetObjectRequest request = (GetObjectRequest) args[0];
+			String constraint = request.getNonmatchingETagConstraints().isEmpty() ? null : request.getNonmatchingETagConstraints().get(0);
+			this.constraints.add(constraint);
+			if (this.eTag.equals(constraint)) {
+				// S3 answers 304 Not Modified, which the client returns as null
+				return null;
+			}
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setHeader("ETag", this.eTag);
+			S3Object object = new S3Object();
+			object.setObjectMetadata(metadata);
+			object.setObjectContent(new ByteArrayInputStream(this.content.getBytes(StandardCharsets.UTF_8)));
+			return object;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+
+import de.taimos.pipeline.aws.utils.AntPathFilter;
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+public class DirectoryDownloadTest {
+	
+	private static final long LAST_MODIFIED = 1500000000000L;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private final PrintStream logger = new PrintStream(new ByteArrayOutputStream());
+	
+	@Test
+	public void fileWithSizeAndModificationTimeOfObjectIsUnchanged() throws Exception {
+		File file = this.createFile("content");
+		Assert.assertTrue(file.setLastModified(LAST_MODIFIED));
+		Assert.assertTrue(DirectoryDownload.isUnchanged(file, summary(7, "other-etag"), 0));
+	}
+	
+	@Test
+	public void fileWithOtherModificationTimeIsComparedByETag() throws Exception {
+		File file = this.createFile("content");
+		Assert.assertTrue(DirectoryDownload.isUnchanged(file, summary(7, ETagUtils.md5Hex(file)), 0));
+		Assert.assertEquals(LAST_MODIFIED / 1000, file.lastModified() / 1000);
+		Assert.assertFalse(DirectoryDownload.isUnchanged(this.createFile("changed"), summary(7, ETagUtils.md5Hex(file)), 0));
+	}
+	
+	@Test
+	public void missingOrResizedFileIsChanged() throws Exception {
+		File file = this.createFile("content");
+		Assert.assertTrue(file.setLastModified(LAST_MODIFIED));
+		Assert.assertFalse(DirectoryDownload.isUnchanged(file, summary(8, ETagUtils.md5Hex(file)), 0));
+		Assert.assertFalse(DirectoryDownload.isUnchanged(new File(this.folder.getRoot(), "missing"), summary(7, ETagUtils.md5Hex(file)), 0));
+	}
+	
+	@Test
+	public void syncSkipsUnchangedFilesAndDeletesExtraneousOnes() throws Exception {
+		final S3ObjectSummary first = summary("dir/first", 5, "etag-first");
+		final S3ObjectSummary second = summary("dir/sub/second", 6, "etag-second");
+		AmazonS3 s3 = new FakeAmazonS3() {
+			@Override
+			protected Object answer(String method, Object[] args) {
+				// downloads are not expected, as all objects are up to date
+				if (!"listObjects".equals(method)) {
+					throw new UnsupportedOperationException(method);
+				}
+				ObjectListing listing = new ObjectListing();
+				listing.getObjectSummaries().add(first);
+				listing.getObjectSummaries().add(second);
+				return listing;
+			}
+		}.client();
+		File targetDir = this.folder.newFolder("target");
+		Assert.assertTrue(this.createFile(new File(targetDir, "first"), "first").setLastModified(LAST_MODIFIED));
+		Assert.assertTrue(this.createFile(new File(targetDir, "sub/second"), "second").setLastModified(LAST_MODIFIED));
+		File extraneous = this.createFile(new File(targetDir, "sub/extraneous"), "extraneous");
+		
+		TransferManager mgr = TransferManagerBuilder.standard().withS3Client(s3).build();
+		try {
+			TransferProgressReporter reporter = new TransferProgressReporter(this.logger, "Downloaded", 0);
+			DirectoryDownload download = new DirectoryDownload(mgr, reporter, this.logger, "bucket", targetDir);
+			Assert.assertEquals(0, download.download(RemoteObjectIndex.load(s3, "bucket", "dir"), new AntPathFilter(null, null, false), true, true));
+		} finally {
+			mgr.shutdownNow(false);
+		}
+		Assert.assertFalse(extraneous.exists());
+		Assert.assertEquals("first", new String(Files.readAllBytes(new File(targetDir, "first").toPath()), StandardCharsets.UTF_8));
+		Assert.assertTrue(new File(targetDir, "sub/second").isFile());
+	}
+	
+	private File createFile(File file, String content) throws Exception {
+		Assert.assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+	
+	private File createFile(String content) throws Exception {
+		File file = this.folder.newFile();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+	
+	private static S3ObjectSummary summary(long size, String eTag) {
+		return summary("dir/file", size, eTag);
+	}
+	
+	private static S3ObjectSummary summary(String key, long size, String eTag) {
+		S3ObjectSummary summary = new S3ObjectSummary();
+		summary.setKey(key);
+		summary.setSize(size);
+		summary.setETag(eTag);
+		summary.setLastModified(new Date(LAST_MODIFIED));
+		return summary;
+	}
+}
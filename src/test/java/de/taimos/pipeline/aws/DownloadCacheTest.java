@@ -0,0 +1,133 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DownloadCacheTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void committedObjectIsCopiedFromCache() throws Exception {
+		DownloadCache cache = new DownloadCache(this.folder.newFolder("cache"), 1024);
+		File first = new File(this.folder.getRoot(), "ws1/file");
+		try (DownloadCache.Entry entry = cache.acquire("bucket", "key", "\"etag\"", true)) {
+			Assert.assertFalse(entry.isCached());
+			write(entry.getTempFile(), "content");
+			entry.commit("etag");
+			entry.copyTo(first);
+		}
+		Assert.assertEquals("content", read(first));
+		
+		File second = new File(this.folder.getRoot(), "ws2/file");
+		try (DownloadCache.Entry entry = cache.acquire("bucket", "key", "etag", true)) {
+			Assert.assertTrue(entry.isCached());
+			entry.copyTo(second);
+		}
+		Assert.assertEquals("content", read(second));
+		Assert.assertEquals(7, cache.size());
+		
+		// writing to a workspace file does not change the cached object
+		write(second, "changed");
+		File third = new File(this.folder.getRoot(), "ws3/file");
+		try (DownloadCache.Entry entry = cache.acquire("bucket", "key", "etag", true)) {
+			entry.copyTo(third);
+		}
+		Assert.assertEquals("content", read(third));
+	}
+	
+	@Test
+	public void replacedObjectIsNotCached() throws Exception {
+		DownloadCache cache = new DownloadCache(this.folder.newFolder("cache"), 1024);
+		File target = new File(this.folder.getRoot(), "file");
+		try (DownloadCache.Entry entry = cache.acquire("bucket", "key", "etag", true)) {
+			write(entry.getTempFile(), "newer content");
+			entry.commit("other-etag");
+			entry.copyTo(target);
+		}
+		Assert.assertEquals("newer content", read(target));
+		Assert.assertEquals(0, cache.size());
+	}
+	
+	@Test
+	public void failedDownloadLeavesNoEntry() throws Exception {
+		File dir = this.folder.newFolder("cache");
+		DownloadCache cache = new DownloadCache(dir, 1024);
+		try (DownloadCache.Entry entry = cache.acquire("bucket", "key", "etag", true)) {
+			write(entry.getTempFile(), "partial");
+		}
+		Assert.assertEquals(0, dir.list().length);
+	}
+	
+	@Test
+	public void leastRecentlyUsedObjectsAreEvicted() throws Exception {
+		DownloadCache cache = new DownloadCache(this.folder.newFolder("cache"), 10);
+		this.add(cache, "old", "123456");
+		this.add(cache, "new", "789012");
+		Assert.assertEquals(6, cache.size());
+		try (DownloadCache.Entry entry = cache.acquire("bucket", "old", "etag", true)) {
+			Assert.assertFalse(entry.isCached());
+		}
+		try (DownloadCache.Entry entry = cache.acquire("bucket", "new", "etag", true)) {
+			Assert.assertTrue(entry.isCached());
+		}
+	}
+	
+	@Test
+	public void busyEntryIsNotReturnedWithoutWaiting() throws Exception {
+		DownloadCache cache = new DownloadCache(this.folder.newFolder("cache"), 1024);
+		try (DownloadCache.Entry entry = cache.acquire("bucket", "key", "etag", true)) {
+			Assert.assertNull(cache.acquire("bucket", "key", "etag", false));
+			Assert.assertNotNull(entry);
+		}
+		DownloadCache.Entry entry = cache.acquire("bucket", "key", "etag", false);
+		Assert.assertNotNull(entry);
+		entry.close();
+	}
+	
+	private void add(DownloadCache cache, String key, String content) throws Exception {
+		try (DownloadCache.Entry entry = cache.acquire("bucket", key, "etag", true)) {
+			write(entry.getTempFile(), content);
+			entry.commit("etag");
+			entry.copyTo(new File(this.folder.getRoot(), key));
+		}
+		// the modification time of some file systems only has whole seconds
+		new File(this.folder.getRoot(), "cache/" + DownloadCache.entryName("bucket", key, "etag")).setLastModified(System.currentTimeMillis() - ("old".equals(key) ? 60000 : 0));
+	}
+	
+	private static void write(File file, String content) throws Exception {
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static String read(File file) throws Exception {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+}
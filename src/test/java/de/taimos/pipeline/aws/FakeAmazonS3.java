@@ -0,0 +1,72 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+package de.taimos.pipeline.aws;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Base for in-memory stand-ins of S3. Subclasses answer the calls a test expects by method name and throw
+ * {@link UnsupportedOperationException} for all others.
+ */
+public abstract class FakeAmazonS3 implements InvocationHandler {
+	
+	/**
+	 * @return a client that sends all calls to this fake
+	 */
+	public AmazonS3 client() {
+		return proxy(AmazonS3.class, this);
+	}
+	
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			// toString, equals and hashCode of the client
+			return method.invoke(this, args);
+		}
+		return this.answer(method.getName(), args);
+	}
+	
+	/**
+	 * @param method the name of the called method of {@link AmazonS3}
+	 * @param args   the arguments of the call
+	 * @return the result of the call
+	 * @throws Throwable the exception the client would throw
+	 */
+	protected abstract Object answer(String method, Object[] args) throws Throwable;
+	
+	/**
+	 * Creates a stand-in for an interface of the SDK, e.g. a transfer of the TransferManager.
+	 *
+	 * @param type    the interface to implement
+	 * @param handler the handler of all calls
+	 * @param <T>     the type of the interface
+	 * @return the stand-in
+	 */
+	public static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+public class RangedDownloadTest {
+	
+	private static final int RANGE_SIZE = 1000;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private final ExecutorService executor = Executors.newFixedThreadPool(3);
+	private final PrintStream logger = new PrintStream(new ByteArrayOutputStream(), true);
+	
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+	
+	@Test
+	public void downloadsAllRanges() throws Exception {
+		FakeS3 s3 = new FakeS3(content(3 * RANGE_SIZE + 10));
+		File file = new File(this.folder.getRoot(), "dir/object.bin");
+		new RangedDownload(s3.client(), this.executor, this.logger, "bucket", "object.bin", file).download(RANGE_SIZE, 0, 0);
+		
+		Assert.assertArrayEquals(s3.content, Files.readAllBytes(file.toPath()));
+		Assert.assertEquals(4, s3.ranges.size());
+	}
+	
+	@Test
+	public void reportsBytesWritten() throws Exception {
+		FakeS3 s3 = new FakeS3(content(3 * RANGE_SIZE + 10));
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		RangedDownload download = new RangedDownload(s3.client(), this.executor, this.logger, "bucket", "object.bin", this.folder.newFile());
+		try (TransferProgressReporter reporter = new TransferProgressReporter(new PrintStream(log, true), "Downloaded", 0)) {
+			download.setReporter(reporter);
+			download.download(RANGE_SIZE, 0, 0);
+		}
+		Assert.assertTrue(log.toString().startsWith("Downloaded " + TransferProgressReporter.formatBytes(3 * RANGE_SIZE + 10) + " in "));
+	}
+	
+	@Test
+	public void continuesFailedRangeAfterLastByteWritten() throws Exception {
+		FakeS3 s3 = new FakeS3(content(2 * RANGE_SIZE));
+		s3.failingRanges.add(RANGE_SIZE);
+		File file = this.folder.newFile();
+		new RangedDownload(s3.client(), this.executor, this.logger, "bucket", "object.bin", file).download(RANGE_SIZE, 1, 0);
+		
+		Assert.assertArrayEquals(s3.content, Files.readAllBytes(file.toPath()));
+		// the failed range breaks off after half of its bytes, so only the second half is requested again
+		Assert.assertTrue(s3.ranges.contains((long) RANGE_SIZE + RANGE_SIZE / 2));
+	}
+	
+	@Test
+	public void deletesFileIfObjectChanges() throws Exception {
+		FakeS3 s3 = new FakeS3(content(2 * RANGE_SIZE));
+		s3.changed = true;
+		File file = this.folder.newFile();
+		try {
+			new RangedDownload(s3.client(), this.executor, this.logger, "bucket", "object.bin", file).download(RANGE_SIZE, 3, 0);
+			Assert.fail("Expected the changed object to fail the download");
+		} catch (IOException e) {
+			Assert.assertTrue(e.getCause().getMessage().contains("was changed during the download"));
+		}
+		Assert.assertFalse(file.exists());
+	}
+	
+	private static byte[] content(int length) {
+		byte[] content = new byte[length];
+		new Random(42).nextBytes(content);
+		return content;
+	}
+	
+	/**
+	 * Stand-in for S3 that serves ranges of a single object.
+	 */
+	private static class FakeS3 extends FakeAmazonS3 {
+		
+		private final byte[] content;
+		private final List<Long> ranges = new ArrayList<>();
+		private final Set<Integer> failingRanges = new HashSet<>();
+		private boolean changed;
+		
+		FakeS3(byte[] content) {
+			this.content = content;
+		}
+		
+		@Override
+		protected synchronized Object answer(String method, Object[] args) throws Throwable {
+			switch (method) {
+				case "getObjectMetadata":
+					ObjectMetadata metadata = new ObjectMetadata();
+					metadata.setContentLength(this.content.length);
+					metadata.setHeader("ETag", "etag");
+					return metadata;
+				case "getObject":
+					if (this.changed) {
+						return null;
+					}
+					GetObjectRequest request = (GetObjectRequest) args[0];
+					int start = (int) request.getRange()[0];
+					int end = (int) request.getRange()[1] + 1;
+					this.ranges.add((long) start);
+					InputStream in = new ByteArrayInputStream(this.content, start, end - start);
+					if (this.failingRanges.remove(start)) {
+						in = new BrokenStream(new ByteArrayInputStream(this.content, start, (end - start) / 2));
+					}
+					S3Object object = new S3Object();
+					object.setObjectContent(in);
+					return object;
+				default:
+					throw new UnsupportedOperationException(method);
+			}
+		}
+	}
+	
+	/**
+	 * Fails with a connection reset after the underlying stream is exhausted.
+	 */
+	private static class BrokenStream extends InputStream {
+		
+		private final InputStream in;
+		
+		BrokenStream(InputStream in) {
+			this.in = in;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = this.in.read(b, off, len);
+			if (read == -1) {
+				throw new IOException("Connection reset");
+			}
+			return read;
+		}
+	}
+}
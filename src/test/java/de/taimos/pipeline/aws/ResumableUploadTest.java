@@ -0,0 +1,251 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+public class ResumableUploadTest {
+	
+	private static final int PART_SIZE = 5 * 1024 * 1024;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	private final PrintStream logger = new PrintStream(new ByteArrayOutputStream());
+	
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+	
+	@Test
+	public void resumesWithMissingPartsOnly() throws Exception {
+		File file = this.createFile(3 * PART_SIZE + 100);
+		File stateDir = this.folder.newFolder("state");
+		FakeS3 s3 = new FakeS3();
+		s3.failingPart = 3;
+		
+		try {
+			new ResumableUpload(s3.client(), this.executor, this.logger, stateDir, "bucket", "key", file).upload(PART_SIZE, new ObjectMetadata(), null);
+			Assert.fail("Upload should fail");
+		} catch (AmazonServiceException e) {
+			// expected
+		}
+		Assert.assertEquals(1, stateDir.list().length);
+		Assert.assertEquals(1, s3.initiated);
+		
+		s3.failingPart = 0;
+		List<Integer> uploadedBefore = new ArrayList<>(s3.parts.keySet());
+		s3.uploadedParts.clear();
+		new ResumableUpload(s3.client(), this.executor, this.logger, stateDir, "bucket", "key", file).upload(PART_SIZE, new ObjectMetadata(), null);
+		
+		Assert.assertEquals(1, s3.initiated);
+		for (Integer partNumber : uploadedBefore) {
+			Assert.assertFalse(s3.uploadedParts.contains(partNumber));
+		}
+		Assert.assertEquals(4, s3.completedParts);
+		Assert.assertEquals(0, stateDir.list().length);
+	}
+	
+	@Test
+	public void resumesPartsWithoutMd5ETags() throws Exception {
+		File file = this.createFile(3 * PART_SIZE);
+		File stateDir = this.folder.newFolder("state");
+		FakeS3 s3 = new FakeS3();
+		// like parts encrypted with SSE-KMS or SSE-C
+		s3.md5ETags = false;
+		s3.failingPart = 3;
+		try {
+			new ResumableUpload(s3.client(), this.executor, this.logger, stateDir, "bucket", "key", file).upload(PART_SIZE, new ObjectMetadata(), null);
+			Assert.fail("Upload should fail");
+		} catch (AmazonServiceException e) {
+			// expected
+		}
+		
+		s3.failingPart = 0;
+		List<Integer> uploadedBefore = new ArrayList<>(s3.parts.keySet());
+		Assert.assertFalse(uploadedBefore.isEmpty());
+		s3.uploadedParts.clear();
+		new ResumableUpload(s3.client(), this.executor, this.logger, stateDir, "bucket", "key", file).upload(PART_SIZE, new ObjectMetadata(), null);
+		
+		Assert.assertEquals(1, s3.initiated);
+		for (Integer partNumber : uploadedBefore) {
+			Assert.assertFalse(s3.uploadedParts.contains(partNumber));
+		}
+		Assert.assertEquals(3, s3.completedParts);
+	}
+	
+	@Test
+	public void startsOverIfFileChanged() throws Exception {
+		File file = this.createFile(2 * PART_SIZE);
+		File stateDir = this.folder.newFolder("state");
+		FakeS3 s3 = new FakeS3();
+		s3.failingPart = 2;
+		try {
+			new ResumableUpload(s3.client(), this.executor, this.logger, stateDir, "bucket", "key", file).upload(PART_SIZE, new ObjectMetadata(), null);
+			Assert.fail("Upload should fail");
+		} catch (AmazonServiceException e) {
+			// expected
+		}
+		
+		s3.failingPart = 0;
+		Assert.assertTrue(file.setLastModified(file.lastModified() - 10000));
+		new ResumableUpload(s3.client(), this.executor, this.logger, stateDir, "bucket", "key", file).upload(PART_SIZE, new ObjectMetadata(), null);
+		Assert.assertEquals(2, s3.initiated);
+		Assert.assertEquals(1, s3.aborted);
+	}
+	
+	@Test
+	public void startsOverIfMetadataChanged() throws Exception {
+		File file = this.createFile(2 * PART_SIZE);
+		File stateDir = this.folder.newFolder("state");
+		FakeS3 s3 = new FakeS3();
+		s3.failingPart = 2;
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setCacheControl("max-age=60");
+		try {
+			new ResumableUpload(s3.client(), this.executor, this.logger, stateDir, "bucket", "key", file).upload(PART_SIZE, metadata, null);
+			Assert.fail("Upload should fail");
+		} catch (AmazonServiceException e) {
+			// expected
+		}
+		
+		s3.failingPart = 0;
+		ObjectMetadata changedMetadata = new ObjectMetadata();
+		changedMetadata.setCacheControl("max-age=3600");
+		new ResumableUpload(s3.client(), this.executor, this.logger, stateDir, "bucket", "key", file).upload(PART_SIZE, changedMetadata, null);
+		Assert.assertEquals(2, s3.initiated);
+		Assert.assertEquals(1, s3.aborted);
+		Assert.assertEquals(2, s3.completedParts);
+	}
+	
+	@Test
+	public void requestHashCoversMetadataAndAcl() {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.addUserMetadata("build", "1");
+		String hash = ResumableUpload.requestHash(metadata, null);
+		
+		ObjectMetadata sameMetadata = new ObjectMetadata();
+		sameMetadata.addUserMetadata("build", "1");
+		Assert.assertEquals(hash, ResumableUpload.requestHash(sameMetadata, null));
+		
+		ObjectMetadata otherMetadata = new ObjectMetadata();
+		otherMetadata.addUserMetadata("build", "2");
+		Assert.assertFalse(hash.equals(ResumableUpload.requestHash(otherMetadata, null)));
+		Assert.assertFalse(hash.equals(ResumableUpload.requestHash(sameMetadata, CannedAccessControlList.PublicRead)));
+	}
+	
+	private File createFile(int size) throws IOException {
+		byte[] content = new byte[size];
+		new Random(42).nextBytes(content);
+		File file = this.folder.newFile();
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(content);
+		}
+		return file;
+	}
+	
+	/**
+	 * In-memory stand-in for the multipart API of S3.
+	 */
+	private static class FakeS3 extends FakeAmazonS3 {
+		
+		private final Map<Integer, PartSummary> parts = new TreeMap<>();
+		private final List<Integer> uploadedParts = new ArrayList<>();
+		private int initiated;
+		private int aborted;
+		private int completedParts;
+		private volatile int failingPart;
+		private volatile boolean md5ETags = true;
+		
+		@Override
+		protected synchronized Object answer(String method, Object[] args) throws Throwable {
+			switch (method) {
+				case "initiateMultipartUpload":
+					this.initiated++;
+					this.parts.clear();
+					InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+					result.setUploadId("upload-" + this.initiated);
+					return result;
+				case "uploadPart":
+					UploadPartRequest request = (UploadPartRequest) args[0];
+					if (request.getPartNumber() == this.failingPart) {
+						throw new AmazonServiceException("part failed");
+					}
+					PartSummary part = new PartSummary();
+					part.setPartNumber(request.getPartNumber());
+					part.setSize(request.getPartSize());
+					part.setETag(this.md5ETags ? ETagUtils.md5Hex(request.getFile(), request.getFileOffset(), request.getPartSize()) : "kms-" + this.initiated + "-" + request.getPartNumber());
+					this.parts.put(request.getPartNumber(), part);
+					this.uploadedParts.add(request.getPartNumber());
+					UploadPartResult partResult = new UploadPartResult();
+					partResult.setPartNumber(request.getPartNumber());
+					partResult.setETag(part.getETag());
+					return partResult;
+				case "listParts":
+					PartListing listing = new PartListing();
+					listing.setParts(new ArrayList<>(this.parts.values()));
+					return listing;
+				case "abortMultipartUpload":
+					this.aborted++;
+					this.parts.clear();
+					return null;
+				case "completeMultipartUpload":
+					this.completedParts = ((CompleteMultipartUploadRequest) args[0]).getPartETags().size();
+					return null;
+				default:
+					throw new UnsupportedOperationException(method);
+			}
+		}
+	}
+}
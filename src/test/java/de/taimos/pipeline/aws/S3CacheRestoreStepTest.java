@@ -0,0 +1,53 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class S3CacheRestoreStepTest {
+	@Test
+	public void gettersWorkAsExpected() throws Exception {
+		S3CacheRestoreStep step = new S3CacheRestoreStep( "my-bucket", "maven", ".m2/repository", false, false );
+		Assert.assertEquals( "my-bucket", step.getBucket() );
+		Assert.assertEquals( "maven", step.getKey() );
+		Assert.assertEquals( ".m2/repository", step.getDir() );
+	}
+
+	@Test
+	public void defaultsAreSet() throws Exception {
+		S3CacheRestoreStep step = new S3CacheRestoreStep( "my-bucket", "maven", ".m2/repository", false, false );
+		Assert.assertEquals( "", step.getPath() );
+		Assert.assertEquals( "tgz", step.getFormat() );
+		Assert.assertNull( step.getHashFiles() );
+		Assert.assertNull( step.getRestoreKeys() );
+	}
+
+	@Test
+	public void restoreKeysAreCopied() throws Exception {
+		S3CacheRestoreStep step = new S3CacheRestoreStep( "my-bucket", "maven", ".m2/repository", false, false );
+		String[] restoreKeys = { "maven-" };
+		step.setRestoreKeys( restoreKeys );
+		restoreKeys[0] = "changed";
+		Assert.assertArrayEquals( new String[]{ "maven-" }, step.getRestoreKeys() );
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import de.taimos.pipeline.aws.utils.ArchiveFormat;
+
+public class S3CacheTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void buildsObjectKeys() {
+		Assert.assertEquals("cache/maven-abc.tgz", S3Cache.objectKey("cache", "maven", "abc", ArchiveFormat.TGZ));
+		Assert.assertEquals("cache/maven-abc.tar", S3Cache.objectKey("cache/", "maven-", "abc", ArchiveFormat.TAR));
+		Assert.assertEquals("maven.tgz", S3Cache.objectKey("", "maven", null, ArchiveFormat.TGZ));
+	}
+	
+	@Test
+	public void hashChangesWithContent() throws Exception {
+		File lockFile = this.createFile("app/package-lock.json", "{\"version\": 1}");
+		this.createFile("app/node_modules/dep/package-lock.json", "ignored");
+		String hash = S3Cache.hashFiles(this.folder.getRoot(), "app/package-lock.json");
+		Assert.assertEquals(64, hash.length());
+		Assert.assertEquals(hash, S3Cache.hashFiles(this.folder.getRoot(), "app/package-lock.json"));
+		
+		this.write(lockFile, "{\"version\": 2}");
+		Assert.assertFalse(hash.equals(S3Cache.hashFiles(this.folder.getRoot(), "app/package-lock.json")));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsPatternWithoutFiles() throws Exception {
+		S3Cache.hashFiles(this.folder.getRoot(), "**/pom.xml");
+	}
+	
+	@Test
+	public void findsNewestArchiveOfFirstMatchingPrefix() {
+		AmazonS3 s3 = new FakeAmazonS3() {
+			@Override
+			protected Object answer(String method, Object[] args) {
+				if (!"listObjects".equals(method)) {
+					throw new UnsupportedOperationException(method);
+				}
+				String prefix = ((ListObjectsRequest) args[0]).getPrefix();
+				ObjectListing listing = new ObjectListing();
+				if ("cache/maven-".equals(prefix)) {
+					listing.getObjectSummaries().add(summary("cache/maven-old.tgz", 1000));
+					listing.getObjectSummaries().add(summary("cache/maven-new.tgz", 3000));
+					listing.getObjectSummaries().add(summary("cache/maven-newer.tar", 5000));
+				}
+				return listing;
+			}
+		}.client();
+		Assert.assertEquals("cache/maven-new.tgz", S3Cache.findNewest(s3, "bucket", "cache", new String[]{"maven-linux-", "maven-"}, ArchiveFormat.TGZ));
+		Assert.assertNull(S3Cache.findNewest(s3, "bucket", "cache", new String[]{"gradle-"}, ArchiveFormat.TGZ));
+	}
+	
+	private static S3ObjectSummary summary(String key, long lastModified) {
+		S3ObjectSummary summary = new S3ObjectSummary();
+		summary.setKey(key);
+		summary.setLastModified(new Date(lastModified));
+		return summary;
+	}
+	
+	private File createFile(String path, String content) throws IOException {
+		File file = new File(this.folder.getRoot(), path);
+		Assert.assertTrue(file.getParentFile().mkdirs());
+		this.write(file, content);
+		return file;
+	}
+	
+	private void write(File file, String content) throws IOException {
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
@@ -43,4 +43,69 @@ public class S3DownloadStepTest {
 		S3DownloadStep step = new S3DownloadStep( "my-file", "my-bucket" , false, false);
 		Assert.assertFalse( step.isForce() );
 	}
+
+	@Test
+	public void archiveIsOptional() throws Exception {
+		S3DownloadStep step = new S3DownloadStep( "my-dir", "my-bucket" , false, false);
+		Assert.assertNull( step.getArchive() );
+		step.setArchive( "tgz" );
+		Assert.assertEquals( "tgz", step.getArchive() );
+	}
+
+	@Test
+	public void parallelRangesIsDisabledByDefault() throws Exception {
+		S3DownloadStep step = new S3DownloadStep( "my-file", "my-bucket" , false, false);
+		Assert.assertFalse( step.isParallelRanges() );
+		step.setParallelRanges( true );
+		Assert.assertTrue( step.isParallelRanges() );
+	}
+
+	@Test
+	public void syncIsDisabledByDefault() throws Exception {
+		S3DownloadStep step = new S3DownloadStep( "my-dir", "my-bucket" , false, false);
+		Assert.assertFalse( step.isSync() );
+		Assert.assertFalse( step.isDeleteExtraneous() );
+		step.setSync( true );
+		step.setDeleteExtraneous( true );
+		Assert.assertTrue( step.isSync() );
+		Assert.assertTrue( step.isDeleteExtraneous() );
+	}
+
+	@Test
+	public void pathPatternsAreOptional() throws Exception {
+		S3DownloadStep step = new S3DownloadStep( "my-dir", "my-bucket" , false, false);
+		Assert.assertNull( step.getIncludePathPattern() );
+		Assert.assertNull( step.getExcludePathPattern() );
+		step.setIncludePathPattern( "**/*.json" );
+		step.setExcludePathPattern( "tmp/**" );
+		Assert.assertEquals( "**/*.json", step.getIncludePathPattern() );
+		Assert.assertEquals( "tmp/**", step.getExcludePathPattern() );
+	}
+
+	@Test
+	public void cacheIsDisabledByDefault() throws Exception {
+		S3DownloadStep step = new S3DownloadStep( "my-file", "my-bucket" , false, false);
+		Assert.assertNull( step.getCacheDir() );
+		Assert.assertEquals( DownloadCache.DEFAULT_MAX_BYTES, step.getCacheMaxBytes() );
+		step.setCacheDir( "/var/cache/s3" );
+		step.setCacheMaxBytes( 1024 );
+		Assert.assertEquals( "/var/cache/s3", step.getCacheDir() );
+		Assert.assertEquals( 1024, step.getCacheMaxBytes() );
+	}
+
+	@Test
+	public void conditionalIsDisabledByDefault() throws Exception {
+		S3DownloadStep step = new S3DownloadStep( "my-file", "my-bucket" , false, false);
+		Assert.assertFalse( step.isConditional() );
+		step.setConditional( true );
+		Assert.assertTrue( step.isConditional() );
+	}
+
+	@Test
+	public void extractIsDisabledByDefault() throws Exception {
+		S3DownloadStep step = new S3DownloadStep( "my-dir", "my-bucket" , false, false);
+		Assert.assertFalse( step.isExtract() );
+		step.setExtract( true );
+		Assert.assertTrue( step.isExtract() );
+	}
 }
@@ -0,0 +1,78 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+public class S3MetadataRuleTest {
+	
+	@Test
+	public void firstMatchingRuleWins() {
+		S3MetadataRule html = new S3MetadataRule("**/*.html");
+		S3MetadataRule all = new S3MetadataRule("**");
+		Assert.assertSame(html, S3MetadataRule.findFirst(Arrays.asList(html, all), "docs/index.html"));
+		Assert.assertSame(all, S3MetadataRule.findFirst(Arrays.asList(html, all), "app.js"));
+		Assert.assertNull(S3MetadataRule.findFirst(Arrays.asList(html), "app.js"));
+		Assert.assertNull(S3MetadataRule.findFirst(null, "app.js"));
+	}
+	
+	@Test
+	public void overridesSettingsOfStep() {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setCacheControl("max-age=3600");
+		metadata.addUserMetadata("team", "web");
+		PutObjectRequest request = new PutObjectRequest("bucket", "index.html", new File("index.html")).withMetadata(metadata).withCannedAcl(CannedAccessControlList.PublicRead);
+		
+		S3MetadataRule rule = new S3MetadataRule("**/*.html");
+		rule.setCacheControl("no-cache");
+		rule.setContentType("text/html; charset=utf-8");
+		rule.setMetadatas(new String[]{"page:true"});
+		rule.setAcl(CannedAccessControlList.Private);
+		rule.apply(request);
+		
+		Assert.assertEquals("no-cache", request.getMetadata().getCacheControl());
+		Assert.assertEquals("text/html; charset=utf-8", request.getMetadata().getContentType());
+		Assert.assertEquals("web", request.getMetadata().getUserMetaDataOf("team"));
+		Assert.assertEquals("true", request.getMetadata().getUserMetaDataOf("page"));
+		Assert.assertEquals(CannedAccessControlList.Private, request.getCannedAcl());
+	}
+	
+	@Test
+	public void keepsSettingsTheRuleDoesNotDefine() {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setCacheControl("max-age=3600");
+		PutObjectRequest request = new PutObjectRequest("bucket", "app.js", new File("app.js")).withMetadata(metadata).withCannedAcl(CannedAccessControlList.PublicRead);
+		
+		new S3MetadataRule("**/*.js").apply(request);
+		
+		Assert.assertEquals("max-age=3600", request.getMetadata().getCacheControl());
+		Assert.assertEquals(CannedAccessControlList.PublicRead, request.getCannedAcl());
+	}
+}
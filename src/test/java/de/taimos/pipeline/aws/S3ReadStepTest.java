@@ -0,0 +1,105 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+public class S3ReadStepTest {
+	
+	private static final byte[] CONTENT = "{\"key\": \"value\"}".getBytes(StandardCharsets.UTF_8);
+	
+	@Test
+	public void gettersWorkAsExpected() throws Exception {
+		S3ReadStep step = new S3ReadStep("my-bucket", "my-path", false, false);
+		Assert.assertEquals("my-bucket", step.getBucket());
+		Assert.assertEquals("my-path", step.getPath());
+	}
+	
+	@Test
+	public void defaultsReadTheWholeObjectAsString() throws Exception {
+		S3ReadStep step = new S3ReadStep("my-bucket", "my-path", false, false);
+		Assert.assertEquals(S3ReadStep.DEFAULT_MAX_BYTES, step.getMaxBytes());
+		Assert.assertEquals("UTF-8", step.getCharset());
+		Assert.assertEquals(0, step.getOffset());
+		Assert.assertEquals(0, step.getLength());
+		Assert.assertFalse(step.isParseJson());
+	}
+	
+	@Test
+	public void readsWholeObject() throws Exception {
+		byte[] content = S3ReadStep.read(client(), "bucket", "config.json", 0, 0, 1024);
+		Assert.assertArrayEquals(CONTENT, content);
+	}
+	
+	@Test
+	public void readsRange() throws Exception {
+		byte[] content = S3ReadStep.read(client(), "bucket", "config.json", 2, 3, 1024);
+		Assert.assertEquals("key", new String(content, StandardCharsets.UTF_8));
+	}
+	
+	@Test(expected = IOException.class)
+	public void failsIfObjectIsLargerThanMaxBytes() throws Exception {
+		S3ReadStep.read(client(), "bucket", "config.json", 0, 0, CONTENT.length - 1);
+	}
+	
+	@Test(expected = IOException.class)
+	public void failsIfRestOfObjectIsLargerThanMaxBytes() throws Exception {
+		S3ReadStep.read(client(), "bucket", "config.json", 1, 0, 4);
+	}
+	
+	/**
+	 * @return a stand-in for S3 that serves ranges of a single object
+	 */
+	private static AmazonS3 client() {
+		return new FakeAmazonS3() {
+			@Override
+			protected Object answer(String method, Object[] args) {
+				if (!"getObject".equals(method)) {
+					throw new UnsupportedOperationException(method);
+				}
+				GetObjectRequest request = (GetObjectRequest) args[0];
+				byte[] content = CONTENT;
+				if (request.getRange() != null) {
+					int end = (int) Math.min(request.getRange()[1] + 1, CONTENT.length);
+					content = Arrays.copyOfRange(CONTENT, (int) request.getRange()[0], end);
+				}
+				ObjectMetadata metadata = new ObjectMetadata();
+				metadata.setContentLength(content.length);
+				S3Object object = new S3Object();
+				object.setObjectMetadata(metadata);
+				object.setObjectContent(new ByteArrayInputStream(content));
+				return object;
+			}
+		}.client();
+	}
+}
@@ -51,10 +51,67 @@ public class S3UploadStepTest {
 		Assert.assertEquals( "my-bucket", step.getBucket() );
 	}
 
+	@Test
+	public void patternsMatchPathRelativeToWorkingDir() throws Exception {
+		Assert.assertEquals( "dist/index.html", S3UploadStep.normalizeSourcePath( "./dist/index.html" ) );
+		Assert.assertEquals( "dist", S3UploadStep.normalizeSourcePath( "dist/" ) );
+		Assert.assertEquals( "dist/css", S3UploadStep.normalizeSourcePath( "dist\\css" ) );
+		Assert.assertEquals( "", S3UploadStep.normalizeSourcePath( "." ) );
+	}
+
 	@Test
 	public void defaultPathIsEmpty() throws Exception {
 		S3UploadStep step = new S3UploadStep( "my-bucket", false, false );
 		step.setFile( "my-file" );
 		Assert.assertEquals( "", step.getPath() );
 	}
+
+	@Test
+	public void syncIsDisabledByDefault() throws Exception {
+		S3UploadStep step = new S3UploadStep( "my-bucket", false, false );
+		Assert.assertFalse( step.isSync() );
+		Assert.assertFalse( step.isDeleteExtraneous() );
+		step.setSync( true );
+		step.setDeleteExtraneous( true );
+		Assert.assertTrue( step.isSync() );
+		Assert.assertTrue( step.isDeleteExtraneous() );
+	}
+
+	@Test
+	public void retriesHaveDefaults() throws Exception {
+		S3UploadStep step = new S3UploadStep( "my-bucket", false, false );
+		Assert.assertEquals( BatchUpload.DEFAULT_RETRIES, step.getRetries() );
+		Assert.assertEquals( BatchUpload.DEFAULT_RETRY_BACKOFF_MILLIS, step.getRetryBackoff() );
+		step.setRetries( 5 );
+		step.setRetryBackoff( 200 );
+		Assert.assertEquals( 5, step.getRetries() );
+		Assert.assertEquals( 200, step.getRetryBackoff() );
+	}
+
+	@Test
+	public void contentAddressedDefaultsToFalse() throws Exception {
+		S3UploadStep step = new S3UploadStep( "my-bucket", false, false );
+		Assert.assertFalse( step.isContentAddressed() );
+		step.setContentAddressed( true );
+		Assert.assertTrue( step.isContentAddressed() );
+	}
+
+	@Test
+	public void manifestIsReturnedByDefault() throws Exception {
+		S3UploadStep step = new S3UploadStep( "my-bucket", false, false );
+		Assert.assertNull( step.getManifestFile() );
+		step.setManifestFile( "upload-manifest.jsonl" );
+		Assert.assertEquals( "upload-manifest.jsonl", step.getManifestFile() );
+	}
+
+	@Test
+	public void compressionDefaultsToGzip() throws Exception {
+		S3UploadStep step = new S3UploadStep( "my-bucket", false, false );
+		Assert.assertNull( step.getCompressPathPattern() );
+		Assert.assertEquals( "gzip", step.getCompression() );
+		step.setCompressPathPattern( "**/*.js,**/*.css" );
+		step.setCompression( "deflate" );
+		Assert.assertEquals( "**/*.js,**/*.css", step.getCompressPathPattern() );
+		Assert.assertEquals( "deflate", step.getCompression() );
+	}
 }
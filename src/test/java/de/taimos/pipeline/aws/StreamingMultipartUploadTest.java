@@ -0,0 +1,178 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+public class StreamingMultipartUploadTest {
+	
+	private static final int PART_SIZE = 1000;
+	
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	private final FakeS3 s3 = new FakeS3();
+	
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+	
+	@Test
+	public void uploadsSmallContentWithSinglePut() throws Exception {
+		byte[] content = content(PART_SIZE - 1);
+		StreamingMultipartUpload upload = this.createUpload();
+		upload.write(content);
+		upload.close();
+		Assert.assertEquals(0, this.s3.initiated);
+		Assert.assertArrayEquals(content, this.s3.object);
+		Assert.assertEquals(content.length, upload.getBytesWritten());
+	}
+	
+	@Test
+	public void uploadsLargeContentInParts() throws Exception {
+		byte[] content = content(3 * PART_SIZE + 500);
+		StreamingMultipartUpload upload = this.createUpload();
+		// write in chunks that do not line up with the parts
+		for (int offset = 0; offset < content.length; offset += 333) {
+			upload.write(content, offset, Math.min(333, content.length - offset));
+		}
+		upload.close();
+		Assert.assertEquals(1, this.s3.initiated);
+		Assert.assertEquals(4, this.s3.completedParts);
+		Assert.assertArrayEquals(content, this.s3.assembleParts());
+		Assert.assertEquals("etag-4", upload.getETag());
+	}
+	
+	@Test
+	public void abortsWhenPartFails() throws Exception {
+		this.s3.failingPart = 2;
+		StreamingMultipartUpload upload = this.createUpload();
+		upload.write(content(3 * PART_SIZE));
+		try {
+			upload.close();
+			Assert.fail("Expected the failed part to fail the upload");
+		} catch (AmazonServiceException e) {
+			Assert.assertEquals("part failed", e.getErrorMessage());
+		}
+		Assert.assertEquals(1, this.s3.aborted);
+		Assert.assertEquals(0, this.s3.completedParts);
+	}
+	
+	@Test(expected = IOException.class)
+	public void rejectsWritesAfterClose() throws Exception {
+		StreamingMultipartUpload upload = this.createUpload();
+		upload.close();
+		upload.write(1);
+	}
+	
+	private StreamingMultipartUpload createUpload() {
+		return new StreamingMultipartUpload(this.s3.client(), this.executor, "bucket", "archive.tar", new ObjectMetadata(), null, PART_SIZE, 2);
+	}
+	
+	private static byte[] content(int size) {
+		byte[] content = new byte[size];
+		new Random(42).nextBytes(content);
+		return content;
+	}
+	
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1000];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+	
+	private static class FakeS3 extends FakeAmazonS3 {
+		
+		private final Map<Integer, byte[]> parts = new TreeMap<>();
+		private byte[] object;
+		private int initiated;
+		private int aborted;
+		private int completedParts;
+		private volatile int failingPart;
+		
+		byte[] assembleParts() {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (byte[] part : this.parts.values()) {
+				out.write(part, 0, part.length);
+			}
+			return out.toByteArray();
+		}
+		
+		@Override
+		protected synchronized Object answer(String method, Object[] args) throws Throwable {
+			switch (method) {
+				case "putObject":
+					this.object = readAll(((PutObjectRequest) args[0]).getInputStream());
+					return new PutObjectResult();
+				case "initiateMultipartUpload":
+					this.initiated++;
+					InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+					result.setUploadId("upload-" + this.initiated);
+					return result;
+				case "uploadPart":
+					UploadPartRequest request = (UploadPartRequest) args[0];
+					if (request.getPartNumber() == this.failingPart) {
+						throw new AmazonServiceException("part failed");
+					}
+					this.parts.put(request.getPartNumber(), readAll(request.getInputStream()));
+					UploadPartResult partResult = new UploadPartResult();
+					partResult.setPartNumber(request.getPartNumber());
+					partResult.setETag("etag-" + request.getPartNumber());
+					return partResult;
+				case "abortMultipartUpload":
+					this.aborted++;
+					return null;
+				case "completeMultipartUpload":
+					this.completedParts = ((CompleteMultipartUploadRequest) args[0]).getPartETags().size();
+					CompleteMultipartUploadResult completeResult = new CompleteMultipartUploadResult();
+					completeResult.setETag("etag-" + this.completedParts);
+					return completeResult;
+				default:
+					throw new UnsupportedOperationException(method);
+			}
+		}
+	}
+}
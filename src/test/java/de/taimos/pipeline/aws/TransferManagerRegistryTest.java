@@ -0,0 +1,99 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import hudson.EnvVars;
+
+public class TransferManagerRegistryTest {
+	
+	@Test
+	public void leasesShareTransferManagerForSameSettings() throws Exception {
+		EnvVars vars = this.createEnv("key-1");
+		S3ClientOptions options = new S3ClientOptions(false, false);
+		try (TransferManagerRegistry.Lease first = TransferManagerRegistry.acquire(options, vars);
+			 TransferManagerRegistry.Lease second = TransferManagerRegistry.acquire(new S3ClientOptions(false, false), this.createEnv("key-1"))) {
+			Assert.assertTrue(first.getTransferManager() == second.getTransferManager());
+			Assert.assertTrue(first.getAmazonS3() == second.getAmazonS3());
+		}
+	}
+	
+	@Test
+	public void leasesUseSeparateTransferManagersForDifferentSettings() throws Exception {
+		try (TransferManagerRegistry.Lease first = TransferManagerRegistry.acquire(new S3ClientOptions(false, false), this.createEnv("key-2"));
+			 TransferManagerRegistry.Lease otherCredentials = TransferManagerRegistry.acquire(new S3ClientOptions(false, false), this.createEnv("key-3"));
+			 TransferManagerRegistry.Lease otherOptions = TransferManagerRegistry.acquire(new S3ClientOptions(true, false), this.createEnv("key-2"))) {
+			Assert.assertFalse(first.getTransferManager() == otherCredentials.getTransferManager());
+			Assert.assertFalse(first.getTransferManager() == otherOptions.getTransferManager());
+		}
+	}
+	
+	@Test
+	public void throttledLeasesDoNotShareTransferManager() throws Exception {
+		S3ClientOptions options = new S3ClientOptions(false, false, null, null, null, null, 1024L * 1024);
+		try (TransferManagerRegistry.Lease first = TransferManagerRegistry.acquire(options, this.createEnv("key-4"));
+			 TransferManagerRegistry.Lease second = TransferManagerRegistry.acquire(options, this.createEnv("key-4"))) {
+			Assert.assertFalse(first.getTransferManager() == second.getTransferManager());
+		}
+	}
+	
+	@Test
+	public void waitsForThreadsWhenBudgetIsUsedUp() throws Exception {
+		S3ClientOptions options = new S3ClientOptions(false, false, null, null, null, TransferManagerRegistry.MAX_THREADS);
+		final AtomicReference<TransferManagerRegistry.Lease> waiting = new AtomicReference<>();
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread thread;
+		try (TransferManagerRegistry.Lease first = TransferManagerRegistry.acquire(options, this.createEnv("key-5"))) {
+			thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						waiting.set(TransferManagerRegistry.acquire(new S3ClientOptions(false, false), TransferManagerRegistryTest.this.createEnv("key-6")));
+						acquired.countDown();
+					} catch (InterruptedException e) {
+						// the test fails on the missing lease
+					}
+				}
+			};
+			thread.start();
+			// the first lease holds the whole budget, so the second one must wait for it
+			Assert.assertFalse(acquired.await(500, TimeUnit.MILLISECONDS));
+		}
+		Assert.assertTrue(acquired.await(10, TimeUnit.SECONDS));
+		waiting.get().close();
+		thread.join();
+	}
+	
+	private EnvVars createEnv(String accessKey) {
+		EnvVars vars = new EnvVars();
+		vars.put(AWSClientFactory.AWS_REGION, "eu-west-1");
+		vars.put(AWSClientFactory.AWS_ACCESS_KEY_ID, accessKey);
+		vars.put(AWSClientFactory.AWS_SECRET_ACCESS_KEY, "secret");
+		return vars;
+	}
+}
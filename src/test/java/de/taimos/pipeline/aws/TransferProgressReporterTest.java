@@ -0,0 +1,52 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TransferProgressReporterTest {
+	
+	@Test
+	public void formatsBytes() {
+		Assert.assertEquals("512 B", TransferProgressReporter.formatBytes(512));
+		Assert.assertEquals("1.5 KB", TransferProgressReporter.formatBytes(1536));
+		Assert.assertEquals("2.0 GB", TransferProgressReporter.formatBytes(2L * 1024 * 1024 * 1024));
+	}
+	
+	@Test
+	public void formatsDuration() {
+		Assert.assertEquals("0:00:05", TransferProgressReporter.formatDuration(5000));
+		Assert.assertEquals("1:01:01", TransferProgressReporter.formatDuration(3661000));
+	}
+	
+	@Test
+	public void reportsTotalsOnClose() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TransferProgressReporter reporter = new TransferProgressReporter(new PrintStream(out, true), "Uploaded", 0);
+		reporter.close();
+		Assert.assertTrue(out.toString().startsWith("Uploaded 0 B in 0:00:00"));
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UploadManifestTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void keepsObjectsByPathInMemory() throws Exception {
+		try (UploadManifest manifest = UploadManifest.inMemory()) {
+			manifest.add(new UploadedObject("b.txt", "site/b.txt", 2, "etag-b", null, 5));
+			manifest.add(new UploadedObject(null, "site.tgz", 3, "etag-archive", "v1", 7));
+			Assert.assertEquals(2, manifest.size());
+			Assert.assertEquals("site/b.txt", manifest.getObjects().get("b.txt").getKey());
+			Assert.assertEquals("v1", manifest.getObjects().get("site.tgz").getVersionId());
+		}
+	}
+	
+	@Test
+	public void writesJsonLines() throws Exception {
+		File file = new File(this.folder.getRoot(), "reports/manifest.jsonl");
+		try (UploadManifest manifest = UploadManifest.toFile(file)) {
+			manifest.add(new UploadedObject("a \"quoted\".txt", "site/a \"quoted\".txt", 1, "etag-a", "v1", 10));
+			manifest.add(new UploadedObject(null, "site.tgz", 2, null, null, 0));
+			Assert.assertNull(manifest.getObjects());
+		}
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		Assert.assertEquals(2, lines.size());
+		Assert.assertEquals("{\"path\":\"a \\\"quoted\\\".txt\",\"key\":\"site/a \\\"quoted\\\".txt\",\"size\":1,\"eTag\":\"etag-a\",\"versionId\":\"v1\",\"duration\":10}", lines.get(0));
+		Assert.assertEquals("{\"path\":null,\"key\":\"site.tgz\",\"size\":2,\"eTag\":null,\"versionId\":null,\"duration\":0}", lines.get(1));
+	}
+}
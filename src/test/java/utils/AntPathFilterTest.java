@@ -0,0 +1,50 @@
+package utils;
+
+/*-
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 - 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.taimos.pipeline.aws.utils.AntPathFilter;
+
+public class AntPathFilterTest {
+	
+	@Test
+	public void matchesIncludesAndExcludes() {
+		AntPathFilter filter = new AntPathFilter("**/*.js, css/", "**/*.min.js", true);
+		Assert.assertTrue(filter.matches("app.js"));
+		Assert.assertTrue(filter.matches("lib/util.js"));
+		Assert.assertTrue(filter.matches("css/deep/style.css"));
+		Assert.assertFalse(filter.matches("lib/util.min.js"));
+		Assert.assertFalse(filter.matches("index.html"));
+		Assert.assertFalse(filter.matches(".git/hooks/hook.js"));
+	}
+	
+	@Test
+	public void skipsDirectoriesThatCannotMatch() {
+		AntPathFilter filter = new AntPathFilter("dist/**/*.js", "dist/vendor/", true);
+		Assert.assertTrue(filter.mayMatchBelow("dist"));
+		Assert.assertTrue(filter.mayMatchBelow("dist/app"));
+		Assert.assertFalse(filter.mayMatchBelow("src"));
+		Assert.assertFalse(filter.mayMatchBelow("dist/vendor"));
+		Assert.assertFalse(filter.mayMatchBelow("dist/.git"));
+	}
+}
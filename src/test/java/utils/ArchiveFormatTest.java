@@ -0,0 +1,143 @@
+package utils;
+
+/*-
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 - 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.taimos.pipeline.aws.utils.ArchiveFormat;
+
+public class ArchiveFormatTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void extractsWhatWasArchived() throws Exception {
+		File source = this.folder.newFolder("source");
+		File script = this.createFile(new File(source, "bin/run.sh"), "#!/bin/sh");
+		Assert.assertTrue(script.setExecutable(true));
+		this.createFile(new File(source, "lib/a/very/deep/directory/structure/with/a/path/longer/than/one/hundred/characters/for/tar/library.jar"), "jar");
+		
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		try (TarArchiveOutputStream tar = ArchiveFormat.TGZ.createOutputStream(archive)) {
+			ArchiveFormat.addFile(tar, script, "bin/run.sh");
+			ArchiveFormat.addFile(tar, new File(source, "lib/a/very/deep/directory/structure/with/a/path/longer/than/one/hundred/characters/for/tar/library.jar"), "lib/a/very/deep/directory/structure/with/a/path/longer/than/one/hundred/characters/for/tar/library.jar");
+		}
+		
+		File target = new File(this.folder.getRoot(), "target");
+		Assert.assertEquals(2, ArchiveFormat.TGZ.extract(new ByteArrayInputStream(archive.toByteArray()), target));
+		File extracted = new File(target, "bin/run.sh");
+		Assert.assertEquals("#!/bin/sh", new String(Files.readAllBytes(extracted.toPath()), StandardCharsets.UTF_8));
+		Assert.assertTrue(extracted.canExecute());
+		Assert.assertEquals(script.lastModified() / 1000, extracted.lastModified() / 1000);
+		Assert.assertTrue(new File(target, "lib/a/very/deep/directory/structure/with/a/path/longer/than/one/hundred/characters/for/tar/library.jar").isFile());
+	}
+	
+	@Test(expected = IOException.class)
+	public void rejectsEntriesOutsideTarget() throws Exception {
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		try (TarArchiveOutputStream tar = ArchiveFormat.TAR.createOutputStream(archive)) {
+			TarArchiveEntry entry = new TarArchiveEntry("../evil.txt");
+			entry.setSize(1);
+			tar.putArchiveEntry(entry);
+			tar.write('x');
+			tar.closeArchiveEntry();
+		}
+		ArchiveFormat.TAR.extract(new ByteArrayInputStream(archive.toByteArray()), this.folder.newFolder("target"));
+	}
+	
+	@Test
+	public void extractsZipWhileReading() throws Exception {
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(archive)) {
+			zip.putArchiveEntry(new ZipArchiveEntry("bin/run.sh"));
+			zip.write("#!/bin/sh".getBytes(StandardCharsets.UTF_8));
+			zip.closeArchiveEntry();
+			zip.putArchiveEntry(new ZipArchiveEntry("lib/"));
+			zip.closeArchiveEntry();
+			zip.putArchiveEntry(new ZipArchiveEntry("lib/library.jar"));
+			zip.write("jar".getBytes(StandardCharsets.UTF_8));
+			zip.closeArchiveEntry();
+		}
+		
+		File target = new File(this.folder.getRoot(), "target");
+		Assert.assertEquals(2, ArchiveFormat.ZIP.extract(new ByteArrayInputStream(archive.toByteArray()), target));
+		File extracted = new File(target, "bin/run.sh");
+		Assert.assertEquals("#!/bin/sh", new String(Files.readAllBytes(extracted.toPath()), StandardCharsets.UTF_8));
+		Assert.assertEquals("jar", new String(Files.readAllBytes(new File(target, "lib/library.jar").toPath()), StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void detectsFormatFromKey() {
+		Assert.assertEquals(ArchiveFormat.TAR, ArchiveFormat.fromKey("releases/app.tar"));
+		Assert.assertEquals(ArchiveFormat.TGZ, ArchiveFormat.fromKey("releases/app.tgz"));
+		Assert.assertEquals(ArchiveFormat.TGZ, ArchiveFormat.fromKey("releases/app-1.0.TAR.GZ"));
+		Assert.assertEquals(ArchiveFormat.ZIP, ArchiveFormat.fromKey("releases/app.zip"));
+		Assert.assertFalse(ArchiveFormat.ZIP.canCreate());
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void zipArchivesCannotBeCreated() throws Exception {
+		ArchiveFormat.ZIP.createOutputStream(new ByteArrayOutputStream());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownExtension() {
+		ArchiveFormat.fromKey("releases/app.7z");
+	}
+	
+	@Test
+	public void parsesFormatNames() {
+		Assert.assertEquals(ArchiveFormat.TAR, ArchiveFormat.fromName("tar"));
+		Assert.assertEquals(ArchiveFormat.TGZ, ArchiveFormat.fromName("TGZ"));
+		Assert.assertEquals(ArchiveFormat.TGZ, ArchiveFormat.fromName("tar.gz"));
+		Assert.assertEquals(ArchiveFormat.ZIP, ArchiveFormat.fromName("zip"));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnsupportedFormat() {
+		ArchiveFormat.fromName("zstd");
+	}
+	
+	private File createFile(File file, String content) throws IOException {
+		Assert.assertTrue(file.getParentFile().mkdirs());
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+		return file;
+	}
+}
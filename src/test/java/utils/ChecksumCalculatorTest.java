@@ -0,0 +1,142 @@
+package utils;
+
+/*-
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 - 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
+
+import de.taimos.pipeline.aws.FakeAmazonS3;
+import de.taimos.pipeline.aws.utils.ChecksumCalculator;
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+public class ChecksumCalculatorTest {
+	
+	private static final int MB = 1024 * 1024;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private final ChecksumCalculator checksums = new ChecksumCalculator(2);
+	
+	@After
+	public void shutdown() {
+		this.checksums.close();
+	}
+	
+	@Test
+	public void computesSinglePartETag() throws Exception {
+		File file = this.createFile(3 * MB + 17);
+		Assert.assertEquals(ETagUtils.md5Hex(file), this.checksums.submit(file, 0).getETag());
+	}
+	
+	@Test
+	public void computesMultipartETag() throws Exception {
+		File file = this.createFile(11 * MB + 17);
+		Assert.assertEquals(ETagUtils.multipartETag(file, 5 * MB), this.checksums.submit(file, 5 * MB).getETag());
+	}
+	
+	@Test
+	public void computesETagOfEmptyFile() throws Exception {
+		File file = this.createFile(0);
+		Assert.assertEquals(ETagUtils.md5Hex(file), this.checksums.submit(file, 0).getETag());
+	}
+	
+	@Test
+	public void acceptsMatchingETag() throws Exception {
+		File file = this.createFile(MB);
+		Assert.assertTrue(this.checksums.submit(file, 0).verify("\"" + ETagUtils.md5Hex(file) + "\"", headReturning(null), "bucket", "key"));
+	}
+	
+	@Test(expected = IOException.class)
+	public void rejectsMismatchingETag() throws Exception {
+		File file = this.createFile(MB);
+		this.checksums.submit(file, 0).verify("\"d41d8cd98f00b204e9800998ecf8427e\"", headReturning(null), "bucket", "key");
+	}
+	
+	@Test
+	public void skipsObjectsEncryptedWithKms() throws Exception {
+		File file = this.createFile(MB);
+		Assert.assertFalse(this.checksums.submit(file, 0).verify("\"d41d8cd98f00b204e9800998ecf8427e\"", headReturning("aws:kms"), "bucket", "key"));
+	}
+	
+	@Test
+	public void detectsEncryptionWithoutMd5ETag() {
+		UploadPartResult result = new UploadPartResult();
+		Assert.assertTrue(ChecksumCalculator.hasMd5ETag(result));
+		result.setSSEAlgorithm("AES256");
+		Assert.assertTrue(ChecksumCalculator.hasMd5ETag(result));
+		result.setSSEAlgorithm("aws:kms");
+		Assert.assertFalse(ChecksumCalculator.hasMd5ETag(result));
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setSSECustomerAlgorithm("AES256");
+		Assert.assertFalse(ChecksumCalculator.hasMd5ETag(metadata));
+	}
+	
+	@Test
+	public void usesPartSizeOfTransferManager() {
+		TransferManagerConfiguration configuration = new TransferManagerConfiguration();
+		configuration.setMultipartUploadThreshold(16 * MB);
+		configuration.setMinimumUploadPartSize(5 * MB);
+		Assert.assertEquals(0, ChecksumCalculator.partSizeFor(configuration, 16 * MB));
+		Assert.assertEquals(5 * MB, ChecksumCalculator.partSizeFor(configuration, 16 * MB + 1));
+		Assert.assertEquals(100L * MB, ChecksumCalculator.partSizeFor(configuration, 100L * MB * 10000));
+	}
+	
+	private static AmazonS3 headReturning(final String sseAlgorithm) {
+		return new FakeAmazonS3() {
+			@Override
+			protected Object answer(String method, Object[] args) {
+				if (!"getObjectMetadata".equals(method)) {
+					throw new UnsupportedOperationException(method);
+				}
+				ObjectMetadata metadata = new ObjectMetadata();
+				if (sseAlgorithm != null) {
+					metadata.setSSEAlgorithm(sseAlgorithm);
+				}
+				return metadata;
+			}
+		}.client();
+	}
+	
+	private File createFile(int size) throws IOException {
+		byte[] content = new byte[size];
+		new Random(42).nextBytes(content);
+		File file = this.folder.newFile();
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(content);
+		}
+		return file;
+	}
+}
@@ -0,0 +1,160 @@
+package utils;
+
+/*-
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 - 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+import de.taimos.pipeline.aws.utils.Compression;
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+public class CompressionTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void gzipsInOnePass() throws Exception {
+		byte[] content = this.content(300 * 1024);
+		File file = this.createFile("app.js", content);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		Assert.assertEquals(ETagUtils.md5Hex(file), Compression.GZIP.compress(file, compressed));
+		Assert.assertTrue(compressed.size() < file.length());
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+			Assert.assertArrayEquals(content, readAll(in));
+		}
+	}
+	
+	@Test
+	public void deflates() throws Exception {
+		byte[] content = this.content(1000);
+		File file = this.createFile("data.json", content);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		Compression.DEFLATE.compress(file, compressed);
+		try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+			Assert.assertArrayEquals(content, readAll(in));
+		}
+	}
+	
+	@Test
+	public void leavesTargetOpen() throws Exception {
+		File file = this.createFile("app.css", this.content(1000));
+		final boolean[] closed = new boolean[1];
+		OutputStream target = new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		Compression.GZIP.compress(file, target);
+		Assert.assertFalse(closed[0]);
+	}
+	
+	@Test
+	public void createsMetadataOfCompressedObject() throws Exception {
+		File file = this.createFile("index.html", this.content(4096));
+		PutObjectRequest request = new PutObjectRequest("bucket", "index.html", file);
+		ObjectMetadata metadata = Compression.GZIP.createMetadata(request);
+		Assert.assertEquals("gzip", metadata.getContentEncoding());
+		Assert.assertEquals("text/html", metadata.getContentType());
+		Assert.assertNull(request.getMetadata());
+	}
+	
+	@Test
+	public void boundsCompressedLength() throws Exception {
+		// random bytes do not compress at all
+		byte[] content = new byte[1024 * 1024];
+		new Random(42).nextBytes(content);
+		File file = this.createFile("random.bin", content);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		Compression.GZIP.compress(file, compressed);
+		Assert.assertTrue(compressed.size() > content.length);
+		Assert.assertTrue(compressed.size() <= Compression.maxCompressedLength(content.length));
+	}
+	
+	@Test
+	public void recognizesUnchangedFiles() throws Exception {
+		File file = this.createFile("index.html", this.content(4096));
+		ObjectMetadata remote = new ObjectMetadata();
+		remote.setContentEncoding("gzip");
+		remote.addUserMetadata(Compression.UNCOMPRESSED_MD5, ETagUtils.md5Hex(file));
+		Assert.assertTrue(Compression.GZIP.isUnchanged(file, remote));
+		Assert.assertFalse(Compression.DEFLATE.isUnchanged(file, remote));
+		
+		// objects uploaded without the MD5 are uploaded again
+		ObjectMetadata old = new ObjectMetadata();
+		old.setContentEncoding("gzip");
+		Assert.assertFalse(Compression.GZIP.isUnchanged(file, old));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnsupportedEncoding() {
+		Compression.fromContentEncoding("br");
+	}
+	
+	private byte[] content(int size) {
+		// compressible, but not trivially
+		byte[] content = new byte[size];
+		Random random = new Random(42);
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) ('a' + random.nextInt(8));
+		}
+		return content;
+	}
+	
+	private File createFile(String name, byte[] content) throws IOException {
+		File file = this.folder.newFile(name);
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(content);
+		}
+		return file;
+	}
+	
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		copy(in, out);
+		return out.toByteArray();
+	}
+	
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[1000];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package utils;
+
+/*-
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 - 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.util.BinaryUtils;
+
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+public class ETagUtilsTest {
+	
+	private static final int MB = 1024 * 1024;
+	
+	@Test
+	public void singlePartETagIsMd5OfContent() throws Exception {
+		File file = this.createFile(1000);
+		String md5 = BinaryUtils.toHex(MessageDigest.getInstance("MD5").digest(this.content(1000)));
+		Assert.assertEquals(md5, ETagUtils.md5Hex(file));
+		Assert.assertTrue(ETagUtils.matches(file, "\"" + md5 + "\"", 0));
+		Assert.assertFalse(ETagUtils.matches(file, "d41d8cd98f00b204e9800998ecf8427e", 0));
+	}
+	
+	@Test
+	public void sha256IsComputedFromContent() throws Exception {
+		File file = this.createFile(1000);
+		String sha256 = BinaryUtils.toHex(MessageDigest.getInstance("SHA-256").digest(this.content(1000)));
+		Assert.assertEquals(sha256, ETagUtils.sha256Hex(file));
+	}
+	
+	@Test
+	public void multipartETagIsMd5OfPartMd5s() throws Exception {
+		byte[] content = this.content(12 * MB);
+		File file = this.createFile(12 * MB);
+		MessageDigest total = MessageDigest.getInstance("MD5");
+		total.update(MessageDigest.getInstance("MD5").digest(Arrays.copyOfRange(content, 0, 5 * MB)));
+		total.update(MessageDigest.getInstance("MD5").digest(Arrays.copyOfRange(content, 5 * MB, 10 * MB)));
+		total.update(MessageDigest.getInstance("MD5").digest(Arrays.copyOfRange(content, 10 * MB, 12 * MB)));
+		String expected = BinaryUtils.toHex(total.digest()) + "-3";
+		Assert.assertEquals(expected, ETagUtils.multipartETag(file, 5 * MB));
+		Assert.assertTrue(ETagUtils.matches(file, expected, 0));
+		Assert.assertFalse(ETagUtils.matches(file, expected.replace("-3", "-2"), 0));
+	}
+	
+	@Test
+	public void partCountIsParsedFromETag() throws Exception {
+		Assert.assertEquals(0, ETagUtils.getPartCount("\"d41d8cd98f00b204e9800998ecf8427e\""));
+		Assert.assertEquals(12, ETagUtils.getPartCount("\"d41d8cd98f00b204e9800998ecf8427e-12\""));
+	}
+	
+	private byte[] content(int size) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) (i % 251);
+		}
+		return content;
+	}
+	
+	private File createFile(int size) throws IOException {
+		File file = File.createTempFile("etag", ".bin");
+		file.deleteOnExit();
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(this.content(size));
+		}
+		return file;
+	}
+	
+}
@@ -0,0 +1,87 @@
+package utils;
+
+/*-
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 - 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.transfer.Upload;
+
+import de.taimos.pipeline.aws.FakeAmazonS3;
+import de.taimos.pipeline.aws.utils.TransferUtils;
+
+public class TransferUtilsTest {
+	
+	@Test
+	public void abortsRunningTransfersWhenInterrupted() throws Exception {
+		AtomicInteger aborts = new AtomicInteger();
+		Upload interrupted = this.createUpload(new InterruptedException(), false, aborts);
+		Upload running = this.createUpload(null, false, aborts);
+		Upload done = this.createUpload(null, true, aborts);
+		try {
+			TransferUtils.waitForCompletion(Arrays.asList(interrupted, running, done));
+			Assert.fail("InterruptedException expected");
+		} catch (InterruptedException e) {
+			Assert.assertEquals(2, aborts.get());
+		}
+	}
+	
+	@Test
+	public void abortsRunningTransfersWhenOneFails() throws Exception {
+		AtomicInteger aborts = new AtomicInteger();
+		Upload failed = this.createUpload(new AmazonClientException("failed"), true, aborts);
+		Upload running = this.createUpload(null, false, aborts);
+		try {
+			TransferUtils.waitForCompletion(Arrays.asList(failed, running));
+			Assert.fail("AmazonClientException expected");
+		} catch (AmazonClientException e) {
+			Assert.assertEquals(1, aborts.get());
+		}
+	}
+	
+	private Upload createUpload(final Exception waitException, final boolean done, final AtomicInteger aborts) {
+		return FakeAmazonS3.proxy(Upload.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+					case "waitForCompletion":
+						if (waitException != null) {
+							throw waitException;
+						}
+						return null;
+					case "isDone":
+						return done;
+					case "abort":
+						aborts.incrementAndGet();
+						return null;
+					default:
+						return null;
+				}
+			}
+		});
+	}
+}